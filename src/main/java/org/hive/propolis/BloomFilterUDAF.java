@@ -0,0 +1,187 @@
+package org.hive.propolis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.hive.propolis.util.BloomFilters;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+@Description(name = "bloom_build",
+        value = "_FUNC_(x[, expected_entries Long, fpp Double]): Binary - Builds a serialized Bloom filter "
+                + "of the values of x (by their string representation)",
+        extended = "\nThe filter is sized for expected_entries values (1000000 by default) with the false positive"
+                + "\nprobability fpp (0.01 by default). Write it to a file and pass the file to"
+                + "\nhbase_check_value to answer definite misses without asking HBase:\n"
+                + "\nUsage:\n"
+                + "> insert overwrite directory '/tmp/users_bloom'\n"
+                + "> select _FUNC_(user_id, 50000000, 0.01) from users\n"
+)
+
+public class BloomFilterUDAF extends AbstractGenericUDAFResolver {
+
+    static final Log LOG = LogFactory.getLog(BloomFilterUDAF.class.getName());
+
+    public BloomFilterUDAF() {
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length != 1 && parameters.length != 3) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Exactly one or three arguments are expected.");
+        }
+
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i,
+                        "Only Primitive type arguments are accepted but "
+                                + parameters[i].getTypeName() + " was passed");
+            }
+        }
+
+        return new GenericUDAFBloomFilterEvaluator();
+    }
+
+    public static class GenericUDAFBloomFilterEvaluator extends GenericUDAFEvaluator {
+
+        // For PARTIAL1 and COMPLETE
+        private transient PrimitiveObjectInspector inputOI;
+        private long expectedEntries = BloomFilters.DEFAULT_EXPECTED_ENTRIES;
+        private double fpp = BloomFilters.DEFAULT_FPP;
+        // For PARTIAL2 and FINAL
+        private transient BinaryObjectInspector partialOI;
+
+        private transient Key key;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                inputOI = (PrimitiveObjectInspector) parameters[0];
+                if (parameters.length == 3) {
+                    if (!ObjectInspectorUtils.isConstantObjectInspector(parameters[1]) ||
+                            !ObjectInspectorUtils.isConstantObjectInspector(parameters[2])) {
+                        throw new UDFArgumentTypeException(1, "expected_entries and fpp must be constants");
+                    }
+                    expectedEntries = PrimitiveObjectInspectorUtils.getLong(
+                            ((ConstantObjectInspector) parameters[1]).getWritableConstantValue(),
+                            (PrimitiveObjectInspector) parameters[1]);
+                    fpp = PrimitiveObjectInspectorUtils.getDouble(
+                            ((ConstantObjectInspector) parameters[2]).getWritableConstantValue(),
+                            (PrimitiveObjectInspector) parameters[2]);
+                }
+                key = new Key();
+            } else {
+                partialOI = (BinaryObjectInspector) parameters[0];
+            }
+
+            return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+        }
+
+        static class BloomAggregationBuffer extends AbstractAggregationBuffer {
+            BloomFilter filter;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((BloomAggregationBuffer) agg).filter = null;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            BloomAggregationBuffer ret = new BloomAggregationBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object p = parameters[0];
+            if (p == null) {
+                return;
+            }
+
+            BloomAggregationBuffer myagg = (BloomAggregationBuffer) agg;
+            if (myagg.filter == null) {
+                try {
+                    myagg.filter = BloomFilters.create(expectedEntries, fpp);
+                } catch (IllegalArgumentException e) {
+                    throw new HiveException(e);
+                }
+            }
+
+            byte[] bytes;
+            if (inputOI instanceof StringObjectInspector) {
+                Text text = ((StringObjectInspector) inputOI).getPrimitiveWritableObject(p);
+                bytes = Arrays.copyOf(text.getBytes(), text.getLength());
+            } else {
+                bytes = PrimitiveObjectInspectorUtils.getString(p, inputOI).getBytes(StandardCharsets.UTF_8);
+            }
+            key.set(bytes, 1.0);
+            myagg.filter.add(key);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return terminate(agg);
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            BloomAggregationBuffer myagg = (BloomAggregationBuffer) agg;
+            BytesWritable bytes = partialOI.getPrimitiveWritableObject(partial);
+            try {
+                BloomFilter other = BloomFilters.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+                if (myagg.filter == null) {
+                    myagg.filter = other;
+                } else {
+                    myagg.filter.or(other);
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                throw new HiveException("Failed to merge Bloom filters", e);
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            BloomAggregationBuffer myagg = (BloomAggregationBuffer) agg;
+            if (myagg.filter == null) {
+                return null;
+            }
+            try {
+                return new BytesWritable(BloomFilters.toBytes(myagg.filter));
+            } catch (IOException e) {
+                throw new HiveException(e);
+            }
+        }
+    }
+}
@@ -8,18 +8,37 @@ import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveWritableObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
-
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.hive.propolis.util.HeavyHitters;
+import org.hive.propolis.util.MapPartialCodec;
+import org.hive.propolis.util.MemoryEstimates;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 
 @Description(name = "Counter UDAF",
         value = "_FUNC_(x1[, x2, ...]) - Count occurrences of each input value and " +
-                "return a Map<value, count> (like Python Counter class).")
+                "return a Map<value, count> (like Python Counter class).\n" +
+                "_FUNC_(x1[, x2, ...], k, 'TOPK') - Return the k most frequent values only, counted in memory " +
+                "bounded by k (a Misra-Gries summary of at most 2k values); the counts are lower bounds, " +
+                "below the true counts by at most count / (k + 1).")
 
 public class CounterUDAF extends AbstractGenericUDAFResolver {
 
@@ -41,30 +60,108 @@ public class CounterUDAF extends AbstractGenericUDAFResolver {
             }
         }
 
-        return new GenericUDAFCounterEvaluator();
+        GenericUDAFCounterEvaluator evaluator = new GenericUDAFCounterEvaluator();
+        if (parameters.length > 0 && MapPartialCodec.isEnabled(MapPartialCodec.BINARY_PARTIALS_CONF)
+                && MapPartialCodec.isSupportedKey(((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory())) {
+            evaluator.setBinaryPartials((PrimitiveTypeInfo) parameters[0],
+                    MapPartialCodec.isEnabled(MapPartialCodec.LZ4_CONF));
+        }
+        return evaluator;
     }
 
-    public static class GenericUDAFCounterEvaluator extends GenericUDAFEvaluator {
+    @Override
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        ObjectInspector[] ois = info.getParameterObjectInspectors();
+        int n = ois.length;
+        if (n < 3 || !isTopKMode(ois[n - 1])) {
+            return super.getEvaluator(info);
+        }
+
+        Object k = ois[n - 2] instanceof ConstantObjectInspector
+                ? ((ConstantObjectInspector) ois[n - 2]).getWritableConstantValue() : null;
+        if (!(k instanceof IntWritable) || ((IntWritable) k).get() < 1) {
+            throw new UDFArgumentTypeException(n - 2, "The number of top values must be a positive int constant");
+        }
+        TypeInfo[] parameters = info.getParameters();
+        for (int i = 0; i < n - 2; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i,
+                        "Only Primitive type arguments are accepted but "
+                                + parameters[i].getTypeName() + " was passed");
+            }
+        }
+        return new GenericUDAFTopKCounterEvaluator(((IntWritable) k).get(), n - 2);
+    }
+
+    private static boolean isTopKMode(ObjectInspector oi) {
+        if (!(oi instanceof ConstantObjectInspector)) {
+            return false;
+        }
+        Object mode = ((ConstantObjectInspector) oi).getWritableConstantValue();
+        return mode instanceof Text && mode.toString().equals("TOPK");
+    }
+
+    /**
+     * Serialized into the plan with the key type of binary partials (see {@link MapPartialCodec}).
+     */
+    public static class GenericUDAFCounterEvaluator extends GenericUDAFEvaluator implements Serializable {
+        private static final long serialVersionUID = 1L;
 
         // input
-        private PrimitiveObjectInspector inputOI;
+        private transient PrimitiveObjectInspector inputOI;
 
-        // final output
-        private StandardMapObjectInspector counterOI;
+        // final output, with writable keys as iterate stores them
+        private transient StandardMapObjectInspector counterOI;
         // partial output
-        private StandardMapObjectInspector bufferOI;
-
+        private transient StandardMapObjectInspector bufferOI;
+
+        // set for binary partials
+        private PrimitiveTypeInfo binaryKeyType;
+        private boolean lz4;
+        private transient BinaryObjectInspector partialOI;
+        private transient MapPartialCodec.Writer writer;
+        private transient MapPartialCodec.Reader reader;
+        private transient boolean integralKeys;
+        private transient Text keyText;
+
+        void setBinaryPartials(PrimitiveTypeInfo keyType, boolean lz4) {
+            this.binaryKeyType = keyType;
+            this.lz4 = lz4;
+        }
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
                 throws HiveException {
             super.init(m, parameters);
 
+            if (binaryKeyType != null) {
+                if (m == Mode.PARTIAL2 || m == Mode.FINAL) {
+                    partialOI = (BinaryObjectInspector) parameters[0];
+                    inputOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(binaryKeyType);
+                    reader = new MapPartialCodec.Reader();
+                    keyText = new Text();
+                } else {
+                    inputOI = (PrimitiveObjectInspector) parameters[0];
+                }
+                integralKeys = MapPartialCodec.isIntegral(binaryKeyType.getPrimitiveCategory());
+                counterOI = ObjectInspectorFactory.getStandardMapObjectInspector(
+                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI,
+                                ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE),
+                        PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+
+                if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                    writer = new MapPartialCodec.Writer(integralKeys, MapPartialCodec.ValueType.LONG, lz4);
+                    return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+                }
+                return counterOI;
+            }
+
             if (!(parameters[0] instanceof StandardMapObjectInspector)) {
                 inputOI = (PrimitiveObjectInspector) parameters[0];
 
                 counterOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI),
+                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI,
+                                ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE),
                         PrimitiveObjectInspectorFactory.writableIntObjectInspector);
                 return counterOI;
 
@@ -73,20 +170,30 @@ public class CounterUDAF extends AbstractGenericUDAFResolver {
                 inputOI = (PrimitiveObjectInspector) bufferOI.getMapKeyObjectInspector();
 
                 counterOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI),
+                        (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI,
+                                ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE),
                         PrimitiveObjectInspectorFactory.writableIntObjectInspector);
 
                 return counterOI;
             }
         }
 
-        static class MapAggregationBuffer implements AggregationBuffer {
+        @AggregationType(estimable = true)
+        static class MapAggregationBuffer extends AbstractAggregationBuffer {
             Map<Object, IntWritable> container;
+            // estimated heap size of the keys and counts
+            long entryBytes;
+
+            @Override
+            public int estimate() {
+                return (int) Math.min(MemoryEstimates.ofHashMap(container.size()) + entryBytes, Integer.MAX_VALUE);
+            }
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
             ((MapAggregationBuffer) agg).container = new HashMap<Object, IntWritable>();
+            ((MapAggregationBuffer) agg).entryBytes = 0;
         }
 
         @Override
@@ -110,13 +217,44 @@ public class CounterUDAF extends AbstractGenericUDAFResolver {
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            if (writer != null) {
+                try {
+                    return writePartial((MapAggregationBuffer) agg);
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+            }
             return terminate(agg);
         }
 
+        private Object writePartial(MapAggregationBuffer myagg) throws IOException {
+            PrimitiveObjectInspector keyOI = (PrimitiveObjectInspector) counterOI.getMapKeyObjectInspector();
+            writer.reset();
+            for (Map.Entry<Object, IntWritable> i : myagg.container.entrySet()) {
+                if (integralKeys) {
+                    writer.put(PrimitiveObjectInspectorUtils.getLong(i.getKey(), keyOI), i.getValue().get());
+                } else {
+                    Text key = ((StringObjectInspector) keyOI).getPrimitiveWritableObject(i.getKey());
+                    writer.put(key.getBytes(), 0, key.getLength(), i.getValue().get());
+                }
+            }
+            return writer.finish();
+        }
+
         @Override
         public void merge(AggregationBuffer agg, Object partial)
                 throws HiveException {
             MapAggregationBuffer myagg = (MapAggregationBuffer) agg;
+            if (reader != null) {
+                if (partial != null) {
+                    try {
+                        mergePartial(myagg, partialOI.getPrimitiveWritableObject(partial));
+                    } catch (IOException e) {
+                        throw new HiveException("Failed to read a binary partial", e);
+                    }
+                }
+                return;
+            }
 
             HashMap<Object, IntWritable> partialResult = (HashMap<Object, IntWritable>) bufferOI.getMap(partial);
             for (Map.Entry<Object, IntWritable> i : partialResult.entrySet()) {
@@ -132,6 +270,30 @@ public class CounterUDAF extends AbstractGenericUDAFResolver {
             return ret;
         }
 
+        private void mergePartial(MapAggregationBuffer myagg, BytesWritable partial) throws IOException {
+            reader.reset(partial.getBytes(), 0, partial.getLength());
+            while (reader.next()) {
+                Object key;
+                if (integralKeys) {
+                    key = MapPartialCodec.integralWritable(binaryKeyType.getPrimitiveCategory(), reader.getLongKey());
+                } else {
+                    keyText.set(reader.getKeyBytes(), reader.getKeyOffset(), reader.getKeyLength());
+                    key = keyText;
+                }
+                int count = (int) reader.getLongValue();
+                IntWritable c = myagg.container.get(key);
+                if (c != null) {
+                    c.set(c.get() + count);
+                } else {
+                    if (key == keyText) {
+                        key = new Text(keyText);
+                    }
+                    myagg.container.put(key, new IntWritable(count));
+                    myagg.entryBytes += MemoryEstimates.of(key) + MemoryEstimates.ofPrimitiveObject();
+                }
+            }
+        }
+
         private void addToBuffer(Object v, int count, MapAggregationBuffer myagg) {
             Object vCopy = ObjectInspectorUtils.copyToStandardObject(v, this.counterOI.getMapKeyObjectInspector());
 
@@ -140,7 +302,152 @@ public class CounterUDAF extends AbstractGenericUDAFResolver {
                 c.set(c.get() + count);
             } else {
                 myagg.container.put(vCopy, new IntWritable(count));
+                myagg.entryBytes += MemoryEstimates.of(vCopy) + MemoryEstimates.ofPrimitiveObject();
+            }
+        }
+    }
+
+    /**
+     * Counts into a {@link HeavyHitters} summary of at most 2k values. The partial results are structs
+     * of the counts and the error offset of the summary.
+     */
+    public static class GenericUDAFTopKCounterEvaluator extends GenericUDAFEvaluator implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private int k;
+        // the leading arguments counted, before k and 'TOPK'
+        private int values;
+
+        private transient PrimitiveObjectInspector inputOI;
+        private transient AbstractPrimitiveWritableObjectInspector keyOI;
+        private transient boolean integralKeys;
+        private transient StructObjectInspector partialOI;
+        private transient StructField countsField;
+        private transient StructField offsetField;
+        private transient MapObjectInspector countsOI;
+
+        public GenericUDAFTopKCounterEvaluator() {
+        }
+
+        GenericUDAFTopKCounterEvaluator(int k, int values) {
+            this.k = k;
+            this.values = values;
+        }
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                inputOI = (PrimitiveObjectInspector) parameters[0];
+            } else {
+                partialOI = (StructObjectInspector) parameters[0];
+                countsField = partialOI.getStructFieldRef("counts");
+                offsetField = partialOI.getStructFieldRef("offset");
+                countsOI = (MapObjectInspector) countsField.getFieldObjectInspector();
+                inputOI = (PrimitiveObjectInspector) countsOI.getMapKeyObjectInspector();
+            }
+            keyOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(inputOI,
+                    ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
+            integralKeys = MapPartialCodec.isIntegral(inputOI.getPrimitiveCategory());
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList("counts", "offset"),
+                        Arrays.<ObjectInspector>asList(
+                                ObjectInspectorFactory.getStandardMapObjectInspector(keyOI,
+                                        PrimitiveObjectInspectorFactory.writableLongObjectInspector),
+                                PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
             }
+            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOI,
+                    PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        }
+
+        @AggregationType(estimable = true)
+        static class TopKBuffer extends AbstractAggregationBuffer {
+            HeavyHitters counts;
+
+            @Override
+            public int estimate() {
+                return counts.estimate();
+            }
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            TopKBuffer buffer = new TopKBuffer();
+            buffer.counts = new HeavyHitters(k, integralKeys, false);
+            return buffer;
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((TopKBuffer) agg).counts.clear();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
+            HeavyHitters counts = ((TopKBuffer) agg).counts;
+            for (int i = 0; i < values; i++) {
+                if (parameters[i] != null) {
+                    add(counts, parameters[i], inputOI, 1);
+                }
+            }
+        }
+
+        private void add(HeavyHitters counts, Object value, PrimitiveObjectInspector oi, long count) {
+            int i;
+            if (integralKeys) {
+                i = counts.entry(PrimitiveObjectInspectorUtils.getLong(value, oi));
+            } else {
+                Object key = oi.getPrimitiveWritableObject(value);
+                i = counts.find(key);
+                if (i < 0) {
+                    i = counts.insert(keyOI.copyObject(key));
+                }
+            }
+            counts.add(i, count);
+        }
+
+        private Object getKey(HeavyHitters counts, int entry) {
+            if (!integralKeys) {
+                return counts.getKey(entry);
+            }
+            return MapPartialCodec.integralWritable(inputOI.getPrimitiveCategory(), counts.getLongKey(entry));
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            HeavyHitters counts = ((TopKBuffer) agg).counts;
+            Map<Object, LongWritable> partial = new HashMap<Object, LongWritable>();
+            for (int i = 0; i < counts.size(); i++) {
+                partial.put(getKey(counts, i), new LongWritable(counts.getLongSum(i)));
+            }
+            return new Object[] {partial, new DoubleWritable(counts.getOffset())};
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial) throws HiveException {
+            if (partial == null) {
+                return;
+            }
+            HeavyHitters counts = ((TopKBuffer) agg).counts;
+            PrimitiveObjectInspector countOI = (PrimitiveObjectInspector) countsOI.getMapValueObjectInspector();
+            Map<?, ?> partialCounts = countsOI.getMap(partialOI.getStructFieldData(partial, countsField));
+            for (Map.Entry<?, ?> i : partialCounts.entrySet()) {
+                add(counts, i.getKey(), inputOI, PrimitiveObjectInspectorUtils.getLong(i.getValue(), countOI));
+            }
+            counts.addOffset(PrimitiveObjectInspectorUtils.getDouble(partialOI.getStructFieldData(partial, offsetField),
+                    (PrimitiveObjectInspector) offsetField.getFieldObjectInspector()));
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            HeavyHitters counts = ((TopKBuffer) agg).counts;
+            HashMap<Object, IntWritable> ret = new HashMap<Object, IntWritable>();
+            for (int i : counts.top()) {
+                ret.put(getKey(counts, i), new IntWritable((int) counts.getLongSum(i)));
+            }
+            return ret;
         }
     }
 }
@@ -0,0 +1,243 @@
+package org.hive.propolis;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.Text;
+import org.hive.propolis.util.FileSet;
+import org.hive.propolis.util.FileSets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Base class of intersect_file and subtract_file: filters the elements of an array
+ * by their membership in the set of lines of a file (see {@link FileSets} for the formats).
+ * Arrays of integral types are probed with primitive longs against a set of numbers and
+ * keep their element type. String arrays are probed with the UTF-8 bytes of their Text values
+ * and copied into reused Text objects, so no String is created per element.
+ *
+ * The returned list and its Text values are reused by the next call.
+ */
+public abstract class FileSetUDF extends GenericUDF {
+
+    private transient FileSet set;
+    private transient ListObjectInspector listObjectInspector;
+    private transient ObjectInspector strObjectInspector;
+    private transient ObjectInspector fileObjectInspector;
+    private transient boolean integral;
+    // set for string arrays, which are probed with the bytes of their Text values
+    private transient StringObjectInspector textObjectInspector;
+
+    private transient Configuration conf;
+
+    private transient List<Object> output;
+    private transient List<Text> texts;
+
+    /**
+     * Function name used in messages.
+     */
+    protected abstract String getFuncName();
+
+    /**
+     * Whether an element is kept, given whether it is in the file.
+     */
+    protected abstract boolean keep(boolean inFile);
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments)
+            throws UDFArgumentException {
+        if (arguments.length != 2) {
+            throw new UDFArgumentLengthException(
+                    getFuncName() + "() accepts exactly 2 arguments.");
+        }
+
+        ObjectInspector inputListOI = arguments[0];
+        if (inputListOI.getCategory() != ObjectInspector.Category.LIST){
+            throw new UDFArgumentTypeException(0,
+                    "The first argument must be Array, but "
+                            + inputListOI.getCategory().name()
+                            + " was passed.");
+        }
+
+        listObjectInspector = (ListObjectInspector) inputListOI;
+        if (listObjectInspector.getListElementObjectInspector().getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentException("The Array element type must be Primitive.");
+        }
+        strObjectInspector = listObjectInspector.getListElementObjectInspector();
+        fileObjectInspector = arguments[1];
+
+        integral = isIntegral(strObjectInspector);
+        if (!integral && !isTypeCompatible(strObjectInspector)) {
+            throw new UDFArgumentTypeException(0, "The first " +
+                    "argument of function " + getFuncName() + " must be an array of string, " +
+                    "char, varchar or integral type but " +
+                    strObjectInspector.toString() + " was given.");
+        }
+
+        if (((PrimitiveObjectInspector) fileObjectInspector).getPrimitiveCategory() !=
+                PrimitiveObjectInspector.PrimitiveCategory.STRING ||
+                !ObjectInspectorUtils.isConstantObjectInspector(fileObjectInspector)) {
+            throw new UDFArgumentTypeException(1, "The second " +
+                    "argument of " + getFuncName() + "() must be a constant string but " +
+                    fileObjectInspector.toString() + " was given.");
+        }
+
+        output = new ArrayList<Object>();
+        texts = new ArrayList<Text>();
+        textObjectInspector = null;
+
+        PrimitiveObjectInspector elemOI;
+        if (((PrimitiveObjectInspector) strObjectInspector).getPrimitiveCategory() ==
+                PrimitiveObjectInspector.PrimitiveCategory.STRING) {
+            textObjectInspector = (StringObjectInspector) strObjectInspector;
+            elemOI = PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+        } else {
+            String returnElemType = strObjectInspector.getTypeName();
+            elemOI = GetObjectInspectorForTypeName(returnElemType);
+        }
+
+        ObjectInspector ret_type = ObjectInspectorFactory.getStandardListObjectInspector(elemOI);
+
+        return ret_type;
+    }
+
+    private boolean isTypeCompatible(ObjectInspector argument) {
+        PrimitiveObjectInspector poi = ((PrimitiveObjectInspector) argument);
+        return
+                poi.getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.STRING ||
+                        poi.getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.CHAR ||
+                        poi.getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.VARCHAR ||
+                        poi.getPrimitiveCategory() == PrimitiveObjectInspector.PrimitiveCategory.VOID;
+    }
+
+    private boolean isIntegral(ObjectInspector argument) {
+        switch (((PrimitiveObjectInspector) argument).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static PrimitiveObjectInspector GetObjectInspectorForTypeName(String typeString) {
+        TypeInfo typeInfo = TypeInfoUtils.getTypeInfoFromTypeString(typeString);
+
+        return (PrimitiveObjectInspector) TypeInfoUtils.getStandardJavaObjectInspectorFromTypeInfo(typeInfo);
+    }
+
+    @Override
+    public void configure(MapredContext context) {
+        super.configure(context);
+        conf = context.getJobConf();
+    }
+
+    @Override
+    public String[] getRequiredFiles() {
+        String filePath = ObjectInspectorUtils.getWritableConstantValue(fileObjectInspector).toString();
+        // files with a scheme (hdfs://...) are read by each task directly, without the distributed cache
+        String scheme = new Path(filePath).toUri().getScheme();
+        if (scheme != null && !"file".equals(scheme)) {
+            return null;
+        }
+        return new String[] {
+                filePath
+        };
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        if (arguments[0].get() == null || arguments[1].get() == null) {
+            return null;
+        }
+
+        output.clear();
+
+        if (set == null) {
+            String filePath = (String)ObjectInspectorUtils.copyToStandardJavaObject(
+                    arguments[1].get(), fileObjectInspector);
+            loadFromFile(filePath);
+        }
+
+        for (int i = 0; i < listObjectInspector.getListLength(arguments[0].get()); i++) {
+            Object elem = listObjectInspector.getListElement(arguments[0].get(), i);
+            if (elem != null && integral) {
+                PrimitiveObjectInspector elemOI = (PrimitiveObjectInspector) strObjectInspector;
+                if (keep(set.contains(PrimitiveObjectInspectorUtils.getLong(elem, elemOI)))) {
+                    output.add(elemOI.getPrimitiveJavaObject(elem));
+                }
+            } else if (elem != null && textObjectInspector != null) {
+                Text text = textObjectInspector.getPrimitiveWritableObject(elem);
+                if (keep(set.contains(text.getBytes(), 0, text.getLength()))) {
+                    if (texts.size() == output.size()) {
+                        texts.add(new Text());
+                    }
+                    Text copy = texts.get(output.size());
+                    copy.set(text.getBytes(), 0, text.getLength());
+                    output.add(copy);
+                }
+            } else if (elem != null) {
+                String str = ObjectInspectorUtils.copyToStandardJavaObject(elem, strObjectInspector).toString();
+                if (keep(set.contains(str))) {
+                    output.add(str);
+                }
+            }
+        }
+
+        if (output.isEmpty()) {
+            return null;
+        } else {
+            return output;
+        }
+    }
+
+    private void loadFromFile(String filePath) throws HiveException {
+        try {
+            if (conf == null) {
+                conf = new Configuration();
+            }
+            set = FileSets.load(filePath, integral, conf);
+        } catch (IOException e) {
+            throw new HiveException("Failed to load \"" + filePath + "\" in " + getFuncName() + "() UDF", e);
+        }
+    }
+
+    @Override
+    public void copyToNewInstance(Object newInstance) throws UDFArgumentException {
+        super.copyToNewInstance(newInstance); // Asserts the class invariant. (Same types.)
+        FileSetUDF that = (FileSetUDF) newInstance;
+        if (that != this) {
+            // the set is immutable, so the copies share it
+            that.set = this.set;
+            that.listObjectInspector = this.listObjectInspector;
+            that.strObjectInspector = this.strObjectInspector;
+            that.fileObjectInspector = this.fileObjectInspector;
+            that.integral = this.integral;
+            that.textObjectInspector = this.textObjectInspector;
+            that.output = new ArrayList<Object>();
+            that.texts = new ArrayList<Text>();
+        }
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        assert (children.length == 2);
+        return getStandardDisplayString(getFuncName(), children);
+    }
+}
@@ -0,0 +1,63 @@
+package org.hive.propolis;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.hive.propolis.util.HyperLogLog;
+
+import java.io.IOException;
+
+
+@Description(name = "hll_estimate",
+        value = "_FUNC_(sketch Binary): Long - The estimated number of distinct values of a HyperLogLog sketch "
+                + "built by hll_build or hll_union"
+)
+
+public class HyperLogLogEstimateUDF extends GenericUDF {
+
+    private transient BinaryObjectInspector sketchOI;
+    private transient LongWritable result;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 1) {
+            throw new UDFArgumentLengthException("hll_estimate() accepts exactly 1 argument.");
+        }
+        if (!(arguments[0] instanceof BinaryObjectInspector)) {
+            throw new UDFArgumentTypeException(0, "The argument of hll_estimate() must be Binary but "
+                    + arguments[0].getTypeName() + " was given.");
+        }
+        sketchOI = (BinaryObjectInspector) arguments[0];
+        result = new LongWritable();
+        return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Object sketch = arguments[0].get();
+        if (sketch == null) {
+            return null;
+        }
+        BytesWritable bytes = sketchOI.getPrimitiveWritableObject(sketch);
+        try {
+            result.set(HyperLogLog.fromBytes(bytes.getBytes(), 0, bytes.getLength()).cardinality());
+        } catch (IOException e) {
+            throw new HiveException("Failed to read a HyperLogLog sketch", e);
+        }
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        assert (children.length == 1);
+        return getStandardDisplayString("hll_estimate", children);
+    }
+}
@@ -0,0 +1,212 @@
+package org.hive.propolis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.hive.propolis.util.HyperLogLog;
+import org.hive.propolis.util.MapPartialCodec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+
+@Description(name = "hll_build",
+        value = "_FUNC_(x[, precision Int]): Binary - Builds a serialized HyperLogLog sketch "
+                + "of the distinct values of x",
+        extended = "\nThe sketch has 2^precision registers (precision between 4 and 18, 14 by default):"
+                + "\nthe standard error of the estimate is about 1.04 / sqrt(2^precision), 0.8% by default,"
+                + "\nand a sketch takes up to 12KB. Integral values are hashed by their value,"
+                + "\nother values by their string representation."
+                + "\nEstimate with hll_estimate, roll stored sketches up with hll_union:\n"
+                + "\nUsage:\n"
+                + "> select dt, hll_estimate(_FUNC_(user_id)) from visits group by dt\n"
+)
+
+public class HyperLogLogUDAF extends AbstractGenericUDAFResolver {
+
+    static final Log LOG = LogFactory.getLog(HyperLogLogUDAF.class.getName());
+
+    public HyperLogLogUDAF() {
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length != 1 && parameters.length != 2) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Exactly one or two arguments are expected.");
+        }
+
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i,
+                        "Only Primitive type arguments are accepted but "
+                                + parameters[i].getTypeName() + " was passed");
+            }
+        }
+
+        return new GenericUDAFHyperLogLogEvaluator();
+    }
+
+    /**
+     * Adds the values to a {@link HyperLogLog} sketch; the partial results are the serialized sketches,
+     * merged by {@link #merge}, so sketches of any precision can be merged.
+     */
+    public static class GenericUDAFHyperLogLogEvaluator extends GenericUDAFEvaluator {
+
+        // For PARTIAL1 and COMPLETE
+        protected transient PrimitiveObjectInspector inputOI;
+        private transient int precision;
+        private transient boolean integral;
+        // For PARTIAL2 and FINAL
+        private transient BinaryObjectInspector partialOI;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                initInput(parameters);
+            } else {
+                partialOI = (BinaryObjectInspector) parameters[0];
+            }
+
+            return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+        }
+
+        protected void initInput(ObjectInspector[] parameters) throws HiveException {
+            inputOI = (PrimitiveObjectInspector) parameters[0];
+            integral = MapPartialCodec.isIntegral(inputOI.getPrimitiveCategory());
+            precision = HyperLogLog.DEFAULT_PRECISION;
+            if (parameters.length == 2) {
+                if (!ObjectInspectorUtils.isConstantObjectInspector(parameters[1])) {
+                    throw new UDFArgumentTypeException(1, "precision must be a constant");
+                }
+                precision = PrimitiveObjectInspectorUtils.getInt(
+                        ((ConstantObjectInspector) parameters[1]).getWritableConstantValue(),
+                        (PrimitiveObjectInspector) parameters[1]);
+                if (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION) {
+                    throw new UDFArgumentTypeException(1, "precision must be between "
+                            + HyperLogLog.MIN_PRECISION + " and " + HyperLogLog.MAX_PRECISION);
+                }
+            }
+        }
+
+        @AggregationType(estimable = true)
+        static class HyperLogLogBuffer extends AbstractAggregationBuffer {
+            HyperLogLog sketch;
+
+            @Override
+            public int estimate() {
+                return sketch == null ? 0 : sketch.estimate();
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((HyperLogLogBuffer) agg).sketch = null;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            HyperLogLogBuffer ret = new HyperLogLogBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object p = parameters[0];
+            if (p == null) {
+                return;
+            }
+
+            HyperLogLogBuffer myagg = (HyperLogLogBuffer) agg;
+            if (myagg.sketch == null) {
+                myagg.sketch = new HyperLogLog(precision);
+            }
+
+            if (integral) {
+                myagg.sketch.addLong(PrimitiveObjectInspectorUtils.getLong(p, inputOI));
+            } else if (inputOI instanceof StringObjectInspector) {
+                Text text = ((StringObjectInspector) inputOI).getPrimitiveWritableObject(p);
+                myagg.sketch.addBytes(text.getBytes(), 0, text.getLength());
+            } else {
+                byte[] bytes = PrimitiveObjectInspectorUtils.getString(p, inputOI).getBytes(StandardCharsets.UTF_8);
+                myagg.sketch.addBytes(bytes, 0, bytes.length);
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return terminate(agg);
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            mergeSketch((HyperLogLogBuffer) agg, partialOI.getPrimitiveWritableObject(partial));
+        }
+
+        protected void mergeSketch(HyperLogLogBuffer myagg, BytesWritable bytes) throws HiveException {
+            try {
+                HyperLogLog other = HyperLogLog.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+                myagg.sketch = myagg.sketch == null ? other : myagg.sketch.merge(other);
+            } catch (IOException e) {
+                throw new HiveException("Failed to merge HyperLogLog sketches", e);
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            HyperLogLogBuffer myagg = (HyperLogLogBuffer) agg;
+            if (myagg.sketch == null) {
+                return null;
+            }
+            return new BytesWritable(myagg.sketch.toBytes());
+        }
+    }
+
+    /**
+     * Merges serialized sketches: the input is already of the partial type.
+     */
+    public static class GenericUDAFHyperLogLogUnionEvaluator extends GenericUDAFHyperLogLogEvaluator {
+
+        @Override
+        protected void initInput(ObjectInspector[] parameters) throws HiveException {
+            if (!(parameters[0] instanceof BinaryObjectInspector)) {
+                throw new UDFArgumentTypeException(0, "The argument must be a Binary HyperLogLog sketch");
+            }
+            inputOI = (PrimitiveObjectInspector) parameters[0];
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object p = parameters[0];
+            if (p != null) {
+                mergeSketch((HyperLogLogBuffer) agg, ((BinaryObjectInspector) inputOI).getPrimitiveWritableObject(p));
+            }
+        }
+    }
+}
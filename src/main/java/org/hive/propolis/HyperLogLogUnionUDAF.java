@@ -0,0 +1,41 @@
+package org.hive.propolis;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+
+@Description(name = "hll_union",
+        value = "_FUNC_(sketch Binary): Binary - Merges HyperLogLog sketches built by hll_build",
+        extended = "\nThe union estimates the distinct values of all the sketches, e.g. monthly users from daily"
+                + "\nsketches. Sketches of different precisions are merged at the lowest one.\n"
+                + "\nUsage:\n"
+                + "> select hll_estimate(_FUNC_(users_sketch)) from daily_users where dt like '2020-05-%'\n"
+)
+
+public class HyperLogLogUnionUDAF extends AbstractGenericUDAFResolver {
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length != 1) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Exactly one argument is expected.");
+        }
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE
+                || ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()
+                != PrimitiveObjectInspector.PrimitiveCategory.BINARY) {
+            throw new UDFArgumentTypeException(0,
+                    "Only Binary sketches are accepted but " + parameters[0].getTypeName() + " was passed");
+        }
+
+        return new HyperLogLogUDAF.GenericUDAFHyperLogLogUnionEvaluator();
+    }
+}
@@ -0,0 +1,273 @@
+package org.hive.propolis;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.hive.propolis.util.KllSketch;
+import org.hive.propolis.util.MemoryEstimates;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+
+@Description(name = "kll_arrays",
+        value = "_FUNC_[T <: Numeric](arg: Array[T]): Array[Binary] - Builds a serialized KLL quantile sketch "
+                + "of each element of the arrays",
+        extended = "\nThe element-wise counterpart of avg_arrays for quantiles: element i of the result sketches"
+                + "\nthe values of element i of the arrays (null if there are none). Given arrays of sketches,"
+                + "\nas stored in a table, _FUNC_ merges them element-wise. The rank error of a sketch is about"
+                + "\n1.7 / k, where k is set by \"set propolis.udaf.kll.k=...\" (200 by default, 0.85%),"
+                + "\nand a sketch keeps about 3k values. Extract the quantiles with kll_quantile:\n"
+                + "\nUsage:\n"
+                + "> select dt, kll_quantile(_FUNC_(latencies), array(0.5, 0.95, 0.99)) from requests group by dt\n"
+)
+
+public class KllArraysUDAF extends AbstractGenericUDAFResolver {
+
+    static final Log LOG = LogFactory.getLog(KllArraysUDAF.class.getName());
+    static final String K_CONF = "propolis.udaf.kll.k";
+
+    public KllArraysUDAF() {
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length != 1) {
+            throw new UDFArgumentTypeException(parameters.length - 1,
+                    "Only one arguments are expected.");
+        }
+
+        if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0,
+                    "Only list argument are accepted but "
+                            + parameters[0].getTypeName() + " was passed as parameter 1.");
+        }
+
+        TypeInfo elementTypeInfo = ((ListTypeInfo) parameters[0]).getListElementTypeInfo();
+
+        if (elementTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only primitive array are accepted but array of "
+                            + elementTypeInfo.getTypeName() + " was passed as parameter 1.");
+        }
+
+        switch (((PrimitiveTypeInfo) elementTypeInfo).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case TIMESTAMP:
+            case FLOAT:
+            case DOUBLE:
+            case VOID:
+            case BINARY:
+                GenericUDAFKllArrayEvaluator evaluator = new GenericUDAFKllArrayEvaluator();
+                evaluator.setK(configuredK());
+                return evaluator;
+            default:
+                throw new UDFArgumentTypeException(0,
+                        "Only numeric type arrays or arrays of sketches are accepted but array of "
+                                + elementTypeInfo.getTypeName() + " is passed.");
+        }
+    }
+
+    /**
+     * The sketch size set in the session compiling the query.
+     */
+    static int configuredK() throws UDFArgumentTypeException {
+        SessionState session = SessionState.get();
+        int k = session == null || session.getConf() == null
+                ? KllSketch.DEFAULT_K
+                : session.getConf().getInt(K_CONF, KllSketch.DEFAULT_K);
+        if (k < KllSketch.MIN_K || k > KllSketch.MAX_K) {
+            throw new UDFArgumentTypeException(0, K_CONF + " must be between "
+                    + KllSketch.MIN_K + " and " + KllSketch.MAX_K + " but is " + k);
+        }
+        return k;
+    }
+
+    /**
+     * Keeps a {@link KllSketch} per position; the partial results and the result are the lists of
+     * the serialized sketches, null where a position has no values. Subclasses feed the input values.
+     *
+     * Serializable so that k, chosen when the query is compiled, reaches the tasks.
+     */
+    public abstract static class AbstractKllEvaluator extends GenericUDAFEvaluator implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int k = KllSketch.DEFAULT_K;
+        // For PARTIAL2 and FINAL
+        private transient ListObjectInspector partialOI;
+        private transient BinaryObjectInspector partialSketchOI;
+
+        void setK(int k) {
+            this.k = k;
+        }
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+                throws HiveException {
+            super.init(m, parameters);
+
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                initInput(parameters);
+            } else {
+                partialOI = (ListObjectInspector) parameters[0];
+                partialSketchOI = (BinaryObjectInspector) partialOI.getListElementObjectInspector();
+            }
+
+            return ObjectInspectorFactory.getStandardListObjectInspector(
+                    PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+        }
+
+        protected abstract void initInput(ObjectInspector[] parameters) throws HiveException;
+
+        @AggregationType(estimable = true)
+        static class KllBuffer extends AbstractAggregationBuffer {
+            final List<KllSketch> sketches = new ArrayList<>();
+
+            @Override
+            public int estimate() {
+                int estimate = MemoryEstimates.ofList(sketches.size(), 0);
+                for (KllSketch sketch : sketches) {
+                    if (sketch != null) {
+                        estimate += sketch.estimate();
+                    }
+                }
+                return estimate;
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer agg) throws HiveException {
+            ((KllBuffer) agg).sketches.clear();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            KllBuffer ret = new KllBuffer();
+            reset(ret);
+            return ret;
+        }
+
+        protected KllSketch sketch(AggregationBuffer agg, int position) {
+            List<KllSketch> sketches = ((KllBuffer) agg).sketches;
+            while (sketches.size() <= position) {
+                sketches.add(null);
+            }
+            KllSketch sketch = sketches.get(position);
+            if (sketch == null) {
+                sketch = new KllSketch(k);
+                sketches.set(position, sketch);
+            }
+            return sketch;
+        }
+
+        /**
+         * Merges a list of serialized sketches element-wise.
+         */
+        protected void mergeSketches(AggregationBuffer agg, List<?> sketches, BinaryObjectInspector sketchOI)
+                throws HiveException {
+            for (int i = 0; i < sketches.size(); i++) {
+                // positions without values keep their place in the result
+                KllSketch sketch = sketch(agg, i);
+                Object p = sketches.get(i);
+                if (p == null) {
+                    continue;
+                }
+                BytesWritable bytes = sketchOI.getPrimitiveWritableObject(p);
+                try {
+                    sketch.merge(KllSketch.fromBytes(bytes.getBytes(), 0, bytes.getLength()));
+                } catch (IOException e) {
+                    throw new HiveException("Failed to merge KLL sketches", e);
+                }
+            }
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
+            return terminate(agg);
+        }
+
+        @Override
+        public void merge(AggregationBuffer agg, Object partial)
+                throws HiveException {
+            if (partial == null) {
+                return;
+            }
+
+            mergeSketches(agg, partialOI.getList(partial), partialSketchOI);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer agg) throws HiveException {
+            List<KllSketch> sketches = ((KllBuffer) agg).sketches;
+            if (sketches.isEmpty()) {
+                return null;
+            }
+            List<BytesWritable> result = new ArrayList<>(sketches.size());
+            for (KllSketch sketch : sketches) {
+                result.add(sketch == null || sketch.isEmpty() ? null : new BytesWritable(sketch.toBytes()));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Sketches the arrays element-wise, or merges arrays of serialized sketches.
+     */
+    public static class GenericUDAFKllArrayEvaluator extends AbstractKllEvaluator {
+
+        private static final long serialVersionUID = 1L;
+
+        // For PARTIAL1 and COMPLETE
+        private transient ListObjectInspector inputOI;
+        private transient PrimitiveObjectInspector elementOI;
+
+        @Override
+        protected void initInput(ObjectInspector[] parameters) throws HiveException {
+            inputOI = (ListObjectInspector) parameters[0];
+            elementOI = (PrimitiveObjectInspector) inputOI.getListElementObjectInspector();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            Object p = parameters[0];
+            if (p == null) {
+                return;
+            }
+
+            List<?> list = inputOI.getList(p);
+            if (elementOI instanceof BinaryObjectInspector) {
+                mergeSketches(agg, list, (BinaryObjectInspector) elementOI);
+                return;
+            }
+            for (int i = 0; i < list.size(); i++) {
+                Object element = list.get(i);
+                if (element != null) {
+                    sketch(agg, i).update(PrimitiveObjectInspectorUtils.getDouble(element, elementOI));
+                }
+            }
+        }
+    }
+}
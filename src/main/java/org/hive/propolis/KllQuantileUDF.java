@@ -0,0 +1,151 @@
+package org.hive.propolis;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.BytesWritable;
+import org.hive.propolis.util.KllSketch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+@Description(name = "kll_quantile",
+        value = "_FUNC_(sketches Binary | Array[Binary], q Double | Array[Double]): Double | Array[...] "
+                + "- The quantiles q (between 0 and 1) of KLL sketches built by kll_arrays or multiple_kll",
+        extended = "\nAn array of sketches gives an array of the quantiles of each sketch, an array of q"
+                + "\nan array of quantiles per sketch; the quantile of a null or empty sketch is null.\n"
+                + "\nUsage:\n"
+                + "> select _FUNC_(sketches, array(0.5, 0.95, 0.99)) from latency_sketches\n"
+)
+
+public class KllQuantileUDF extends GenericUDF {
+
+    private transient ListObjectInspector sketchListOI;
+    private transient BinaryObjectInspector sketchOI;
+    private transient ListObjectInspector quantileListOI;
+    private transient PrimitiveObjectInspector quantileOI;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 2) {
+            throw new UDFArgumentLengthException("kll_quantile() accepts exactly 2 arguments.");
+        }
+
+        ObjectInspector sketchElementOI = arguments[0];
+        if (arguments[0].getCategory() == ObjectInspector.Category.LIST) {
+            sketchListOI = (ListObjectInspector) arguments[0];
+            sketchElementOI = sketchListOI.getListElementObjectInspector();
+        }
+        if (!(sketchElementOI instanceof BinaryObjectInspector)) {
+            throw new UDFArgumentTypeException(0, "The first argument of kll_quantile() must be Binary "
+                    + "or Array[Binary] but " + arguments[0].getTypeName() + " was given.");
+        }
+        sketchOI = (BinaryObjectInspector) sketchElementOI;
+
+        ObjectInspector quantileElementOI = arguments[1];
+        if (arguments[1].getCategory() == ObjectInspector.Category.LIST) {
+            quantileListOI = (ListObjectInspector) arguments[1];
+            quantileElementOI = quantileListOI.getListElementObjectInspector();
+        }
+        if (quantileElementOI.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(1, "The second argument of kll_quantile() must be Double "
+                    + "or Array[Double] but " + arguments[1].getTypeName() + " was given.");
+        }
+        quantileOI = (PrimitiveObjectInspector) quantileElementOI;
+
+        ObjectInspector resultOI = PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+        if (quantileListOI != null) {
+            resultOI = ObjectInspectorFactory.getStandardListObjectInspector(resultOI);
+        }
+        if (sketchListOI != null) {
+            resultOI = ObjectInspectorFactory.getStandardListObjectInspector(resultOI);
+        }
+        return resultOI;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] arguments) throws HiveException {
+        Object sketches = arguments[0].get();
+        Object quantiles = arguments[1].get();
+        if (sketches == null || quantiles == null) {
+            return null;
+        }
+
+        double[] qs;
+        if (quantileListOI != null) {
+            List<?> list = quantileListOI.getList(quantiles);
+            qs = new double[list.size()];
+            for (int i = 0; i < qs.length; i++) {
+                qs[i] = quantile(list.get(i));
+            }
+        } else {
+            qs = new double[]{quantile(quantiles)};
+        }
+
+        if (sketchListOI == null) {
+            return quantiles(sketches, qs);
+        }
+        List<?> list = sketchListOI.getList(sketches);
+        List<Object> result = new ArrayList<>(list.size());
+        for (Object sketch : list) {
+            result.add(quantiles(sketch, qs));
+        }
+        return result;
+    }
+
+    private double quantile(Object q) throws HiveException {
+        double value = q == null ? Double.NaN : PrimitiveObjectInspectorUtils.getDouble(q, quantileOI);
+        if (!(value >= 0 && value <= 1)) {
+            throw new HiveException("kll_quantile() quantiles must be between 0 and 1 but " + q + " was given");
+        }
+        return value;
+    }
+
+    /**
+     * The quantiles of a sketch, a value or a list as the quantiles were given.
+     */
+    private Object quantiles(Object sketch, double[] qs) throws HiveException {
+        if (sketch == null) {
+            return null;
+        }
+        BytesWritable bytes = sketchOI.getPrimitiveWritableObject(sketch);
+        KllSketch kll;
+        try {
+            kll = KllSketch.fromBytes(bytes.getBytes(), 0, bytes.getLength());
+        } catch (IOException e) {
+            throw new HiveException("Failed to read a KLL sketch", e);
+        }
+        if (kll.isEmpty()) {
+            return null;
+        }
+
+        double[] values = kll.quantiles(qs);
+        if (quantileListOI == null) {
+            return new DoubleWritable(values[0]);
+        }
+        List<DoubleWritable> result = new ArrayList<>(values.length);
+        for (double value : values) {
+            result.add(new DoubleWritable(value));
+        }
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        assert (children.length == 2);
+        return getStandardDisplayString("kll_quantile", children);
+    }
+}
@@ -12,12 +12,19 @@ import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.AbstractPrimitiveWritableObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.hive.propolis.util.MapPartialCodec;
+import org.hive.propolis.util.MemoryEstimates;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -53,26 +60,38 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
             throw new UDFArgumentTypeException(0, "Map value must by Primitive");
         }
 
+        GenericUDAFSumEvaluator<?> evaluator;
         switch (((PrimitiveTypeInfo) value_type).getPrimitiveCategory()) {
             case BYTE:
             case SHORT:
             case INT:
             case LONG:
-                return new MergeLongMapEvaluator();
+                evaluator = new MergeLongMapEvaluator();
+                break;
             case TIMESTAMP:
             case FLOAT:
             case DOUBLE:
-                return new MergeDoubleMapEvaluator();
+                evaluator = new MergeDoubleMapEvaluator();
+                break;
             default:
                 throw new UDFArgumentTypeException(0,
                         "Only numeric Map value type arguments are accepted but "
                                 + value_type.getTypeName() + " is passed.");
         }
+
+        TypeInfo key_type = map_type.getMapKeyTypeInfo();
+        if (MapPartialCodec.isEnabled(MapPartialCodec.BINARY_PARTIALS_CONF)
+                && key_type.getCategory() == ObjectInspector.Category.PRIMITIVE
+                && MapPartialCodec.isSupportedKey(((PrimitiveTypeInfo) key_type).getPrimitiveCategory())) {
+            evaluator.setBinaryPartials((PrimitiveTypeInfo) key_type, MapPartialCodec.isEnabled(MapPartialCodec.LZ4_CONF));
+        }
+        return evaluator;
     }
 
 
     // Long type:
     public static class MergeLongMapEvaluator extends GenericUDAFSumEvaluator<Long> {
+        private static final long serialVersionUID = 1L;
 
         @Override
         protected PrimitiveObjectInspector getReturnValueType() {
@@ -84,6 +103,16 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
             return PrimitiveObjectInspectorUtils.getLong(map_value, poi);
         }
 
+        @Override
+        protected MapPartialCodec.ValueType getPartialValueType() {
+            return MapPartialCodec.ValueType.LONG;
+        }
+
+        @Override
+        protected Long getPartialValue(MapPartialCodec.Reader reader) {
+            return reader.getLongValue();
+        }
+
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
             AggBuffer<Long> map_buffer = new AggBuffer<Long>();
@@ -95,6 +124,7 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
 
     // Double type:
     public static class MergeDoubleMapEvaluator extends GenericUDAFSumEvaluator<Double> {
+        private static final long serialVersionUID = 1L;
 
         @Override
         protected PrimitiveObjectInspector getReturnValueType() {
@@ -106,6 +136,16 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
             return PrimitiveObjectInspectorUtils.getDouble(map_value, poi);
         }
 
+        @Override
+        protected MapPartialCodec.ValueType getPartialValueType() {
+            return MapPartialCodec.ValueType.DOUBLE;
+        }
+
+        @Override
+        protected Double getPartialValue(MapPartialCodec.Reader reader) {
+            return reader.getDoubleValue();
+        }
+
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
             AggBuffer<Double> map_buffer = new AggBuffer<Double>();
@@ -115,35 +155,73 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
     }
 
     // Abstract aggregation buffer class:
+    @GenericUDAFEvaluator.AggregationType(estimable = true)
     private static class AggBuffer<T extends Number> extends GenericUDAFEvaluator.AbstractAggregationBuffer {
         Map<Object, T> buffer;
+        // estimated heap size of the keys and boxed values
+        long entryBytes;
 
         protected AggBuffer() {
             buffer = new HashMap<>();
         }
+
+        @Override
+        public int estimate() {
+            return (int) Math.min(MemoryEstimates.ofHashMap(buffer.size()) + entryBytes, Integer.MAX_VALUE);
+        }
     }
 
-    // Abstract Evaluator base class:
-    public static abstract class GenericUDAFSumEvaluator<T extends Number> extends GenericUDAFEvaluator {
+    // Abstract Evaluator base class; serialized into the plan with the key type of binary partials:
+    public static abstract class GenericUDAFSumEvaluator<T extends Number> extends GenericUDAFEvaluator
+            implements Serializable {
+        private static final long serialVersionUID = 1L;
 
         protected transient StandardMapObjectInspector mapOI;
         protected transient PrimitiveObjectInspector keyOI;
         protected transient PrimitiveObjectInspector valueOI;
         protected transient AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
 
+        // set for binary partials (see MapPartialCodec)
+        private PrimitiveTypeInfo binaryKeyType;
+        private boolean lz4;
+        private transient BinaryObjectInspector partialOI;
+        private transient MapPartialCodec.Writer writer;
+        private transient MapPartialCodec.Reader reader;
+        private transient boolean integralKeys;
+        private transient Text keyText;
+
         protected abstract PrimitiveObjectInspector getReturnValueType();
         protected abstract T getMapValue(Object map_value, PrimitiveObjectInspector poi);
+        protected abstract MapPartialCodec.ValueType getPartialValueType();
+        protected abstract T getPartialValue(MapPartialCodec.Reader reader);
+
+        void setBinaryPartials(PrimitiveTypeInfo keyType, boolean lz4) {
+            this.binaryKeyType = keyType;
+            this.lz4 = lz4;
+        }
 
         @Override
         public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
             super.init(mode, parameters);
 
-            mapOI = (StandardMapObjectInspector) parameters[0];
-            keyOI = (PrimitiveObjectInspector) mapOI.getMapKeyObjectInspector();
-            valueOI = (PrimitiveObjectInspector) mapOI.getMapValueObjectInspector();
+            if (binaryKeyType != null && (mode == Mode.PARTIAL2 || mode == Mode.FINAL)) {
+                partialOI = (BinaryObjectInspector) parameters[0];
+                keyOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(binaryKeyType);
+                reader = new MapPartialCodec.Reader();
+                keyText = new Text();
+            } else {
+                mapOI = (StandardMapObjectInspector) parameters[0];
+                keyOI = (PrimitiveObjectInspector) mapOI.getMapKeyObjectInspector();
+                valueOI = (PrimitiveObjectInspector) mapOI.getMapValueObjectInspector();
+            }
             keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI,
                     ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
+            integralKeys = MapPartialCodec.isIntegral(keyOI.getPrimitiveCategory());
 
+            if (binaryKeyType != null && (mode == Mode.PARTIAL1 || mode == Mode.PARTIAL2)) {
+                writer = new MapPartialCodec.Writer(integralKeys, getPartialValueType(), lz4);
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
             return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
                     getReturnValueType());
         }
@@ -155,6 +233,7 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
         @Override
         public void reset(AggregationBuffer ab) throws HiveException {
             ((AggBuffer<T>) ab).buffer.clear();
+            ((AggBuffer<T>) ab).entryBytes = 0;
         }
 
         @Override
@@ -165,7 +244,7 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
                 AggBuffer<T> agg = (AggBuffer<T>) ab;
                 Map<Object, Object> o = (Map<Object, Object>) mapOI.getMap(p);
                 if (!o.isEmpty()) {
-                    mapAppend(agg.buffer, o);
+                    mapAppend(agg, o);
                 }
             }
         }
@@ -173,15 +252,59 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
         @Override
         public Object terminatePartial(AggregationBuffer ab) throws HiveException {
             AggBuffer<T> agg = (AggBuffer<T>) ab;
+            if (writer != null) {
+                try {
+                    return writePartial(agg.buffer);
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+            }
             return Maps.newHashMap(agg.buffer);
         }
 
+        private Object writePartial(Map<Object, T> m) throws IOException {
+            boolean longValues = getPartialValueType() == MapPartialCodec.ValueType.LONG;
+            writer.reset();
+            for (Map.Entry<Object, T> entry : m.entrySet()) {
+                T value = entry.getValue();
+                if (value == null) {
+                    continue;
+                }
+                if (integralKeys) {
+                    long key = PrimitiveObjectInspectorUtils.getLong(entry.getKey(), keyOutputTypeOI);
+                    if (longValues) {
+                        writer.put(key, value.longValue());
+                    } else {
+                        writer.put(key, value.doubleValue());
+                    }
+                } else {
+                    Text key = (Text) entry.getKey();
+                    if (longValues) {
+                        writer.put(key.getBytes(), 0, key.getLength(), value.longValue());
+                    } else {
+                        writer.put(key.getBytes(), 0, key.getLength(), value.doubleValue());
+                    }
+                }
+            }
+            return writer.finish();
+        }
+
         @Override
         public void merge(AggregationBuffer ab, Object p) throws HiveException {
             AggBuffer<T> agg = (AggBuffer<T>) ab;
+            if (reader != null) {
+                if (p != null) {
+                    try {
+                        mergePartial(agg, partialOI.getPrimitiveWritableObject(p));
+                    } catch (IOException e) {
+                        throw new HiveException("Failed to read a binary partial", e);
+                    }
+                }
+                return;
+            }
             @SuppressWarnings("unchecked")
             Map<Object, Object> obj = (Map<Object, Object>) mapOI.getMap(p);
-            mapAppend(agg.buffer, obj);
+            mapAppend(agg, obj);
         }
 
         @Override
@@ -204,10 +327,36 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
             }
         }
 
-        protected void mapAppend(Map<Object, T> m, Map<Object, Object> from)  {
+        private void mergePartial(AggBuffer<T> agg, BytesWritable partial) throws IOException {
+            Map<Object, T> m = agg.buffer;
+            reader.reset(partial.getBytes(), 0, partial.getLength());
+            while (reader.next()) {
+                Object key;
+                if (integralKeys) {
+                    key = MapPartialCodec.integralWritable(keyOI.getPrimitiveCategory(), reader.getLongKey());
+                } else {
+                    keyText.set(reader.getKeyBytes(), reader.getKeyOffset(), reader.getKeyLength());
+                    key = keyText;
+                }
+                T value = getPartialValue(reader);
+                T current = m.get(key);
+                if (current != null) {
+                    m.put(key, add(current, value));
+                } else {
+                    if (key == keyText) {
+                        key = new Text(keyText);
+                    }
+                    agg.entryBytes += MemoryEstimates.of(key) + MemoryEstimates.ofPrimitiveObject();
+                    m.put(key, value);
+                }
+            }
+        }
+
+        protected void mapAppend(AggBuffer<T> agg, Map<Object, Object> from)  {
             if (from == null) {
                 return;
             }
+            Map<Object, T> m = agg.buffer;
             for(Map.Entry<Object, Object> entry : from.entrySet()) {
                 Object entry_key = entry.getKey();
                 Object entry_value = entry.getValue();
@@ -221,6 +370,8 @@ public class MergeMapsUDAF extends AbstractGenericUDAFResolver {
 
                 if (m.containsKey(key)) {
                     value = add(m.get(key), value);
+                } else {
+                    agg.entryBytes += MemoryEstimates.of(key) + MemoryEstimates.ofPrimitiveObject();
                 }
                 m.put(key, value);
             }
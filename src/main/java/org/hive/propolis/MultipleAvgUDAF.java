@@ -17,6 +17,7 @@ import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.hive.propolis.util.MemoryEstimates;
 
 import java.util.*;
 
@@ -127,7 +128,8 @@ public class MultipleAvgUDAF extends AbstractGenericUDAFResolver {
             }
         }
 
-        class ArrayAggregationBuffer implements AggregationBuffer {
+        @AggregationType(estimable = true)
+        class ArrayAggregationBuffer extends AbstractAggregationBuffer {
             List<LongWritable> counter;
             List<DoubleWritable> container;
 
@@ -135,6 +137,12 @@ public class MultipleAvgUDAF extends AbstractGenericUDAFResolver {
                 counter = new ArrayList<>();
                 container = new ArrayList<>();
             }
+
+            @Override
+            public int estimate() {
+                return MemoryEstimates.ofList(counter.size(), MemoryEstimates.ofPrimitiveObject())
+                        + MemoryEstimates.ofList(container.size(), MemoryEstimates.ofPrimitiveObject());
+            }
         }
 
         @Override
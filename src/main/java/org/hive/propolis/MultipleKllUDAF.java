@@ -0,0 +1,101 @@
+package org.hive.propolis;
+
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.hive.propolis.util.KllSketch;
+
+import java.util.*;
+
+import static org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory.*;
+
+
+@Description(name = "multiple_kll",
+        value = "_FUNC_[T <: Numeric](arg: T*): Array[Binary] - Builds a serialized KLL quantile sketch "
+                + "of each column",
+        extended = "\nThe multi-column counterpart of multiple_avg for quantiles: element i of the result"
+                + "\nsketches the values of column i (null if there are none). The sketches are the ones of"
+                + "\nkll_arrays: merge stored ones with kll_arrays and extract the quantiles with kll_quantile:\n"
+                + "\nUsage:\n"
+                + "> select dt, kll_quantile(_FUNC_(latency, size), 0.99) from requests group by dt\n"
+)
+
+public class MultipleKllUDAF extends AbstractGenericUDAFResolver {
+
+    static final Log LOG = LogFactory.getLog(MultipleKllUDAF.class.getName());
+
+    public MultipleKllUDAF() {
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+            throws SemanticException {
+
+        if (parameters.length == 0) {
+            throw new UDFArgumentTypeException(0, "At least one column is expected.");
+        }
+
+        Set<PrimitiveObjectInspector.PrimitiveCategory> column_types = new HashSet<>();
+
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i,
+                        "Only primitive types are accepted but "
+                                + parameters[i].getTypeName() + " was passed as parameter " + (i + 1) + ".");
+            }
+            column_types.add(((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory());
+        }
+
+        Set<PrimitiveObjectInspector.PrimitiveCategory> work_types = new HashSet<>(
+                Arrays.asList(BYTE, SHORT, INT, LONG, TIMESTAMP, FLOAT, DOUBLE, VOID)
+        );
+
+        if (work_types.containsAll(column_types)) {
+            GenericUDAFKllMultipleColumns evaluator = new GenericUDAFKllMultipleColumns();
+            evaluator.setK(KllArraysUDAF.configuredK());
+            return evaluator;
+        } else {
+            throw new UDFArgumentTypeException(0, "All aggregation columns must be Numeric");
+        }
+    }
+
+
+    public static class GenericUDAFKllMultipleColumns extends KllArraysUDAF.AbstractKllEvaluator {
+
+        private static final long serialVersionUID = 1L;
+
+        // For PARTIAL1 and COMPLETE
+        private transient PrimitiveObjectInspector[] inputOIs;
+
+        @Override
+        protected void initInput(ObjectInspector[] parameters) throws HiveException {
+            inputOIs = new PrimitiveObjectInspector[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                inputOIs[i] = (PrimitiveObjectInspector) parameters[i];
+            }
+        }
+
+        @Override
+        public void iterate(AggregationBuffer agg, Object[] parameters)
+                throws HiveException {
+            // every column gets a sketch, so the result has an element per column
+            for (int i = 0; i < parameters.length; i++) {
+                KllSketch sketch = sketch(agg, i);
+                if (parameters[i] != null) {
+                    sketch.update(PrimitiveObjectInspectorUtils.getDouble(parameters[i], inputOIs[i]));
+                }
+            }
+        }
+    }
+}
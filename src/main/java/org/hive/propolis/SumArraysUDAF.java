@@ -9,22 +9,26 @@ import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.hive.propolis.util.ArrayAccumulator;
+import org.hive.propolis.util.ArraySums;
+import org.hive.propolis.util.MapPartialCodec;
 
 import java.util.ArrayList;
 import java.util.List;
 
 @Description(name = "Sum Arrays elements",
-        value = "_FUNC_[T <: Numeric](arg: Array[T]): Array[T] - Returns a new array with each element summed up."
+        value = "_FUNC_[T <: Numeric](arg: Array[T] | Map[Int, T]): Array[T] - Returns a new array with each element summed up.",
+        extended = "\nA map from positions to values is a sparse array, zero at the positions it does not have."
+                + "\nMostly zero arrays are summed (and shuffled) as their non-zero elements."
 )
 
 public class SumArraysUDAF extends AbstractGenericUDAFResolver {
@@ -43,20 +47,7 @@ public class SumArraysUDAF extends AbstractGenericUDAFResolver {
                     "Only one arguments are expected.");
         }
 
-        if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
-            throw new UDFArgumentTypeException(0,
-                    "Only list argument are accepted but "
-                            + parameters[0].getTypeName() + " was passed as parameter 1.");
-        }
-
-        TypeInfo elementTypeInfo = ((ListTypeInfo) parameters[0]).getListElementTypeInfo();
-
-        if (elementTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
-            throw new UDFArgumentTypeException(0,
-                    "Only primitive array are accepted but array of "
-                            + elementTypeInfo.getTypeName() + " was passed as parameter 1.");
-        }
-
+        TypeInfo elementTypeInfo = elementTypeInfo(parameters[0]);
 
         switch (((PrimitiveTypeInfo) elementTypeInfo).getPrimitiveCategory()) {
             case BYTE:
@@ -79,189 +70,140 @@ public class SumArraysUDAF extends AbstractGenericUDAFResolver {
         }
     }
 
-    public static class GenericUDAFSumLongArray extends GenericUDAFEvaluator {
-
-        private PrimitiveObjectInspector elementOI;
-        transient private ObjectInspectorConverters.Converter inputConverter;
-
-        @Override
-        public ObjectInspector init(Mode m, ObjectInspector[] parameters)
-                throws HiveException {
-            super.init(m, parameters);
-
-            elementOI = PrimitiveObjectInspectorFactory.javaLongObjectInspector;
-
-            inputConverter = ObjectInspectorConverters.getConverter(
-                    parameters[0],
-                    ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaLongObjectInspector
-                    )
-            );
-
-            return ObjectInspectorFactory.getStandardListObjectInspector(
-                    PrimitiveObjectInspectorFactory.writableLongObjectInspector
-            );
-        }
-
-        static class ArrayAggregationBuffer implements AggregationBuffer {
-            List<LongWritable> container;
-        }
-
-        @Override
-        public void reset(AggregationBuffer agg) throws HiveException {
-            ((ArrayAggregationBuffer) agg).container = new ArrayList<LongWritable>();
-        }
-
-        @Override
-        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            ArrayAggregationBuffer ret = new ArrayAggregationBuffer();
-            reset(ret);
-            return ret;
-        }
-
-        @Override
-        public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
-            assert (parameters.length == 1);
-            merge(agg, parameters[0]);
-        }
-
-        @Override
-        public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            return terminate(agg);
-        }
-
-        @Override
-        public void merge(AggregationBuffer agg, Object partial)
-                throws HiveException {
-
-            List<Object> p = (List<Object>) inputConverter.convert(partial);
-            if (p != null) {
-                ArrayAggregationBuffer myagg = (ArrayAggregationBuffer) agg;
-                sumArray(p, myagg);
+    /**
+     * The type of the values of an array, or of a map from positions to values (a sparse array).
+     */
+    static TypeInfo elementTypeInfo(TypeInfo parameter) throws UDFArgumentTypeException {
+        TypeInfo elementTypeInfo;
+        if (parameter.getCategory() == ObjectInspector.Category.LIST) {
+            elementTypeInfo = ((ListTypeInfo) parameter).getListElementTypeInfo();
+        } else if (parameter.getCategory() == ObjectInspector.Category.MAP) {
+            TypeInfo keyTypeInfo = ((MapTypeInfo) parameter).getMapKeyTypeInfo();
+            if (keyTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE
+                    || !MapPartialCodec.isIntegral(((PrimitiveTypeInfo) keyTypeInfo).getPrimitiveCategory())) {
+                throw new UDFArgumentTypeException(0,
+                        "Only maps with integral keys (positions) are accepted but "
+                                + parameter.getTypeName() + " was passed as parameter 1.");
             }
+            elementTypeInfo = ((MapTypeInfo) parameter).getMapValueTypeInfo();
+        } else {
+            throw new UDFArgumentTypeException(0,
+                    "Only list or map argument are accepted but "
+                            + parameter.getTypeName() + " was passed as parameter 1.");
         }
 
-        @Override
-        public Object terminate(AggregationBuffer agg) throws HiveException {
-            ArrayAggregationBuffer myagg = (ArrayAggregationBuffer) agg;
-            ArrayList<LongWritable> ret = new ArrayList<LongWritable>();
-            ret.addAll(myagg.container);
-            return ret;
-        }
-
-        private void sumArray(List<Object> p, ArrayAggregationBuffer myagg) {
-
-            int currentSize = myagg.container.size();
-
-            for (int i = 0; i < p.size(); i++) {
-                Object list_elem = p.get(i);
-                if (list_elem != null) {
-                    long v = PrimitiveObjectInspectorUtils.getLong(p.get(i), elementOI);
-                    if (i >= currentSize) {
-                        myagg.container.add(new LongWritable(v));
-                    } else {
-                        LongWritable current = myagg.container.get(i);
-                        current.set(current.get() + v);
-                    }
-                } else {
-                    if (i >= currentSize) {
-                        myagg.container.add(new LongWritable(0));
-                    }
-                }
-            }
+        if (elementTypeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "Only primitive array are accepted but array of "
+                            + elementTypeInfo.getTypeName() + " was passed as parameter 1.");
         }
+        return elementTypeInfo;
     }
 
-    public static class GenericUDAFSumDoubleArray extends GenericUDAFEvaluator {
+    /**
+     * Sums the arrays into an {@link ArraySums}, sparse while the arrays are mostly zeros.
+     */
+    public abstract static class AbstractSumArrayEvaluator extends GenericUDAFEvaluator {
 
-        private PrimitiveObjectInspector elementOI;
-        transient private ObjectInspectorConverters.Converter inputConverter;
+        // For PARTIAL1 and COMPLETE: the arrays or the maps
+        private transient ObjectInspector inputOI;
+        // For all modes
+        private transient ArrayAccumulator accumulator;
+
+        protected abstract boolean hasFloatingSums();
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters)
                 throws HiveException {
             super.init(m, parameters);
 
-            elementOI = PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
+            accumulator = new ArrayAccumulator(hasFloatingSums(), false);
 
-            inputConverter = ObjectInspectorConverters.getConverter(
-                    parameters[0],
-                    ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector
-                    )
-            );
+            if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+                inputOI = parameters[0];
+            } else {
+                accumulator.initPartial((StructObjectInspector) parameters[0]);
+            }
 
-            return ObjectInspectorFactory.getStandardListObjectInspector(
-                    PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                return accumulator.partialObjectInspector();
+            }
+            return ObjectInspectorFactory.getStandardListObjectInspector(hasFloatingSums()
+                    ? PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+                    : PrimitiveObjectInspectorFactory.writableLongObjectInspector
             );
         }
 
-        static class ArrayAggregationBuffer implements AggregationBuffer {
-            List<DoubleWritable> container;
+        @AggregationType(estimable = true)
+        static class ArrayAggregationBuffer extends AbstractAggregationBuffer {
+            ArraySums sums;
+
+            @Override
+            public int estimate() {
+                return sums.estimate();
+            }
         }
 
         @Override
         public void reset(AggregationBuffer agg) throws HiveException {
-            ((ArrayAggregationBuffer) agg).container = new ArrayList<DoubleWritable>();
+            ((ArrayAggregationBuffer) agg).sums.clear();
         }
 
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
             ArrayAggregationBuffer ret = new ArrayAggregationBuffer();
-            reset(ret);
+            ret.sums = accumulator.newSums();
             return ret;
         }
 
         @Override
         public void iterate(AggregationBuffer agg, Object[] parameters) throws HiveException {
             assert (parameters.length == 1);
-            merge(agg, parameters[0]);
+            if (parameters[0] != null) {
+                accumulator.add(((ArrayAggregationBuffer) agg).sums, parameters[0], inputOI);
+            }
         }
 
         @Override
         public Object terminatePartial(AggregationBuffer agg) throws HiveException {
-            return terminate(agg);
+            return accumulator.terminatePartial(((ArrayAggregationBuffer) agg).sums);
         }
 
         @Override
         public void merge(AggregationBuffer agg, Object partial)
                 throws HiveException {
-
-            List<Object> p = (List<Object>) inputConverter.convert(partial);
-            if (p != null) {
-                ArrayAggregationBuffer myagg = (ArrayAggregationBuffer) agg;
-                sumArray(p, myagg);
+            if (partial != null) {
+                accumulator.merge(((ArrayAggregationBuffer) agg).sums, partial);
             }
         }
 
         @Override
         public Object terminate(AggregationBuffer agg) throws HiveException {
-            ArrayAggregationBuffer myagg = (ArrayAggregationBuffer) agg;
-            ArrayList<DoubleWritable> ret = new ArrayList<DoubleWritable>();
-            ret.addAll(myagg.container);
+            ArraySums sums = ((ArrayAggregationBuffer) agg).sums;
+            sums.densify();
+            List<Object> ret = new ArrayList<>(sums.size());
+            for (int i = 0; i < sums.size(); i++) {
+                ret.add(hasFloatingSums()
+                        ? new DoubleWritable(sums.getDoubleSum(i))
+                        : new LongWritable(sums.getLongSum(i)));
+            }
             return ret;
         }
+    }
 
-        private void sumArray(List<Object> p, ArrayAggregationBuffer myagg) {
+    public static class GenericUDAFSumLongArray extends AbstractSumArrayEvaluator {
 
-            int currentSize = myagg.container.size();
+        @Override
+        protected boolean hasFloatingSums() {
+            return false;
+        }
+    }
 
-            for (int i = 0; i < p.size(); i++) {
-                Object list_elem = p.get(i);
-                if (list_elem != null) {
-                    double v = PrimitiveObjectInspectorUtils.getDouble(p.get(i), elementOI);
-                    if (i >= currentSize) {
-                        myagg.container.add(new DoubleWritable(v));
-                    } else {
-                        DoubleWritable current = myagg.container.get(i);
-                        current.set(current.get() + v);
-                    }
-                } else {
-                    if (i >= currentSize) {
-                        myagg.container.add(new DoubleWritable(0.0));
-                    }
-                }
-            }
+    public static class GenericUDAFSumDoubleArray extends AbstractSumArrayEvaluator {
+
+        @Override
+        protected boolean hasFloatingSums() {
+            return true;
         }
     }
 }
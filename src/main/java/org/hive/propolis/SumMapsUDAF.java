@@ -1,7 +1,6 @@
 package org.hive.propolis;
 
 
-import com.google.common.collect.Maps;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -10,25 +9,39 @@ import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.*;
 import org.apache.hadoop.hive.serde2.typeinfo.MapTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
-
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.hive.propolis.util.HeavyHitters;
+import org.hive.propolis.util.MapPartialCodec;
+import org.hive.propolis.util.SumMap;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 
 @Description(
         name = "Aggregate Maps in a group",
         value = "_FUNC_(input_map Map<U, Int>[, theta Int, mode String (STRICT|NOSTRICT)]): Map<U, Int>\n"
+                + "_FUNC_(input_map Map<U, T extends Numeric>, k Int, 'TOPK'): Map<U, T>\n"
                 + "-- aggregates (merges) Maps for each group, run describe extended for more details",
         extended = "\nFor a group of IDs, sums up maps values for common keys adding new ones if not exists."
                 + "\nNeeds either one or three arguments (the last two are optional)."
                 + "\nIf threshold theta and mode are given then the function keeps keys"
                 + "\nwith values >= theta in NOSTRICT mode and > theta in STRICT mode\n"
+                + "\nIn TOPK mode the function returns the k keys with the largest sums of positive values"
+                + "\n(other values are skipped) in memory bounded by k: a Misra-Gries summary of at most 2k keys."
+                + "\nThe sums returned are lower bounds, below the true sums by at most total / (k + 1).\n"
                 + "\nUsage:\n"
                 + "> select group_column, _FUNC_(map_column)\n"
                 + ">   from your_table\n"
@@ -37,6 +50,10 @@ import java.util.Map;
                 + "> select group_column, _FUNC_(map_column, theta, 'NOSTRICT')\n"
                 + ">   from your_table\n"
                 + ">  group by group_column\n"
+                + "\n or\n"
+                + "> select group_column, _FUNC_(map_column, 100, 'TOPK')\n"
+                + ">   from your_table\n"
+                + ">  group by group_column\n"
 )
 
 public class SumMapsUDAF extends AbstractGenericUDAFResolver {
@@ -47,8 +64,31 @@ public class SumMapsUDAF extends AbstractGenericUDAFResolver {
     static final Log LOG = LogFactory.getLog(SumMapsUDAF.class.getName());
 
     @Override
-    public GenericUDAFEvaluator getEvaluator(TypeInfo[] tis) throws SemanticException {
+    public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        ObjectInspector[] ois = info.getParameterObjectInspectors();
+        if (ois.length != 3 || !isTopKMode(ois[2])) {
+            return super.getEvaluator(info);
+        }
+
+        Object k = ois[1] instanceof ConstantObjectInspector
+                ? ((ConstantObjectInspector) ois[1]).getWritableConstantValue() : null;
+        if (!(k instanceof IntWritable) || ((IntWritable) k).get() < 1) {
+            throw new UDFArgumentTypeException(1, "The number of top keys must be a positive int constant");
+        }
+        AbstractMapGroupSumEvaluator evaluator = newSumEvaluator(mapType(info.getParameters()));
+        evaluator.setTopK(((IntWritable) k).get());
+        return evaluator;
+    }
+
+    private static boolean isTopKMode(ObjectInspector oi) {
+        if (!(oi instanceof ConstantObjectInspector)) {
+            return false;
+        }
+        Object mode = ((ConstantObjectInspector) oi).getWritableConstantValue();
+        return mode instanceof Text && mode.toString().equals("TOPK");
+    }
 
+    private static MapTypeInfo mapType(TypeInfo[] tis) throws SemanticException {
         if (tis[0].getCategory() != ObjectInspector.Category.MAP) {
             throw new UDFArgumentTypeException(0, "The first argument must by Map type");
         }
@@ -58,54 +98,169 @@ public class SumMapsUDAF extends AbstractGenericUDAFResolver {
         if (value_type.getCategory() != ObjectInspector.Category.PRIMITIVE) {
             throw new UDFArgumentTypeException(0, "Map value must by Primitive");
         }
+        return map_type;
+    }
 
+    private static AbstractMapGroupSumEvaluator newSumEvaluator(MapTypeInfo map_type) throws SemanticException {
+        TypeInfo value_type = map_type.getMapValueTypeInfo();
+        switch (((PrimitiveTypeInfo) value_type).getPrimitiveCategory()) {
+            case INT:
+                return new MapGroupSumEvaluator();
+            case LONG:
+                return new MapGroupLongSumEvaluator();
+            case FLOAT:
+                return new MapGroupFloatSumEvaluator();
+            case DOUBLE:
+                return new MapGroupDoubleSumEvaluator();
+            default:
+                throw new UDFArgumentTypeException(0,
+                        "Only numeric Map value type arguments are accepted but "
+                                + value_type.getTypeName() + " is passed.");
+        }
+    }
+
+    @Override
+    public GenericUDAFEvaluator getEvaluator(TypeInfo[] tis) throws SemanticException {
+
+        MapTypeInfo map_type = mapType(tis);
+
+        AbstractMapGroupSumEvaluator evaluator;
         if (tis.length == 1) {
-            switch (((PrimitiveTypeInfo) value_type).getPrimitiveCategory()) {
-                case INT:
-                    return new MapGroupSumEvaluator();
-                case LONG:
-                    return new MapGroupLongSumEvaluator();
-                case FLOAT:
-                    return new MapGroupFloatSumEvaluator();
-                case DOUBLE:
-                    return new MapGroupDoubleSumEvaluator();
-                default:
-                    throw new UDFArgumentTypeException(0,
-                            "Only numeric Map value type arguments are accepted but "
-                                    + value_type.getTypeName() + " is passed.");
-            }
+            evaluator = newSumEvaluator(map_type);
         }
         else if (tis.length == 3) {
-            return new MapGroupConstrainedSumEvaluator();
+            evaluator = new MapGroupConstrainedSumEvaluator();
         }
         else {
             throw new UDFArgumentTypeException(tis.length - 1, "Exactly one or three arguments is expected.");
         }
 
+        PrimitiveTypeInfo key_type = (PrimitiveTypeInfo) map_type.getMapKeyTypeInfo();
+        if (MapPartialCodec.isEnabled(MapPartialCodec.BINARY_PARTIALS_CONF)
+                && MapPartialCodec.isSupportedKey(key_type.getPrimitiveCategory())) {
+            evaluator.setBinaryPartials(key_type, MapPartialCodec.isEnabled(MapPartialCodec.LZ4_CONF));
+        }
+        return evaluator;
     }
 
-    // Int type
-    public static class MapGroupSumEvaluator extends GenericUDAFEvaluator {
-        private MapObjectInspector originalDataOI;
-        private IntObjectInspector valueOI;
-        private PrimitiveObjectInspector keyOI;
-        private AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
+    /**
+     * Sums up into a {@link SumMap}: the sums are primitive and updated in place, integral keys are
+     * held as primitive longs and other keys are copied only when they are new to the group.
+     *
+     * With binary partials (see {@link MapPartialCodec}) the partial results are binary blobs,
+     * written from and merged into the SumMap directly. The evaluator is serialized into the plan
+     * with the key type, which the binary partials do not carry.
+     *
+     * In TOPK mode the buffer is a {@link HeavyHitters} summary of at most 2k keys and the partial
+     * results are structs of the sums and the error offset of the summary.
+     */
+    public abstract static class AbstractMapGroupSumEvaluator extends GenericUDAFEvaluator implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected transient MapObjectInspector originalDataOI;
+        protected transient PrimitiveObjectInspector keyOI;
+        protected transient AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
+        private transient boolean integralKeys;
+
+        // set for binary partials
+        private PrimitiveTypeInfo binaryKeyType;
+        private boolean lz4;
+        private transient BinaryObjectInspector partialOI;
+        private transient MapPartialCodec.Writer writer;
+        private transient MapPartialCodec.Reader reader;
+        private transient Text keyText;
+
+        // set in TOPK mode
+        private int topK = 0;
+        private transient StructObjectInspector topKPartialOI;
+        private transient StructField sumsField;
+        private transient StructField offsetField;
+        private transient PrimitiveObjectInspector mapValueOI;
+
+        /**
+         * Checks the map value inspector (null when merging binary partials) and returns the inspector
+         * of the output values.
+         */
+        protected abstract ObjectInspector initValues(ObjectInspector valueOI);
+
+        protected abstract MapPartialCodec.ValueType getSumType();
+
+        void setBinaryPartials(PrimitiveTypeInfo keyType, boolean lz4) {
+            this.binaryKeyType = keyType;
+            this.lz4 = lz4;
+        }
+
+        void setTopK(int k) {
+            this.topK = k;
+        }
+
+        /**
+         * Adds a (non null) map value to the sum of an entry.
+         */
+        protected abstract void add(SumMap map, int entry, Object value);
+
+        /**
+         * The sum of an entry as an output value.
+         */
+        protected abstract Object getSum(SumMap map, int entry);
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
             super.init(m, parameters);
 
-            originalDataOI = (MapObjectInspector) parameters[0];
-            keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
-            valueOI = (IntObjectInspector) originalDataOI.getMapValueObjectInspector();
+            ObjectInspector valueOI = null;
+            if (binaryKeyType != null && (m == Mode.PARTIAL2 || m == Mode.FINAL)) {
+                partialOI = (BinaryObjectInspector) parameters[0];
+                keyOI = PrimitiveObjectInspectorFactory.getPrimitiveWritableObjectInspector(binaryKeyType);
+                reader = new MapPartialCodec.Reader();
+                keyText = new Text();
+            } else {
+                ObjectInspector mapOI = parameters[0];
+                if (topK > 0 && (m == Mode.PARTIAL2 || m == Mode.FINAL)) {
+                    topKPartialOI = (StructObjectInspector) parameters[0];
+                    sumsField = topKPartialOI.getStructFieldRef("sums");
+                    offsetField = topKPartialOI.getStructFieldRef("offset");
+                    mapOI = sumsField.getFieldObjectInspector();
+                }
+                originalDataOI = (MapObjectInspector) mapOI;
+                keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
+                valueOI = originalDataOI.getMapValueObjectInspector();
+                mapValueOI = (PrimitiveObjectInspector) valueOI;
+            }
             keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI,
                     ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
-            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
-                    PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+            switch (keyOI.getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    integralKeys = true;
+                    break;
+                default:
+                    integralKeys = false;
+            }
+            ObjectInspector sumOI = initValues(valueOI);
+
+            if (binaryKeyType != null && (m == Mode.PARTIAL1 || m == Mode.PARTIAL2)) {
+                writer = new MapPartialCodec.Writer(integralKeys, getSumType(), lz4);
+                return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+            }
+            ObjectInspector outputOI = ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI, sumOI);
+            if (topK > 0 && (m == Mode.PARTIAL1 || m == Mode.PARTIAL2)) {
+                return ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList("sums", "offset"),
+                        Arrays.asList(outputOI, PrimitiveObjectInspectorFactory.writableDoubleObjectInspector));
+            }
+            return outputOI;
         }
 
-        static class MapBuffer implements AggregationBuffer {
-            Map<Object, Integer> map = new HashMap<>();
+        @AggregationType(estimable = true)
+        static class MapBuffer extends AbstractAggregationBuffer {
+            SumMap map;
+
+            @Override
+            public int estimate() {
+                return map.estimate();
+            }
         }
 
         @Override
@@ -115,129 +270,81 @@ public class SumMapsUDAF extends AbstractGenericUDAFResolver {
 
         @Override
         public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            return new MapBuffer();
+            MapBuffer buffer = new MapBuffer();
+            boolean floatingSums = getSumType() != MapPartialCodec.ValueType.LONG;
+            buffer.map = topK > 0
+                    ? new HeavyHitters(topK, integralKeys, floatingSums) : new SumMap(integralKeys, floatingSums);
+            return buffer;
         }
 
-        private void mapAppend(Map<Object, Integer> m, Map<Object, Object> from)  {
+        protected void mapAppend(SumMap m, Map<?, ?> from)  {
             if (from == null) {
                 return;
             }
-            for(Map.Entry<Object, Object> entry : from.entrySet()) {
+            for (Map.Entry<?, ?> entry : from.entrySet()) {
                 Object entry_key = entry.getKey();
                 Object entry_value = entry.getValue();
 
                 if (entry_key == null || entry_value == null) {
                     continue;
                 }
-
-                Object key = keyOutputTypeOI.copyObject(keyOI.getPrimitiveWritableObject(entry.getKey()));
-                Integer value = valueOI.get(entry_value);
-
-                if (m.containsKey(key)) {
-                    value += m.get(key);
+                if (topK > 0 && PrimitiveObjectInspectorUtils.getDouble(entry_value, mapValueOI) <= 0) {
+                    continue;
                 }
-                m.put(key, value);
-            }
-        }
 
-        @Override
-        public void iterate(AggregationBuffer ab, Object[] parameters)  throws HiveException {
-            assert (parameters.length == 1);
-            Object p = parameters[0];
-            if (p != null) {
-                MapBuffer agg = (MapBuffer) ab;
-                Map<Object, Object> o = (Map<Object, Object>) this.originalDataOI.getMap(p);
-                if (!o.isEmpty()) {
-                    mapAppend(agg.map, o);
+                int i;
+                if (integralKeys) {
+                    i = m.entry(PrimitiveObjectInspectorUtils.getLong(entry_key, keyOI));
+                } else {
+                    Object key = keyOI.getPrimitiveWritableObject(entry_key);
+                    i = m.find(key);
+                    if (i < 0) {
+                        i = m.insert(keyOutputTypeOI.copyObject(key));
+                    }
                 }
+                add(m, i, entry_value);
             }
         }
 
-        @Override
-        public Object terminatePartial(AggregationBuffer ab) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
-        }
-
-        @Override
-        public void merge(AggregationBuffer ab, Object p) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> obj = (Map<Object, Object>) this.originalDataOI.getMap(p);
-            mapAppend(agg.map, obj);
-        }
-
-        @Override
-        public Object terminate(AggregationBuffer ab)  throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
-        }
-    }
-
-    // Long type:
-    public static class MapGroupLongSumEvaluator extends GenericUDAFEvaluator {
-        private MapObjectInspector originalDataOI;
-        private LongObjectInspector valueOI;
-        private PrimitiveObjectInspector keyOI;
-        private AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
-
-        @Override
-        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
-            super.init(m, parameters);
-
-            originalDataOI = (MapObjectInspector) parameters[0];
-            keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
-            valueOI = (LongObjectInspector) originalDataOI.getMapValueObjectInspector();
-            keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI,
-                    ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
-            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
-                    PrimitiveObjectInspectorFactory.javaLongObjectInspector);
-        }
-
-        static class MapBuffer implements AggregationBuffer {
-            Map<Object, Long> map = new HashMap<>();
-        }
-
-        @Override
-        public void reset(AggregationBuffer ab) throws HiveException {
-            ((MapBuffer) ab).map.clear();
+        protected Object getKey(SumMap m, int entry) {
+            if (!integralKeys) {
+                return m.getKey(entry);
+            }
+            return MapPartialCodec.integralWritable(keyOI.getPrimitiveCategory(), m.getLongKey(entry));
         }
 
-        @Override
-        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            return new MapBuffer();
+        /**
+         * Whether an entry goes to the final output.
+         */
+        protected boolean isOutput(SumMap m, int entry) {
+            return true;
         }
 
-        protected void mapAppend(Map<Object, Long> m, Map<Object, Object> from)  {
-            if (from == null) {
-                return;
-            }
-            for(Map.Entry<Object, Object> entry : from.entrySet()) {
-                Object entry_key = entry.getKey();
-                Object entry_value = entry.getValue();
-
-                if (entry_key == null || entry_value == null) {
-                    continue;
+        protected Map<Object, Object> toMap(SumMap m, boolean all) {
+            Map<Object, Object> output = new HashMap<>(Math.max(16, (int) (m.size() / 0.75f) + 1));
+            for (int i = 0; i < m.size(); i++) {
+                if (all || isOutput(m, i)) {
+                    output.put(getKey(m, i), getSum(m, i));
                 }
+            }
+            return output;
+        }
 
-                Object key = keyOutputTypeOI.copyObject(keyOI.getPrimitiveWritableObject(entry.getKey()));
-                Long value = valueOI.get(entry_value);
-
-                if (m.containsKey(key)) {
-                    value += m.get(key);
-                }
-                m.put(key, value);
+        protected Map<Object, Object> toMap(SumMap m, int[] entries) {
+            Map<Object, Object> output = new HashMap<>(Math.max(16, (int) (entries.length / 0.75f) + 1));
+            for (int i : entries) {
+                output.put(getKey(m, i), getSum(m, i));
             }
+            return output;
         }
 
         @Override
         public void iterate(AggregationBuffer ab, Object[] parameters)  throws HiveException {
-            assert (parameters.length == 1);
             Object p = parameters[0];
             if (p != null) {
                 MapBuffer agg = (MapBuffer) ab;
-                Map<Object, Object> o = (Map<Object, Object>) this.originalDataOI.getMap(p);
-                if (!o.isEmpty()) {
+                Map<?, ?> o = this.originalDataOI.getMap(p);
+                if (o != null && !o.isEmpty()) {
                     mapAppend(agg.map, o);
                 }
             }
@@ -246,217 +353,223 @@ public class SumMapsUDAF extends AbstractGenericUDAFResolver {
         @Override
         public Object terminatePartial(AggregationBuffer ab) throws HiveException {
             MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+            if (topK > 0) {
+                return new Object[] {toMap(agg.map, true), new DoubleWritable(((HeavyHitters) agg.map).getOffset())};
+            }
+            if (writer != null) {
+                try {
+                    return writePartial(agg.map);
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                }
+            }
+            return toMap(agg.map, true);
+        }
+
+        private Object writePartial(SumMap m) throws IOException {
+            boolean longSums = getSumType() == MapPartialCodec.ValueType.LONG;
+            writer.reset();
+            for (int i = 0; i < m.size(); i++) {
+                if (integralKeys && longSums) {
+                    writer.put(m.getLongKey(i), m.getLongSum(i));
+                } else if (integralKeys) {
+                    writer.put(m.getLongKey(i), m.getDoubleSum(i));
+                } else {
+                    Text key = (Text) m.getKey(i);
+                    if (longSums) {
+                        writer.put(key.getBytes(), 0, key.getLength(), m.getLongSum(i));
+                    } else {
+                        writer.put(key.getBytes(), 0, key.getLength(), m.getDoubleSum(i));
+                    }
+                }
+            }
+            return writer.finish();
         }
 
         @Override
         public void merge(AggregationBuffer ab, Object p) throws HiveException {
             MapBuffer agg = (MapBuffer) ab;
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> obj = (Map<Object, Object>) this.originalDataOI.getMap(p);
-            mapAppend(agg.map, obj);
+            if (reader != null) {
+                if (p != null) {
+                    try {
+                        mergePartial(agg.map, partialOI.getPrimitiveWritableObject(p));
+                    } catch (IOException e) {
+                        throw new HiveException("Failed to read a binary partial", e);
+                    }
+                }
+                return;
+            }
+            if (topKPartialOI != null) {
+                if (p != null) {
+                    mapAppend(agg.map, originalDataOI.getMap(topKPartialOI.getStructFieldData(p, sumsField)));
+                    Object offset = topKPartialOI.getStructFieldData(p, offsetField);
+                    ((HeavyHitters) agg.map).addOffset(PrimitiveObjectInspectorUtils.getDouble(offset,
+                            (PrimitiveObjectInspector) offsetField.getFieldObjectInspector()));
+                }
+                return;
+            }
+            mapAppend(agg.map, this.originalDataOI.getMap(p));
+        }
+
+        private void mergePartial(SumMap m, BytesWritable partial) throws IOException {
+            MapPartialCodec.ValueType sumType = getSumType();
+            reader.reset(partial.getBytes(), 0, partial.getLength());
+            while (reader.next()) {
+                int i;
+                if (integralKeys) {
+                    i = m.entry(reader.getLongKey());
+                } else {
+                    keyText.set(reader.getKeyBytes(), reader.getKeyOffset(), reader.getKeyLength());
+                    i = m.find(keyText);
+                    if (i < 0) {
+                        i = m.insert(new Text(keyText));
+                    }
+                }
+                switch (sumType) {
+                    case LONG:
+                        m.add(i, reader.getLongValue());
+                        break;
+                    case FLOAT:
+                        m.add(i, reader.getFloatValue());
+                        break;
+                    default:
+                        m.add(i, reader.getDoubleValue());
+                }
+            }
         }
 
         @Override
         public Object terminate(AggregationBuffer ab)  throws HiveException {
             MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+            if (topK > 0) {
+                return toMap(agg.map, ((HeavyHitters) agg.map).top());
+            }
+            return toMap(agg.map, false);
         }
     }
 
-    // Float type:
-    public static class MapGroupFloatSumEvaluator extends GenericUDAFEvaluator {
-        private MapObjectInspector originalDataOI;
-        private FloatObjectInspector valueOI;
-        private PrimitiveObjectInspector keyOI;
-        private AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
+    // Int type
+    public static class MapGroupSumEvaluator extends AbstractMapGroupSumEvaluator {
+        private static final long serialVersionUID = 1L;
 
-        @Override
-        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
-            super.init(m, parameters);
+        private transient IntObjectInspector valueOI;
 
-            originalDataOI = (MapObjectInspector) parameters[0];
-            keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
-            valueOI = (FloatObjectInspector) originalDataOI.getMapValueObjectInspector();
-            keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI,
-                    ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
-            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
-                    PrimitiveObjectInspectorFactory.javaFloatObjectInspector);
+        @Override
+        protected ObjectInspector initValues(ObjectInspector valueOI) {
+            this.valueOI = (IntObjectInspector) valueOI;
+            return PrimitiveObjectInspectorFactory.javaIntObjectInspector;
         }
 
-        static class MapBuffer implements AggregationBuffer {
-            Map<Object, Float> map = new HashMap<>();
+        @Override
+        protected MapPartialCodec.ValueType getSumType() {
+            return MapPartialCodec.ValueType.LONG;
         }
 
         @Override
-        public void reset(AggregationBuffer ab) throws HiveException {
-            ((MapBuffer) ab).map.clear();
+        protected void add(SumMap map, int entry, Object value) {
+            map.add(entry, (long) valueOI.get(value));
         }
 
         @Override
-        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            return new MapBuffer();
+        protected Object getSum(SumMap map, int entry) {
+            // int overflow wraps around as with Integer sums
+            return (int) map.getLongSum(entry);
         }
+    }
 
-        protected void mapAppend(Map<Object, Float> m, Map<Object, Object> from)  {
-            if (from == null) {
-                return;
-            }
-            for(Map.Entry<Object, Object> entry : from.entrySet()) {
-                Object entry_key = entry.getKey();
-                Object entry_value = entry.getValue();
-
-                if (entry_key == null || entry_value == null) {
-                    continue;
-                }
-
-                Object key = keyOutputTypeOI.copyObject(keyOI.getPrimitiveWritableObject(entry.getKey()));
-                Float value = valueOI.get(entry_value);
+    // Long type:
+    public static class MapGroupLongSumEvaluator extends AbstractMapGroupSumEvaluator {
+        private static final long serialVersionUID = 1L;
 
-                if (m.containsKey(key)) {
-                    value += m.get(key);
-                }
-                m.put(key, value);
-            }
-        }
+        private transient LongObjectInspector valueOI;
 
         @Override
-        public void iterate(AggregationBuffer ab, Object[] parameters)  throws HiveException {
-            assert (parameters.length == 1);
-            Object p = parameters[0];
-            if (p != null) {
-                MapBuffer agg = (MapBuffer) ab;
-                Map<Object, Object> o = (Map<Object, Object>) this.originalDataOI.getMap(p);
-                if (!o.isEmpty()) {
-                    mapAppend(agg.map, o);
-                }
-            }
+        protected ObjectInspector initValues(ObjectInspector valueOI) {
+            this.valueOI = (LongObjectInspector) valueOI;
+            return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
         }
 
         @Override
-        public Object terminatePartial(AggregationBuffer ab) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+        protected MapPartialCodec.ValueType getSumType() {
+            return MapPartialCodec.ValueType.LONG;
         }
 
         @Override
-        public void merge(AggregationBuffer ab, Object p) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> obj = (Map<Object, Object>) this.originalDataOI.getMap(p);
-            mapAppend(agg.map, obj);
+        protected void add(SumMap map, int entry, Object value) {
+            map.add(entry, valueOI.get(value));
         }
 
         @Override
-        public Object terminate(AggregationBuffer ab)  throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+        protected Object getSum(SumMap map, int entry) {
+            return map.getLongSum(entry);
         }
     }
 
-    // Double type:
-    public static class MapGroupDoubleSumEvaluator extends GenericUDAFEvaluator {
-        private MapObjectInspector originalDataOI;
-        private DoubleObjectInspector valueOI;
-        private PrimitiveObjectInspector keyOI;
-        private AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
+    // Float type:
+    public static class MapGroupFloatSumEvaluator extends AbstractMapGroupSumEvaluator {
+        private static final long serialVersionUID = 1L;
 
-        @Override
-        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
-            super.init(m, parameters);
+        private transient FloatObjectInspector valueOI;
 
-            originalDataOI = (MapObjectInspector) parameters[0];
-            keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
-            valueOI = (DoubleObjectInspector) originalDataOI.getMapValueObjectInspector();
-            keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI,
-                    ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
-            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
-                    PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
+        @Override
+        protected ObjectInspector initValues(ObjectInspector valueOI) {
+            this.valueOI = (FloatObjectInspector) valueOI;
+            return PrimitiveObjectInspectorFactory.javaFloatObjectInspector;
         }
 
-        static class MapBuffer implements AggregationBuffer {
-            Map<Object, Double> map = new HashMap<>();
+        @Override
+        protected MapPartialCodec.ValueType getSumType() {
+            return MapPartialCodec.ValueType.FLOAT;
         }
 
         @Override
-        public void reset(AggregationBuffer ab) throws HiveException {
-            ((MapBuffer) ab).map.clear();
+        protected void add(SumMap map, int entry, Object value) {
+            map.add(entry, valueOI.get(value));
         }
 
         @Override
-        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            return new MapBuffer();
+        protected Object getSum(SumMap map, int entry) {
+            return (float) map.getDoubleSum(entry);
         }
+    }
 
-        protected void mapAppend(Map<Object, Double> m, Map<Object, Object> from)  {
-            if (from == null) {
-                return;
-            }
-            for(Map.Entry<Object, Object> entry : from.entrySet()) {
-                Object entry_key = entry.getKey();
-                Object entry_value = entry.getValue();
-
-                if (entry_key == null || entry_value == null) {
-                    continue;
-                }
+    // Double type:
+    public static class MapGroupDoubleSumEvaluator extends AbstractMapGroupSumEvaluator {
+        private static final long serialVersionUID = 1L;
 
-                Object key = keyOutputTypeOI.copyObject(keyOI.getPrimitiveWritableObject(entry.getKey()));
-                Double value = valueOI.get(entry_value);
-
-                if (m.containsKey(key)) {
-                    value += m.get(key);
-                }
-                m.put(key, value);
-            }
-        }
+        private transient DoubleObjectInspector valueOI;
 
         @Override
-        public void iterate(AggregationBuffer ab, Object[] parameters)  throws HiveException {
-            assert (parameters.length == 1);
-            Object p = parameters[0];
-            if (p != null) {
-                MapBuffer agg = (MapBuffer) ab;
-                Map<Object, Object> o = (Map<Object, Object>) this.originalDataOI.getMap(p);
-                if (!o.isEmpty()) {
-                    mapAppend(agg.map, o);
-                }
-            }
+        protected ObjectInspector initValues(ObjectInspector valueOI) {
+            this.valueOI = (DoubleObjectInspector) valueOI;
+            return PrimitiveObjectInspectorFactory.javaDoubleObjectInspector;
         }
 
         @Override
-        public Object terminatePartial(AggregationBuffer ab) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+        protected MapPartialCodec.ValueType getSumType() {
+            return MapPartialCodec.ValueType.DOUBLE;
         }
 
         @Override
-        public void merge(AggregationBuffer ab, Object p) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> obj = (Map<Object, Object>) this.originalDataOI.getMap(p);
-            mapAppend(agg.map, obj);
+        protected void add(SumMap map, int entry, Object value) {
+            map.add(entry, valueOI.get(value));
         }
 
         @Override
-        public Object terminate(AggregationBuffer ab)  throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
+        protected Object getSum(SumMap map, int entry) {
+            return map.getDoubleSum(entry);
         }
     }
 
 
     // ////////////////////////// With threshold on Map values ////////////////////////// //
 
-    public static class MapGroupConstrainedSumEvaluator extends GenericUDAFEvaluator {
-        private MapObjectInspector originalDataOI;
-        private IntObjectInspector valueOI;
-        private PrimitiveObjectInspector keyOI;
-        private AbstractPrimitiveWritableObjectInspector keyOutputTypeOI;
+    public static class MapGroupConstrainedSumEvaluator extends MapGroupSumEvaluator {
+        private static final long serialVersionUID = 1L;
+
 
         @Override
         public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
-            super.init(m, parameters);
-
             if (parameters.length == 3) {
                 WritableConstantIntObjectInspector thetaOI = (WritableConstantIntObjectInspector) parameters[1];
                 theta = thetaOI.getWritableConstantValue().get();
@@ -467,101 +580,23 @@ public class SumMapsUDAF extends AbstractGenericUDAFResolver {
                     throw new HiveException("The third argument must be equal [STRICT|NOSTRICT]");
                 }
             }
-
-            originalDataOI = (MapObjectInspector) parameters[0];
-            keyOI = (PrimitiveObjectInspector) originalDataOI.getMapKeyObjectInspector();
-            valueOI = (IntObjectInspector) originalDataOI.getMapValueObjectInspector();
-            keyOutputTypeOI = (AbstractPrimitiveWritableObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(keyOI,
-                    ObjectInspectorUtils.ObjectInspectorCopyOption.WRITABLE);
-            return ObjectInspectorFactory.getStandardMapObjectInspector(keyOutputTypeOI,
-                    PrimitiveObjectInspectorFactory.javaIntObjectInspector);
-        }
-
-        static class MapBuffer implements AggregationBuffer {
-            Map<Object, Integer> map = new HashMap<Object, Integer>();
+            return super.init(m, parameters);
         }
 
         @Override
-        public void reset(AggregationBuffer ab) throws HiveException {
-            ((MapBuffer) ab).map.clear();
-        }
-
-        @Override
-        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
-            return new MapBuffer();
-        }
-
-        protected void mapAppend(Map<Object, Integer> m, Map<Object, Object> from)  {
-            if (from == null) {
-                return;
+        protected boolean isOutput(SumMap m, int entry) {
+            int value = (int) m.getLongSum(entry);
+            if (sign.equals("STRICT")) {
+                return value > theta;
             }
-
-            for(Map.Entry<Object, Object> entry : from.entrySet()) {
-                final Object entry_key = entry.getKey();
-                final Object entry_value = entry.getValue();
-
-                if (entry_key == null || entry_value == null) {
-                    continue;
-                }
-
-                final Object key = keyOutputTypeOI.copyObject(keyOI.getPrimitiveWritableObject(entry_key));
-                Integer value = valueOI.get(entry_value);
-
-                if (m.containsKey(key)) {
-                    value += m.get(key);
-                }
-                m.put(key, value);
-            }
-        }
-
-        protected void clearBuffer(Map<Object, Integer> buf_map) {
-            Iterator it = buf_map.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<Object, Integer> entry = (Map.Entry<Object, Integer>) it.next();
-                Integer value = entry.getValue();
-                if (sign.equals("STRICT")) {
-                    if (value <= theta) it.remove();
-                }
-                else {
-                    if (value < theta) it.remove();
-                }
-            }
-        }
-
-        @Override
-        public void iterate(AggregationBuffer ab, Object[] parameters)  throws HiveException {
-            assert (parameters.length == 3);
-            Object p = parameters[0];
-            if (p != null) {
-                MapBuffer agg = (MapBuffer) ab;
-                Map<Object, Object> o = (Map<Object, Object>) this.originalDataOI.getMap(p);
-
-                if (!o.isEmpty()) {
-                    mapAppend(agg.map, o);
-                }
+            else {
+                return value >= theta;
             }
         }
 
-        @Override
-        public Object terminatePartial(AggregationBuffer ab) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            return Maps.newHashMap(agg.map);
-        }
-
-        @Override
-        public void merge(AggregationBuffer ab, Object p) throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            @SuppressWarnings("unchecked")
-            Map<Object, Object> obj = (Map<Object, Object>) this.originalDataOI.getMap(p);
-            mapAppend(agg.map, obj);
-        }
-
         @Override
         public Object terminate(AggregationBuffer ab)  throws HiveException {
-            MapBuffer agg = (MapBuffer) ab;
-            clearBuffer(agg.map);
-
-            HashMap<Object, Integer> output = Maps.newHashMap(agg.map);
+            Map<Object, Object> output = (Map<Object, Object>) super.terminate(ab);
 
             if (output.isEmpty()) {
                 return null;
@@ -0,0 +1,70 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.hive.propolis.util.BloomFilters;
+
+import java.io.IOException;
+
+
+@Description(name = "hbase_batch_check_value",
+        value = "_FUNC_(key_col, hbase_tbl, family, column[, bloom_file]): (key String, value Boolean)"
+                + " - Batched version of hbase_check_value, see propolis.hbase.batch.size",
+        extended = "\nA bloom_file on HDFS has to be shipped with \"add file\" first")
+
+
+public class HBaseBatchCheckExistsUDTF extends HBaseBatchLookupUDTF {
+
+    private static final int NUM_ARGS = 4;
+    private static final int MAX_NUM_ARGS = 5;
+
+    private byte[] Hfamily;
+    private byte[] Hcolumn;
+    private String bloom_file;
+
+    @Override
+    protected String getFuncName() {
+        return "hbase_batch_check_value";
+    }
+
+    @Override
+    protected ObjectInspector initLookup(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != NUM_ARGS && arguments.length != MAX_NUM_ARGS) {
+            throw new UDFArgumentLengthException(
+                    "HBaseBatchCheckExists() accepts 4 or 5 arguments.");
+        }
+
+        Hfamily = getConstantString(arguments, 2).getBytes();
+        Hcolumn = getConstantString(arguments, 3).getBytes();
+        if (arguments.length == MAX_NUM_ARGS) {
+            bloom_file = getConstantString(arguments, 4);
+        }
+
+        return PrimitiveObjectInspectorFactory.javaBooleanObjectInspector;
+    }
+
+    @Override
+    protected BloomFilter loadRowFilter() throws IOException {
+        return bloom_file == null ? null : BloomFilters.load(bloom_file);
+    }
+
+    @Override
+    protected Get createGet(byte[] row) {
+        Get getter = new Get(row);
+        getter.addColumn(Hfamily, Hcolumn);
+        getter.setCheckExistenceOnly(true);
+        return getter;
+    }
+
+    @Override
+    protected Object decode(Result result) {
+        return result.getExists();
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+
+import java.io.IOException;
+
+
+@Description(name = "hbase_batch_get_family",
+        value = "_FUNC_(key_col, hbase_tbl, family[, map_value_type[, options]]): (key String, value Map<String, T>)"
+                + " - Batched version of hbase_get_family, see propolis.hbase.batch.size")
+
+
+public class HBaseBatchGetFamilyUDTF extends HBaseBatchLookupUDTF {
+
+    private byte[] Hfamily;
+    private HBaseValueType valueType;
+    private HBaseGetOptions options;
+    private transient HBaseCellDecoder decoder;
+
+    @Override
+    protected String getFuncName() {
+        return "hbase_batch_get_family";
+    }
+
+    @Override
+    protected ObjectInspector initLookup(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length < 3 || arguments.length > 5) {
+            throw new UDFArgumentLengthException(
+                    "HBaseBatchGetFamily() accepts 3 to 5 arguments.");
+        }
+
+        Hfamily = getConstantString(arguments, 2).getBytes();
+        valueType = arguments.length >= 4
+                ? HBaseValueType.of(getConstantString(arguments, 3))
+                : HBaseValueType.STRING;
+
+        if (arguments.length == 5) {
+            options = HBaseGetOptions.parse(getConstantString(arguments, 4));
+        }
+        decoder = new HBaseCellDecoder(valueType);
+        return decoder.getFamilyObjectInspector();
+    }
+
+    @Override
+    protected Get createGet(byte[] row) throws IOException {
+        Get getter = new Get(row);
+        getter.addFamily(Hfamily);
+        if (options != null) {
+            options.applyTo(getter);
+        }
+        return getter;
+    }
+
+    @Override
+    protected Object decode(Result result) throws IOException {
+        return decoder.decodeFamily(result, Hfamily);
+    }
+}
@@ -0,0 +1,58 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+
+@Description(name = "hbase_batch_get_value",
+        value = "_FUNC_(key_col, hbase_tbl, family, column): (key String, value String)"
+                + " - Batched version of hbase_get_value, see propolis.hbase.batch.size")
+
+
+public class HBaseBatchGetValueUDTF extends HBaseBatchLookupUDTF {
+
+    private static final int NUM_ARGS = 4;
+
+    private byte[] Hfamily;
+    private byte[] Hcolumn;
+
+    @Override
+    protected String getFuncName() {
+        return "hbase_batch_get_value";
+    }
+
+    @Override
+    protected ObjectInspector initLookup(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != NUM_ARGS) {
+            throw new UDFArgumentLengthException(
+                    "HBaseBatchGetValue() accepts exactly 4 arguments.");
+        }
+
+        Hfamily = getConstantString(arguments, 2).getBytes();
+        Hcolumn = getConstantString(arguments, 3).getBytes();
+
+        return PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+    }
+
+    @Override
+    protected Get createGet(byte[] row) {
+        Get getter = new Get(row);
+        getter.addColumn(Hfamily, Hcolumn);
+        return getter;
+    }
+
+    @Override
+    protected Object decode(Result result) {
+        byte[] value = result.getValue(Hfamily, Hcolumn);
+        if (value == null) {
+            return null;
+        }
+        return Bytes.toString(value);
+    }
+}
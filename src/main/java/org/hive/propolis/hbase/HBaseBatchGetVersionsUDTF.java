@@ -0,0 +1,69 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+
+import java.io.IOException;
+
+
+@Description(name = "hbase_batch_get_versions",
+        value = "_FUNC_(key_col, hbase_tbl, family, column[, value_type T[, options]]): (key String, value Array<T>)"
+                + " - Batched version of hbase_get_versions, see propolis.hbase.batch.size")
+
+
+public class HBaseBatchGetVersionsUDTF extends HBaseBatchLookupUDTF {
+
+    private byte[] Hfamily;
+    private byte[] Hcolumn;
+    private HBaseValueType valueType;
+    private HBaseGetOptions options;
+    private transient HBaseCellDecoder decoder;
+
+    @Override
+    protected String getFuncName() {
+        return "hbase_batch_get_versions";
+    }
+
+    @Override
+    protected ObjectInspector initLookup(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length < 4 || arguments.length > 6) {
+            throw new UDFArgumentLengthException(
+                    "HBaseBatchGetVersions() accepts 4 to 6 arguments.");
+        }
+
+        Hfamily = getConstantString(arguments, 2).getBytes();
+        Hcolumn = getConstantString(arguments, 3).getBytes();
+        valueType = arguments.length >= 5
+                ? HBaseValueType.of(getConstantString(arguments, 4))
+                : HBaseValueType.STRING;
+
+        if (arguments.length == 6) {
+            options = HBaseGetOptions.parse(getConstantString(arguments, 5));
+            options.rejectPaging("hbase_batch_get_versions");
+        }
+        decoder = new HBaseCellDecoder(valueType);
+        return decoder.getVersionsObjectInspector();
+    }
+
+    @Override
+    protected Get createGet(byte[] row) throws IOException {
+        Get getter = new Get(row);
+        getter.addColumn(Hfamily, Hcolumn);
+        if (options != null) {
+            getter.setMaxVersions(options.getMaxVersions(Integer.MAX_VALUE));
+            options.applyTo(getter);
+        } else {
+            getter.setMaxVersions();
+        }
+        return getter;
+    }
+
+    @Override
+    protected Object decode(Result result) throws IOException {
+        return decoder.decodeVersions(result);
+    }
+}
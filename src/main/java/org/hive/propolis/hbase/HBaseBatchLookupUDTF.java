@@ -0,0 +1,276 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.exec.*;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Base class for the batched counterparts of the hbase_* lookup functions.
+ *
+ * Row keys are buffered and sent to HBase as a single multi-get once
+ * propolis.hbase.batch.size keys are collected (and once more on close), so a lookup
+ * pays one round-trip per batch instead of one per row. Every non-null input key
+ * produces one (key, value) output row; null keys are skipped.
+ *
+ * With propolis.hbase.pipeline.depth > 1 up to that many batches are in flight at once on
+ * a small thread pool, so the network round-trips overlap with reading the next rows.
+ * Output rows are still emitted in input order.
+ *
+ * The rows of a batch are forwarded during a later process() call or in close(), not with their
+ * input row. Under LATERAL VIEW Hive joins the output to the current base row, so the output
+ * would silently get the columns of another row: use these functions in the select list only
+ * and join the output back to the table on the emitted key.
+ *
+ * Usage:
+ * > set propolis.hbase.batch.size=1000;
+ * > set propolis.hbase.pipeline.depth=4;
+ * > select hbase_batch_get_value(key_col, 'hbase_tbl', 'family', 'column') as (key, value)
+ * >   from your_table
+ */
+public abstract class HBaseBatchLookupUDTF extends GenericUDTF {
+
+    static final String BATCH_SIZE_CONF = "propolis.hbase.batch.size";
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final String PIPELINE_DEPTH_CONF = "propolis.hbase.pipeline.depth";
+    static final int DEFAULT_PIPELINE_DEPTH = 1;
+
+    private transient PrimitiveObjectInspector keyOI;
+
+    private transient Configuration config;
+    private transient HBaseTableHandle handle;
+
+    protected String table_name;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    private transient List<String> keys;
+    private transient List<Get> gets;
+    private transient Object[] forwardObj;
+
+    private transient ExecutorService executor;
+    private transient ArrayDeque<Batch> inFlight;
+
+    private static class Batch {
+        final List<String> keys;
+        final HBaseTableHandle.PendingGet pending;
+
+        Batch(List<String> keys, HBaseTableHandle.PendingGet pending) {
+            this.keys = keys;
+            this.pending = pending;
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseBatchLookupUDTF.class.getName());
+
+    /**
+     * Function name used in error messages.
+     */
+    protected abstract String getFuncName();
+
+    /**
+     * Validates the lookup arguments (everything after the key and table name)
+     * and returns the object inspector of the value column.
+     */
+    protected abstract ObjectInspector initLookup(ObjectInspector[] arguments) throws UDFArgumentException;
+
+    protected abstract Get createGet(byte[] row) throws IOException;
+
+    /**
+     * Bloom filter of the table's rows; the rows it rules out are answered without asking HBase.
+     */
+    protected BloomFilter loadRowFilter() throws IOException {
+        return null;
+    }
+
+    protected abstract Object decode(Result result) throws IOException;
+
+    @Override
+    public StructObjectInspector initialize(StructObjectInspector argOIs) throws UDFArgumentException {
+        List<? extends StructField> fields = argOIs.getAllStructFieldRefs();
+        ObjectInspector[] arguments = new ObjectInspector[fields.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = fields.get(i).getFieldObjectInspector();
+        }
+
+        if (arguments.length < 2) {
+            throw new UDFArgumentLengthException(
+                    getFuncName() + "() accepts at least 2 arguments.");
+        }
+
+        if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "The first argument must be Primitive, but "
+                            + arguments[0].getCategory().name()
+                            + " was passed.");
+        }
+
+        keyOI = (PrimitiveObjectInspector) arguments[0];
+        table_name = getConstantString(arguments, 1);
+
+        List<String> fieldNames = Arrays.asList("key", "value");
+        List<ObjectInspector> fieldOIs = Arrays.asList(
+                (ObjectInspector) PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                initLookup(arguments));
+
+        keys = new ArrayList<>();
+        gets = new ArrayList<>();
+        forwardObj = new Object[2];
+        inFlight = new ArrayDeque<>();
+
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    protected String getConstantString(ObjectInspector[] arguments, int i) throws UDFArgumentException {
+        if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE ||
+                ((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() !=
+                PrimitiveObjectInspector.PrimitiveCategory.STRING ||
+                !ObjectInspectorUtils.isConstantObjectInspector(arguments[i])) {
+            throw new UDFArgumentTypeException(i, "The " + (i + 1) + "th " +
+                    "argument of " + getFuncName() + "() must be a constant string but " +
+                    arguments[i].toString() + " was given.");
+        }
+        return ((ConstantObjectInspector) arguments[i]).getWritableConstantValue().toString();
+    }
+
+    @Override
+    public void configure(MapredContext context) {
+        super.configure(context);
+        this.config = HBaseConfiguration.create(context.getJobConf());
+        this.batchSize = Math.max(1, this.config.getInt(BATCH_SIZE_CONF, DEFAULT_BATCH_SIZE));
+        this.pipelineDepth = Math.max(1, this.config.getInt(PIPELINE_DEPTH_CONF, DEFAULT_PIPELINE_DEPTH));
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        Object keyObject = keyOI.getPrimitiveJavaObject(args[0]);
+        if (keyObject == null) {
+            return;
+        }
+
+        String key = keyObject.toString();
+        try {
+            gets.add(createGet(Bytes.toBytes(key)));
+        } catch (IOException e) {
+            throw new HiveException(e);
+        }
+        keys.add(key);
+
+        if (gets.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    HBaseTableHandle getHandle() throws IOException {
+        if (this.handle == null) {
+            if (this.config == null) {
+                LOG.warn("A Configuration object wasn't passed to us. Building our own HBaseConfiguration object, "
+                        + "but we may have mis-configurations if there are specific overrides passed into the query session");
+                this.config = HBaseConfiguration.create();
+            }
+            this.handle = new HBaseTableHandle(this.config, table_name);
+            this.handle.setRowFilter(loadRowFilter());
+        }
+        return this.handle;
+    }
+
+    ExecutorService getExecutor() {
+        if (this.executor == null) {
+            this.executor = Executors.newFixedThreadPool(pipelineDepth, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "propolis-hbase-lookup-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return this.executor;
+    }
+
+    /**
+     * Submits the buffered keys as one batch; blocks only when the pipeline is full.
+     */
+    private void flush() throws HiveException {
+        if (gets.isEmpty()) {
+            return;
+        }
+
+        try {
+            ExecutorService batchExecutor = pipelineDepth > 1 ? getExecutor() : null;
+            inFlight.add(new Batch(keys, getHandle().submit(gets, batchExecutor)));
+        } catch (IOException e) {
+            throw new HiveException("Failed to submit a batch of " + gets.size() + " rows to " + table_name, e);
+        }
+        keys = new ArrayList<>(batchSize);
+        gets = new ArrayList<>(batchSize);
+
+        while (!inFlight.isEmpty() && (inFlight.size() >= pipelineDepth || inFlight.peek().pending.isDone())) {
+            forwardBatch(inFlight.poll());
+        }
+    }
+
+    private void forwardBatch(Batch batch) throws HiveException {
+        Result[] results;
+        try {
+            results = batch.pending.await();
+        } catch (IOException e) {
+            throw new HiveException("Failed to fetch a batch of " + batch.keys.size() + " rows from " + table_name, e);
+        }
+
+        try {
+            for (int i = 0; i < results.length; i++) {
+                forwardObj[0] = batch.keys.get(i);
+                forwardObj[1] = decode(results[i]);
+                forward(forwardObj);
+            }
+        } catch (IOException e) {
+            throw new HiveException(e);
+        }
+    }
+
+    @Override
+    public void close() throws HiveException {
+        try {
+            flush();
+            while (!inFlight.isEmpty()) {
+                forwardBatch(inFlight.poll());
+            }
+        } finally {
+            if (this.executor != null) {
+                this.executor.shutdownNow();
+                this.executor = null;
+            }
+            if (this.handle != null) {
+                try {
+                    this.handle.close();
+                } catch (IOException e) {
+                    throw new HiveException(e);
+                } finally {
+                    this.handle = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellScanner;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Decodes the cells of a {@link Result} straight from their backing arrays into writables,
+ * without cloning qualifiers and values or building the intermediate family maps of {@link Result}.
+ *
+ * The returned map/list and the writables in it are reused by the next call, which is what
+ * Hive expects from a function's output. One decoder per function instance; not thread-safe.
+ */
+class HBaseCellDecoder {
+
+    private final HBaseValueType valueType;
+
+    private final List<Text> qualifiers = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+
+    private final Map<Text, Object> family = new HashMap<>();
+    private final List<Object> versions = new ArrayList<>();
+
+    HBaseCellDecoder(HBaseValueType valueType) {
+        this.valueType = valueType;
+    }
+
+    /**
+     * Map<String, T> output of {@link #decodeFamily}.
+     */
+    ObjectInspector getFamilyObjectInspector() {
+        return ObjectInspectorFactory.getStandardMapObjectInspector(
+                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                valueType.getObjectInspector());
+    }
+
+    /**
+     * Array<T> output of {@link #decodeVersions}.
+     */
+    ObjectInspector getVersionsObjectInspector() {
+        return ObjectInspectorFactory.getStandardListObjectInspector(valueType.getObjectInspector());
+    }
+
+    /**
+     * Qualifier to value map of the family, or null if the row is missing.
+     */
+    Map<Text, Object> decodeFamily(Result result, byte[] familyName) throws IOException {
+        if (result.isEmpty()) {
+            return null;
+        }
+
+        family.clear();
+        CellScanner scanner = result.cellScanner();
+        int i = 0;
+        while (scanner.advance()) {
+            Cell cell = scanner.current();
+            if (!CellUtil.matchingFamily(cell, familyName)) {
+                continue;
+            }
+            if (i == qualifiers.size()) {
+                qualifiers.add(new Text());
+            }
+            if (i == values.size()) {
+                values.add(valueType.newWritable());
+            }
+            Text qualifier = qualifiers.get(i);
+            Object value = values.get(i);
+            qualifier.set(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+            valueType.decode(cell, value);
+            // cells come in qualifier order, newest version first; keep the newest one
+            if (!family.containsKey(qualifier)) {
+                family.put(qualifier, value);
+                i++;
+            }
+        }
+        return family;
+    }
+
+    /**
+     * Values of all the cells of the result in their order (newest version first).
+     */
+    List<Object> decodeVersions(Result result) throws IOException {
+        versions.clear();
+        CellScanner scanner = result.cellScanner();
+        int i = 0;
+        while (scanner.advance()) {
+            if (i == values.size()) {
+                values.add(valueType.newWritable());
+            }
+            Object value = values.get(i++);
+            valueType.decode(scanner.current(), value);
+            versions.add(value);
+        }
+        return versions;
+    }
+}
@@ -15,6 +15,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.hive.propolis.util.BloomFilters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,20 +23,24 @@ import java.io.IOException;
 
 
 @Description(name = "hbase_check_value",
-        value = "_FUNC_(key_col, hbase_tbl, family, column): Boolean - Simple Hbase value checker")
+        value = "_FUNC_(key_col, hbase_tbl, family, column[, bloom_file]): Boolean - Simple Hbase value checker",
+        extended = "\nWith bloom_file (a filter of the table's row keys built by bloom_build, local or in the"
+                + "\ndistributed cache) the keys ruled out by the filter are answered false without asking HBase")
 
 public class HBaseCheckExistsUDF extends GenericUDF {
 
     private static final int NUM_ARGS = 4;
+    private static final int MAX_NUM_ARGS = 5;
 
     private transient PrimitiveObjectInspector keyOI;
 
-    private Configuration config;
-    private Connection connection;
+    private transient Configuration config;
+    private transient HBaseTableHandle handle;
 
-    private static String table_name;
-    private static byte[] Hfamily;
-    private static byte[] Hcolumn;
+    private String table_name;
+    private byte[] Hfamily;
+    private byte[] Hcolumn;
+    private String bloom_file;
 
     private transient PrimitiveObjectInspectorConverter.TextConverter converter;
 
@@ -44,9 +49,9 @@ public class HBaseCheckExistsUDF extends GenericUDF {
     @Override
     public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
 
-        if (arguments.length != NUM_ARGS) {
+        if (arguments.length != NUM_ARGS && arguments.length != MAX_NUM_ARGS) {
             throw new UDFArgumentLengthException(
-                    "HBaseGetValue() accepts exactly 4 arguments.");
+                    "HBaseGetValue() accepts 4 or 5 arguments.");
         }
 
         if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
@@ -58,7 +63,7 @@ public class HBaseCheckExistsUDF extends GenericUDF {
 
         keyOI = (PrimitiveObjectInspector) arguments[0];
 
-        for (int i = 1; i <= NUM_ARGS-1; ++i) {
+        for (int i = 1; i <= arguments.length-1; ++i) {
             if (((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() !=
                     PrimitiveObjectInspector.PrimitiveCategory.STRING ||
                     !ObjectInspectorUtils.isConstantObjectInspector(arguments[i])) {
@@ -71,6 +76,9 @@ public class HBaseCheckExistsUDF extends GenericUDF {
         table_name = ((ConstantObjectInspector) arguments[1]).getWritableConstantValue().toString();
         Hfamily = ((ConstantObjectInspector) arguments[2]).getWritableConstantValue().toString().getBytes();
         Hcolumn = ((ConstantObjectInspector) arguments[3]).getWritableConstantValue().toString().getBytes();
+        if (arguments.length == MAX_NUM_ARGS) {
+            bloom_file = ((ConstantObjectInspector) arguments[4]).getWritableConstantValue().toString();
+        }
 
         return PrimitiveObjectInspectorFactory.javaBooleanObjectInspector;
     }
@@ -79,12 +87,6 @@ public class HBaseCheckExistsUDF extends GenericUDF {
     public void configure(MapredContext context) {
         super.configure(context);
         this.config = HBaseConfiguration.create(context.getJobConf());
-        try {
-            LOG.warn("[configure] Creating new connection");
-            this.connection = ConnectionFactory.createConnection(this.config);
-        } catch (IOException ioException) {
-            throw new RuntimeException("Failed to open a connection to HBase", ioException);
-        }
     }
 
     @Override
@@ -110,18 +112,19 @@ public class HBaseCheckExistsUDF extends GenericUDF {
         getter.addColumn(Hfamily, Hcolumn);
         getter.setCheckExistenceOnly(true);
 
-        if (this.connection == null) {
-            try {
-                LOG.warn(">>> Creating new connection");
-                this.connection = ConnectionFactory.createConnection(this.config);
-            } catch (IOException ioException) {
-                throw new HiveException("Failed to open a connection to HBase", ioException);
+        if (this.handle == null) {
+            this.handle = new HBaseTableHandle(this.config, table_name);
+            if (bloom_file != null) {
+                try {
+                    this.handle.setRowFilter(BloomFilters.load(bloom_file));
+                } catch (IOException e) {
+                    throw new HiveException("Failed to load Bloom filter " + bloom_file, e);
+                }
             }
         }
 
         try {
-            Table table = this.connection.getTable(TableName.valueOf(table_name));
-            Result result = table.get(getter);
+            Result result = this.handle.get(getter);
 
             return result.getExists();
         } catch (IOException e) {
@@ -129,17 +132,26 @@ public class HBaseCheckExistsUDF extends GenericUDF {
         }
     }
 
+    @Override
+    public String[] getRequiredFiles() {
+        if (bloom_file == null) {
+            return null;
+        }
+        return new String[]{bloom_file};
+    }
+
     @Override
     public String getDisplayString(String[] children) {
-        assert (children.length == NUM_ARGS);
+        assert (children.length == NUM_ARGS || children.length == MAX_NUM_ARGS);
         return getStandardDisplayString("hbase_check_value", children);
     }
 
     @Override
     public void close() throws IOException {
         super.close();
-        if (this.connection != null) {
-            this.connection.close();
+        if (this.handle != null) {
+            this.handle.close();
+            this.handle = null;
         }
     }
 }
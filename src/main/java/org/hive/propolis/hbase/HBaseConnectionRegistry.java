@@ -0,0 +1,91 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+
+/**
+ * JVM-wide registry of the HBase connections used by the hbase_* functions.
+ *
+ * Connections are keyed by the effective HBase configuration (all hbase.* and zookeeper.*
+ * properties plus the current user), so every function instance of a task - and of the
+ * following tasks when the JVM is reused - shares one connection, one ZooKeeper session and
+ * one region location cache. Connections are never closed by the functions: they stay open
+ * for the next task and are closed on JVM shutdown.
+ */
+public final class HBaseConnectionRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseConnectionRegistry.class.getName());
+
+    private static final Map<String, Connection> connections = new HashMap<>();
+    private static boolean shutdownHookAdded = false;
+
+    private HBaseConnectionRegistry() {
+    }
+
+    /**
+     * Returns the shared connection for the given configuration, opening it on first use.
+     */
+    public static synchronized Connection get(Configuration config) throws IOException {
+        String key = keyOf(config);
+        Connection connection = connections.get(key);
+
+        if (connection != null && (connection.isClosed() || connection.isAborted())) {
+            LOG.warn("Dropping closed HBase connection");
+            connections.remove(key);
+            connection = null;
+        }
+
+        if (connection == null) {
+            LOG.warn("Creating new shared HBase connection");
+            connection = ConnectionFactory.createConnection(config);
+            connections.put(key, connection);
+            addShutdownHook();
+        }
+        return connection;
+    }
+
+    static String keyOf(Configuration config) throws IOException {
+        SortedMap<String, String> properties = new TreeMap<>();
+        for (Map.Entry<String, String> property : config) {
+            String name = property.getKey();
+            if (name.startsWith("hbase.") || name.startsWith("zookeeper.")) {
+                properties.put(name, config.get(name));
+            }
+        }
+        return UserGroupInformation.getCurrentUser().getUserName() + properties.toString();
+    }
+
+    private static void addShutdownHook() {
+        if (shutdownHookAdded) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HBaseConnectionRegistry.class) {
+                    for (Connection connection : connections.values()) {
+                        closeQuietly(connection);
+                    }
+                    connections.clear();
+                }
+            }
+        }, "propolis-hbase-connections-shutdown"));
+        shutdownHookAdded = true;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close HBase connection", e);
+        }
+    }
+}
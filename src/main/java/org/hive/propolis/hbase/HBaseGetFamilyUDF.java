@@ -11,18 +11,16 @@ import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.NavigableMap;
 
 
 @Description(name = "hbase_get_family",
-        value = "_FUNC_(key_col, hbase_tbl, family[, map_value_type]): Map<String, T> - Simple Hbase value getter")
+        value = "_FUNC_(key_col, hbase_tbl, family[, map_value_type[, options]]): Map<String, T> - Simple Hbase value getter",
+        extended = "\noptions is a 'key=value;...' string of server-side filters: prefix=p, regex=r, timerange=a,b,"
+                + "\nlimit=n and offset=n, e.g. 'prefix=geo_;limit=100'")
 
 
 public class HBaseGetFamilyUDF extends GenericUDF {
@@ -30,14 +28,16 @@ public class HBaseGetFamilyUDF extends GenericUDF {
     private static int NUM_ARGS;
 
     private transient PrimitiveObjectInspector keyOI;
-    private transient StandardMapObjectInspector outputOI;
+    private transient ObjectInspector outputOI;
 
-    private Configuration config;
-    private Connection connection;
+    private transient Configuration config;
+    private transient HBaseTableHandle handle;
 
-    private static String table_name;
-    private static byte[] Hfamily;
-    private static String map_value_type = null;
+    private String table_name;
+    private byte[] Hfamily;
+    private HBaseValueType valueType;
+    private HBaseGetOptions options;
+    private transient HBaseCellDecoder decoder;
 
     private transient PrimitiveObjectInspectorConverter.TextConverter converter;
 
@@ -47,9 +47,9 @@ public class HBaseGetFamilyUDF extends GenericUDF {
     public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
 
         NUM_ARGS = arguments.length;
-        if (NUM_ARGS < 3 || NUM_ARGS > 4) {
+        if (NUM_ARGS < 3 || NUM_ARGS > 5) {
             throw new UDFArgumentLengthException(
-                    "HBaseGetFamily() accepts exactly 3 or 4 arguments.");
+                    "HBaseGetFamily() accepts 3 to 5 arguments.");
         }
 
         if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
@@ -61,7 +61,7 @@ public class HBaseGetFamilyUDF extends GenericUDF {
 
         keyOI = (PrimitiveObjectInspector) arguments[0];
 
-        for (int i = 1; i <= NUM_ARGS-2; ++i) {
+        for (int i = 1; i <= 2; ++i) {
             if (((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() !=
                     PrimitiveObjectInspector.PrimitiveCategory.STRING ||
                     !ObjectInspectorUtils.isConstantObjectInspector(arguments[i])) {
@@ -74,7 +74,7 @@ public class HBaseGetFamilyUDF extends GenericUDF {
         table_name = ((ConstantObjectInspector) arguments[1]).getWritableConstantValue().toString();
         Hfamily = ((ConstantObjectInspector) arguments[2]).getWritableConstantValue().toString().getBytes();
 
-        if (NUM_ARGS == 4) {
+        if (NUM_ARGS >= 4) {
 
             if (((PrimitiveObjectInspector) arguments[3]).getPrimitiveCategory() !=
                     PrimitiveObjectInspector.PrimitiveCategory.STRING ||
@@ -83,40 +83,28 @@ public class HBaseGetFamilyUDF extends GenericUDF {
                         "argument of HBaseGetFamily() must be a constant string but " +
                         arguments[3].toString() + " was given.");
             }
-            map_value_type = ((ConstantObjectInspector) arguments[3]).getWritableConstantValue().toString().toLowerCase();
-            switch (map_value_type) {
-                case "int":
-                    outputOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-                            PrimitiveObjectInspectorFactory.javaIntObjectInspector);
-                    break;
-                case "long":
-                case "bigint":
-                    outputOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-                            PrimitiveObjectInspectorFactory.javaLongObjectInspector);
-                    break;
-                case "double":
-                case "float":
-                    outputOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-                            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
-                    break;
-                case "string":
-                    outputOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-                            PrimitiveObjectInspectorFactory.javaStringObjectInspector);
-                    break;
-                default:
-                    throw new UDFArgumentException("Unrecognized map value type " + map_value_type);
-            }
+            valueType = HBaseValueType.of(
+                    ((ConstantObjectInspector) arguments[3]).getWritableConstantValue().toString());
         } else {
-            map_value_type = "string";
-            outputOI = ObjectInspectorFactory.getStandardMapObjectInspector(
-                    PrimitiveObjectInspectorFactory.javaStringObjectInspector,
-                    PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+            valueType = HBaseValueType.STRING;
+        }
+
+        if (NUM_ARGS == 5) {
+
+            if (((PrimitiveObjectInspector) arguments[4]).getPrimitiveCategory() !=
+                    PrimitiveObjectInspector.PrimitiveCategory.STRING ||
+                    !ObjectInspectorUtils.isConstantObjectInspector(arguments[4])) {
+                throw new UDFArgumentTypeException(5, "The " + 5 + "th " +
+                        "argument of HBaseGetFamily() must be a constant string but " +
+                        arguments[4].toString() + " was given.");
+            }
+            options = HBaseGetOptions.parse(
+                    ((ConstantObjectInspector) arguments[4]).getWritableConstantValue().toString());
         }
 
+        decoder = new HBaseCellDecoder(valueType);
+        outputOI = decoder.getFamilyObjectInspector();
+
         return outputOI;
     }
 
@@ -124,12 +112,6 @@ public class HBaseGetFamilyUDF extends GenericUDF {
     public void configure(MapredContext context) {
         super.configure(context);
         this.config = HBaseConfiguration.create(context.getJobConf());
-        try {
-            LOG.warn("[configure] Creating new connection");
-            this.connection = ConnectionFactory.createConnection(this.config);
-        } catch (IOException ioException) {
-            throw new RuntimeException("Failed to open a connection to HBase", ioException);
-        }
     }
 
     @Override
@@ -154,55 +136,17 @@ public class HBaseGetFamilyUDF extends GenericUDF {
         Get getter = new Get(Bytes.toBytes(key));
         getter.addFamily(Hfamily);
 
-        if (this.connection == null) {
-            try {
-                LOG.warn(">>> Creating new connection");
-                this.connection = ConnectionFactory.createConnection(this.config);
-            } catch (IOException ioException) {
-                throw new HiveException("Failed to open a connection to HBase", ioException);
-            }
+        if (this.handle == null) {
+            this.handle = new HBaseTableHandle(this.config, table_name);
         }
 
         try {
-            Table table = this.connection.getTable(TableName.valueOf(table_name));
-            Result result = table.get(getter);
-            NavigableMap<byte[], byte[]> family_map = result.getFamilyMap(Hfamily);
-            if (family_map == null) {
-                return null;
+            if (options != null) {
+                options.applyTo(getter);
             }
+            Result result = this.handle.get(getter);
 
-            switch (map_value_type) {
-                case "int":
-                    Map<String, Integer> int_output = new HashMap<>();
-                    for (Map.Entry<byte[], byte[]> mapEntry: family_map.entrySet()) {
-                        int_output.put(Bytes.toString(mapEntry.getKey()),
-                                Bytes.toInt(mapEntry.getValue()));
-                    }
-                    return int_output;
-                case "bigint":
-                case "long":
-                    Map<String, Long> long_output = new HashMap<>();
-                    for (Map.Entry<byte[], byte[]> mapEntry: family_map.entrySet()) {
-                        long_output.put(Bytes.toString(mapEntry.getKey()),
-                                Bytes.toLong(mapEntry.getValue()));
-                    }
-                    return long_output;
-                case "float":
-                case "double":
-                    Map<String, Double> double_output = new HashMap<>();
-                    for (Map.Entry<byte[], byte[]> mapEntry: family_map.entrySet()) {
-                        double_output.put(Bytes.toString(mapEntry.getKey()),
-                                Bytes.toDouble(mapEntry.getValue()));
-                    }
-                    return double_output;
-                default:
-                    Map<String, String> string_output = new HashMap<>();
-                    for (Map.Entry<byte[], byte[]> mapEntry: family_map.entrySet()) {
-                        string_output.put(Bytes.toString(mapEntry.getKey()),
-                                Bytes.toString(mapEntry.getValue()));
-                    }
-                    return string_output;
-            }
+            return decoder.decodeFamily(result, Hfamily);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -217,8 +161,9 @@ public class HBaseGetFamilyUDF extends GenericUDF {
     @Override
     public void close() throws IOException {
         super.close();
-        if (this.connection != null) {
-            this.connection.close();
+        if (this.handle != null) {
+            this.handle.close();
+            this.handle = null;
         }
     }
 }
@@ -0,0 +1,176 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.ColumnPaginationFilter;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+import org.apache.hadoop.hbase.filter.RegexStringComparator;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ * Server-side filtering and projection options of the hbase_get_family, hbase_get_versions and
+ * hbase_scan_prefix functions, given as an optional constant "key=value;key=value" string:
+ *
+ * prefix=p       - only qualifiers starting with p (ColumnPrefixFilter)
+ * regex=r        - only qualifiers matching the java regex r (QualifierFilter)
+ * versions=n     - at most n versions per column (hbase_get_versions, hbase_scan_prefix)
+ * timerange=a,b  - only cells with a &lt;= timestamp &lt; b (milliseconds)
+ * limit=n        - at most n columns per row (ColumnPaginationFilter)
+ * offset=n       - skip the first n columns, used with limit
+ *
+ * ColumnPaginationFilter includes only the newest version of each column, so limit and offset are rejected
+ * where several versions are read: always by hbase_get_versions, by hbase_scan_prefix with versions &gt; 1.
+ *
+ * e.g. hbase_get_family(user_id, 'profiles', 'f', 'string', 'prefix=geo_;limit=100')
+ */
+class HBaseGetOptions {
+
+    private byte[] prefix;
+    private String regex;
+    private int maxVersions = -1;
+    private long minStamp = -1;
+    private long maxStamp = -1;
+    private int limit = -1;
+    private int offset = 0;
+
+    static HBaseGetOptions parse(String options) throws UDFArgumentException {
+        HBaseGetOptions result = new HBaseGetOptions();
+        for (String option : options.split(";")) {
+            if (option.trim().isEmpty()) {
+                continue;
+            }
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                throw new UDFArgumentException("HBase option \"" + option + "\" is not a key=value pair");
+            }
+            String key = option.substring(0, eq).trim().toLowerCase();
+            String value = option.substring(eq + 1).trim();
+            try {
+                switch (key) {
+                    case "prefix":
+                        result.prefix = Bytes.toBytes(value);
+                        break;
+                    case "regex":
+                        Pattern.compile(value);
+                        result.regex = value;
+                        break;
+                    case "versions":
+                        result.maxVersions = parsePositive(key, value);
+                        break;
+                    case "timerange":
+                        String[] bounds = value.split(",");
+                        if (bounds.length != 2) {
+                            throw new UDFArgumentException("HBase option timerange expects min,max but " + value
+                                    + " was given");
+                        }
+                        result.minStamp = Long.parseLong(bounds[0].trim());
+                        result.maxStamp = Long.parseLong(bounds[1].trim());
+                        if (result.minStamp < 0 || result.maxStamp < result.minStamp) {
+                            throw new UDFArgumentException("HBase option timerange " + value + " is not a valid range");
+                        }
+                        break;
+                    case "limit":
+                        result.limit = parsePositive(key, value);
+                        break;
+                    case "offset":
+                        result.offset = Integer.parseInt(value);
+                        if (result.offset < 0) {
+                            throw new UDFArgumentException("HBase option offset must not be negative");
+                        }
+                        break;
+                    default:
+                        throw new UDFArgumentException("Unrecognized HBase option " + key);
+                }
+            } catch (NumberFormatException | PatternSyntaxException e) {
+                throw new UDFArgumentException("Invalid value " + value + " of HBase option " + key + ": "
+                        + e.getMessage());
+            }
+        }
+        if (result.offset > 0 && result.limit < 0) {
+            throw new UDFArgumentException("HBase option offset requires limit");
+        }
+        return result;
+    }
+
+    private static int parsePositive(String key, String value) throws UDFArgumentException {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new UDFArgumentException("HBase option " + key + " must be positive but " + value + " was given");
+        }
+        return n;
+    }
+
+    /**
+     * Rejects limit and offset, for the functions reading several versions of a column.
+     */
+    void rejectPaging(String function) throws UDFArgumentException {
+        if (limit > 0) {
+            throw new UDFArgumentException("HBase options limit and offset page through the columns and "
+                    + "would keep only the newest version of each, they are not accepted by " + function);
+        }
+    }
+
+    /**
+     * Versions limit given by the options, or the default when there is none.
+     */
+    int getMaxVersions(int defaultMaxVersions) {
+        return maxVersions > 0 ? maxVersions : defaultMaxVersions;
+    }
+
+    /**
+     * Sets the time range and the filters on the get; the number of versions is left to the caller.
+     */
+    void applyTo(Get get) throws IOException {
+        if (minStamp >= 0) {
+            get.setTimeRange(minStamp, maxStamp);
+        }
+        Filter filter = buildFilter();
+        if (filter != null) {
+            get.setFilter(filter);
+        }
+    }
+
+    /**
+     * Same as {@link #applyTo(Get)} for a scan, where the filters apply to each row.
+     */
+    void applyTo(Scan scan) throws IOException {
+        if (minStamp >= 0) {
+            scan.setTimeRange(minStamp, maxStamp);
+        }
+        Filter filter = buildFilter();
+        if (filter != null) {
+            scan.setFilter(filter);
+        }
+    }
+
+    private Filter buildFilter() {
+        List<Filter> filters = new ArrayList<>();
+        if (prefix != null) {
+            filters.add(new ColumnPrefixFilter(prefix));
+        }
+        if (regex != null) {
+            filters.add(new QualifierFilter(CompareFilter.CompareOp.EQUAL, new RegexStringComparator(regex)));
+        }
+        // pagination counts the columns left by the other filters, so it goes last
+        if (limit > 0) {
+            filters.add(new ColumnPaginationFilter(limit, offset));
+        }
+
+        if (filters.isEmpty()) {
+            return null;
+        }
+        return filters.size() == 1 ? filters.get(0) : new FilterList(FilterList.Operator.MUST_PASS_ALL, filters);
+    }
+}
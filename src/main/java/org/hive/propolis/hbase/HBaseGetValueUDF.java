@@ -14,8 +14,6 @@ import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.mapred.JobConf;
-import org.apache.hadoop.mapred.Reporter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,12 +33,12 @@ public class HBaseGetValueUDF extends GenericUDF {
 
     private transient PrimitiveObjectInspector keyOI;
 
-    private Configuration config;
-    private Connection connection;
+    private transient Configuration config;
+    private transient HBaseTableHandle handle;
 
-    private static String table_name;
-    private static byte[] Hfamily;
-    private static byte[] Hcolumn;
+    private String table_name;
+    private byte[] Hfamily;
+    private byte[] Hcolumn;
 
     private transient PrimitiveObjectInspectorConverter.TextConverter converter;
 
@@ -84,17 +82,7 @@ public class HBaseGetValueUDF extends GenericUDF {
     @Override
     public void configure(MapredContext context) {
         super.configure(context);
-        LOG.warn("[configure] creating config");
         this.config = HBaseConfiguration.create(context.getJobConf());
-        // Counters (just in case):
-        Reporter reporter = context.getReporter();
-        JobConf jc = context.getJobConf();
-        try {
-            LOG.warn("[configure] Creating new connection");
-            this.connection = ConnectionFactory.createConnection(this.config);
-        } catch (IOException ioException) {
-            throw new RuntimeException("Failed to open a connection to HBase", ioException);
-        }
     }
 
     @Override
@@ -119,18 +107,12 @@ public class HBaseGetValueUDF extends GenericUDF {
         Get getter = new Get(Bytes.toBytes(key));
         getter.addColumn(Hfamily, Hcolumn);
 
-        if (this.connection == null) {
-            try {
-                LOG.warn(">>> Creating new connection");
-                this.connection = ConnectionFactory.createConnection(this.config);
-            } catch (IOException ioException) {
-                throw new HiveException("Failed to open a connection to HBase", ioException);
-            }
+        if (this.handle == null) {
+            this.handle = new HBaseTableHandle(this.config, table_name);
         }
 
         try {
-            Table table = this.connection.getTable(TableName.valueOf(table_name));
-            Result result = table.get(getter);
+            Result result = this.handle.get(getter);
             byte[] row = result.getValue(Hfamily, Hcolumn);
             if (row == null) {
                 return null;
@@ -150,8 +132,9 @@ public class HBaseGetValueUDF extends GenericUDF {
     @Override
     public void close() throws IOException {
         super.close();
-        if (this.connection != null) {
-            this.connection.close();
+        if (this.handle != null) {
+            this.handle.close();
+            this.handle = null;
         }
     }
 }
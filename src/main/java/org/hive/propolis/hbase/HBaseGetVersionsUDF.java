@@ -10,17 +10,16 @@ import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorConverter;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 
 @Description(name = "hbase_get_versions",
-        value = "_FUNC_(key_col, hbase_tbl, family, column[, value_type T]): Array<T> - Simple Hbase value getter")
+        value = "_FUNC_(key_col, hbase_tbl, family, column[, value_type T[, options]]): Array<T> - Simple Hbase value getter",
+        extended = "\noptions is a 'key=value;...' string: versions=n limits the number of versions returned"
+                + "\n(all by default) and timerange=a,b keeps the versions with a <= timestamp < b")
 
 
 public class HBaseGetVersionsUDF extends GenericUDF {
@@ -28,15 +27,17 @@ public class HBaseGetVersionsUDF extends GenericUDF {
     private static int NUM_ARGS;
 
     private transient PrimitiveObjectInspector keyOI;
-    private transient StandardListObjectInspector outputOI;
+    private transient ObjectInspector outputOI;
 
-    private Configuration config;
-    private Connection connection;
+    private transient Configuration config;
+    private transient HBaseTableHandle handle;
 
-    private static String table_name;
-    private static byte[] Hfamily;
-    private static byte[] Hcolumn;
-    private static String list_value_type;
+    private String table_name;
+    private byte[] Hfamily;
+    private byte[] Hcolumn;
+    private HBaseValueType valueType;
+    private HBaseGetOptions options;
+    private transient HBaseCellDecoder decoder;
 
     private transient PrimitiveObjectInspectorConverter.TextConverter converter;
 
@@ -46,9 +47,9 @@ public class HBaseGetVersionsUDF extends GenericUDF {
     public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
 
         NUM_ARGS = arguments.length;
-        if (NUM_ARGS < 4 || NUM_ARGS > 5) {
+        if (NUM_ARGS < 4 || NUM_ARGS > 6) {
             throw new UDFArgumentLengthException(
-                    "HBaseGetVersions() accepts exactly 4 or 5 arguments.");
+                    "HBaseGetVersions() accepts 4 to 6 arguments.");
         }
 
         if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
@@ -60,7 +61,7 @@ public class HBaseGetVersionsUDF extends GenericUDF {
 
         keyOI = (PrimitiveObjectInspector) arguments[0];
 
-        for (int i = 1; i <= NUM_ARGS-2; ++i) {
+        for (int i = 1; i <= 3; ++i) {
             if (((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() !=
                     PrimitiveObjectInspector.PrimitiveCategory.STRING ||
                     !ObjectInspectorUtils.isConstantObjectInspector(arguments[i])) {
@@ -74,7 +75,7 @@ public class HBaseGetVersionsUDF extends GenericUDF {
         Hfamily = ((ConstantObjectInspector) arguments[2]).getWritableConstantValue().toString().getBytes();
         Hcolumn = ((ConstantObjectInspector) arguments[3]).getWritableConstantValue().toString().getBytes();
 
-        if (NUM_ARGS == 5) {
+        if (NUM_ARGS >= 5) {
 
             if (((PrimitiveObjectInspector) arguments[4]).getPrimitiveCategory() !=
                     PrimitiveObjectInspector.PrimitiveCategory.STRING ||
@@ -83,35 +84,29 @@ public class HBaseGetVersionsUDF extends GenericUDF {
                         "argument of HBaseGetFamily() must be a constant string but " +
                         arguments[4].toString() + " was given.");
             }
-            list_value_type = ((ConstantObjectInspector) arguments[4]).getWritableConstantValue().toString().toLowerCase();
-            switch (list_value_type) {
-                case "int":
-                    outputOI = ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaIntObjectInspector);
-                    break;
-                case "long":
-                case "bigint":
-                    outputOI = ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaLongObjectInspector);
-                    break;
-                case "double":
-                case "float":
-                    outputOI = ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaDoubleObjectInspector);
-                    break;
-                case "string":
-                    outputOI = ObjectInspectorFactory.getStandardListObjectInspector(
-                            PrimitiveObjectInspectorFactory.javaStringObjectInspector);
-                    break;
-                default:
-                    throw new UDFArgumentException("Unrecognized map value type " + list_value_type);
-            }
+            valueType = HBaseValueType.of(
+                    ((ConstantObjectInspector) arguments[4]).getWritableConstantValue().toString());
         } else {
-            list_value_type = "string";
-            outputOI = ObjectInspectorFactory.getStandardListObjectInspector(
-                    PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+            valueType = HBaseValueType.STRING;
+        }
+
+        if (NUM_ARGS == 6) {
+
+            if (((PrimitiveObjectInspector) arguments[5]).getPrimitiveCategory() !=
+                    PrimitiveObjectInspector.PrimitiveCategory.STRING ||
+                    !ObjectInspectorUtils.isConstantObjectInspector(arguments[5])) {
+                throw new UDFArgumentTypeException(6, "The " + 6 + "th " +
+                        "argument of HBaseGetVersions() must be a constant string but " +
+                        arguments[5].toString() + " was given.");
+            }
+            options = HBaseGetOptions.parse(
+                    ((ConstantObjectInspector) arguments[5]).getWritableConstantValue().toString());
+            options.rejectPaging("hbase_get_versions");
         }
 
+        decoder = new HBaseCellDecoder(valueType);
+        outputOI = decoder.getVersionsObjectInspector();
+
         return outputOI;
     }
 
@@ -119,12 +114,6 @@ public class HBaseGetVersionsUDF extends GenericUDF {
     public void configure(MapredContext context) {
         super.configure(context);
         this.config = HBaseConfiguration.create(context.getJobConf());
-        try {
-            LOG.warn("[configure] Creating new connection");
-            this.connection = ConnectionFactory.createConnection(this.config);
-        } catch (IOException ioException) {
-            throw new RuntimeException("Failed to open a connection to HBase", ioException);
-        }
     }
 
     @Override
@@ -148,54 +137,21 @@ public class HBaseGetVersionsUDF extends GenericUDF {
 
         Get getter = new Get(Bytes.toBytes(key));
         getter.addColumn(Hfamily, Hcolumn);
-        getter.setMaxVersions();
-
-        if (this.connection == null) {
-            try {
-                LOG.warn(">>> Creating new connection");
-                this.connection = ConnectionFactory.createConnection(this.config);
-            } catch (IOException ioException) {
-                throw new HiveException("Failed to open a connection to HBase", ioException);
-            }
+
+        if (this.handle == null) {
+            this.handle = new HBaseTableHandle(this.config, table_name);
         }
 
         try {
-            Table table = this.connection.getTable(TableName.valueOf(table_name));
-            Result result = table.get(getter);
-            CellScanner scanner = result.cellScanner();
-
-            switch (list_value_type) {
-                case "int":
-                    List<Integer> int_output = new ArrayList<>();
-                    while (scanner.advance()) {
-                        Cell res = scanner.current();
-                        int_output.add(Bytes.toInt(CellUtil.cloneValue(res)));
-                    }
-                    return int_output;
-                case "bigint":
-                case "long":
-                    List<Long> long_output = new ArrayList<>();
-                    while (scanner.advance()) {
-                        Cell res = scanner.current();
-                        long_output.add(Bytes.toLong(CellUtil.cloneValue(res)));
-                    }
-                    return long_output;
-                case "float":
-                case "double":
-                    List<Double> double_output = new ArrayList<>();
-                    while (scanner.advance()) {
-                        Cell res = scanner.current();
-                        double_output.add(Bytes.toDouble(CellUtil.cloneValue(res)));
-                    }
-                    return double_output;
-                default:
-                    List<String> output = new ArrayList<>();
-                    while (scanner.advance()) {
-                        Cell res = scanner.current();
-                        output.add(Bytes.toString(CellUtil.cloneValue(res)));
-                    }
-                    return output;
+            if (options != null) {
+                getter.setMaxVersions(options.getMaxVersions(Integer.MAX_VALUE));
+                options.applyTo(getter);
+            } else {
+                getter.setMaxVersions();
             }
+            Result result = this.handle.get(getter);
+
+            return decoder.decodeVersions(result);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -210,8 +166,9 @@ public class HBaseGetVersionsUDF extends GenericUDF {
     @Override
     public void close() throws IOException {
         super.close();
-        if (this.connection != null) {
-            this.connection.close();
+        if (this.handle != null) {
+            this.handle.close();
+            this.handle = null;
         }
     }
 }
@@ -0,0 +1,163 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Bounded in-task LRU cache of HBase lookup results keyed by row, used by the hbase_*
+ * functions to skip repeated round-trips for hot keys. Disabled unless
+ * propolis.hbase.cache.max.entries is positive:
+ *
+ * > set propolis.hbase.cache.max.entries=100000;
+ * > set propolis.hbase.cache.max.bytes=67108864;  -- heap budget, 64MB by default
+ * > set propolis.hbase.cache.ttl.ms=600000;       -- entry lifetime, 0 (default) means no expiry
+ * > set propolis.hbase.cache.negative=true;       -- cache misses too (default)
+ *
+ * Each function instance has its own cache since the cached {@link Result} depends
+ * on the columns it asks for.
+ */
+class HBaseResultCache {
+
+    static final String MAX_ENTRIES_CONF = "propolis.hbase.cache.max.entries";
+    static final String MAX_BYTES_CONF = "propolis.hbase.cache.max.bytes";
+    static final String TTL_CONF = "propolis.hbase.cache.ttl.ms";
+    static final String NEGATIVE_CONF = "propolis.hbase.cache.negative";
+
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // rough per-entry overhead: map entry, key buffer, cache entry and Result objects
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseResultCache.class.getName());
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final boolean cacheMisses;
+
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    private static class Entry {
+        final Result result;
+        final long size;
+        final long createdAt;
+
+        Entry(Result result, long size, long createdAt) {
+            this.result = result;
+            this.size = size;
+            this.createdAt = createdAt;
+        }
+    }
+
+    HBaseResultCache(int maxEntries, long maxBytes, long ttlMillis, boolean cacheMisses) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.cacheMisses = cacheMisses;
+    }
+
+    /**
+     * Returns a cache configured from the propolis.hbase.cache.* properties or null if caching is off.
+     */
+    static HBaseResultCache create(Configuration config) {
+        int maxEntries = config.getInt(MAX_ENTRIES_CONF, 0);
+        if (maxEntries <= 0) {
+            return null;
+        }
+        return new HBaseResultCache(maxEntries,
+                config.getLong(MAX_BYTES_CONF, DEFAULT_MAX_BYTES),
+                config.getLong(TTL_CONF, 0),
+                config.getBoolean(NEGATIVE_CONF, true));
+    }
+
+    /**
+     * Returns the cached result for the row or null if it is not cached (or expired).
+     */
+    Result get(byte[] row) {
+        ByteBuffer key = ByteBuffer.wrap(row);
+        Entry entry = entries.get(key);
+        if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.createdAt > ttlMillis) {
+            entries.remove(key);
+            bytes -= entry.size;
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    void put(byte[] row, Result result) {
+        if (!cacheMisses && isMiss(result)) {
+            return;
+        }
+
+        long size = ENTRY_OVERHEAD + row.length + Result.getTotalSizeOfCells(result);
+        if (size > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(ByteBuffer.wrap(row), new Entry(result, size, System.currentTimeMillis()));
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static boolean isMiss(Result result) {
+        return result.getExists() != null ? !result.getExists() : result.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+
+    long getExpirations() {
+        return expirations;
+    }
+
+    void logStats(String tableName) {
+        LOG.info("HBase result cache for " + tableName + ": " + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions, " + expirations + " expirations, "
+                + entries.size() + " entries (" + bytes + " bytes) at close");
+    }
+}
@@ -0,0 +1,202 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellScanner;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.exec.*;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Streams all the cells of the rows whose key starts with the given prefix, one output row per cell,
+ * with a single scanner instead of a point get per key. Scanner caching and batching are
+ * taken from propolis.hbase.scan.caching (rows per RPC, 1000 by default) and
+ * propolis.hbase.scan.batch (cells per result for wide rows, unlimited by default).
+ * Null and empty prefixes produce no rows.
+ *
+ * Usage:
+ * > select t.prefix, s.*
+ * >   from (select 'user42|' as prefix) t
+ * >   lateral view hbase_scan_prefix(t.prefix, 'events', 'f', 'long', 'timerange=0,1546300800000') s
+ * >   as row_key, qualifier, ts, value
+ */
+@Description(name = "hbase_scan_prefix",
+        value = "_FUNC_(prefix, hbase_tbl, family[, value_type T[, options]]): (row String, qualifier String, "
+                + "ts Long, value T) - Scans the rows starting with prefix",
+        extended = "\noptions are the server-side filters of hbase_get_family, e.g. 'prefix=geo_;versions=3'")
+
+public class HBaseScanPrefixUDTF extends GenericUDTF {
+
+    static final String CACHING_CONF = "propolis.hbase.scan.caching";
+    static final int DEFAULT_CACHING = 1000;
+    static final String BATCH_CONF = "propolis.hbase.scan.batch";
+
+    private transient PrimitiveObjectInspector prefixOI;
+
+    private transient Configuration config;
+    private transient HBaseTableHandle handle;
+
+    private String table_name;
+    private byte[] Hfamily;
+    private HBaseValueType valueType;
+    private HBaseGetOptions options;
+
+    private int caching = DEFAULT_CACHING;
+    private int batch = -1;
+
+    private transient Text row;
+    private transient Text qualifier;
+    private transient LongWritable timestamp;
+    private transient Object value;
+    private transient Object[] forwardObj;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseScanPrefixUDTF.class.getName());
+
+    @Override
+    public StructObjectInspector initialize(StructObjectInspector argOIs) throws UDFArgumentException {
+        List<? extends StructField> fields = argOIs.getAllStructFieldRefs();
+        ObjectInspector[] arguments = new ObjectInspector[fields.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = fields.get(i).getFieldObjectInspector();
+        }
+
+        if (arguments.length < 3 || arguments.length > 5) {
+            throw new UDFArgumentLengthException(
+                    "hbase_scan_prefix() accepts 3 to 5 arguments.");
+        }
+
+        if (arguments[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0,
+                    "The first argument must be Primitive, but "
+                            + arguments[0].getCategory().name()
+                            + " was passed.");
+        }
+
+        prefixOI = (PrimitiveObjectInspector) arguments[0];
+        table_name = getConstantString(arguments, 1);
+        Hfamily = getConstantString(arguments, 2).getBytes();
+        valueType = arguments.length >= 4
+                ? HBaseValueType.of(getConstantString(arguments, 3))
+                : HBaseValueType.STRING;
+        if (arguments.length == 5) {
+            options = HBaseGetOptions.parse(getConstantString(arguments, 4));
+            if (options.getMaxVersions(1) > 1) {
+                options.rejectPaging("hbase_scan_prefix with versions > 1");
+            }
+        }
+
+        row = new Text();
+        qualifier = new Text();
+        timestamp = new LongWritable();
+        value = valueType.newWritable();
+        forwardObj = new Object[]{row, qualifier, timestamp, value};
+
+        List<String> fieldNames = Arrays.asList("row", "qualifier", "ts", "value");
+        List<ObjectInspector> fieldOIs = Arrays.asList(
+                (ObjectInspector) PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+                PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+                valueType.getObjectInspector());
+        return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldOIs);
+    }
+
+    private String getConstantString(ObjectInspector[] arguments, int i) throws UDFArgumentException {
+        if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE ||
+                ((PrimitiveObjectInspector) arguments[i]).getPrimitiveCategory() !=
+                PrimitiveObjectInspector.PrimitiveCategory.STRING ||
+                !ObjectInspectorUtils.isConstantObjectInspector(arguments[i])) {
+            throw new UDFArgumentTypeException(i, "The " + (i + 1) + "th " +
+                    "argument of hbase_scan_prefix() must be a constant string but " +
+                    arguments[i].toString() + " was given.");
+        }
+        return ((ConstantObjectInspector) arguments[i]).getWritableConstantValue().toString();
+    }
+
+    @Override
+    public void configure(MapredContext context) {
+        super.configure(context);
+        this.config = HBaseConfiguration.create(context.getJobConf());
+        this.caching = Math.max(1, this.config.getInt(CACHING_CONF, DEFAULT_CACHING));
+        this.batch = this.config.getInt(BATCH_CONF, -1);
+    }
+
+    private Scan createScan(byte[] prefix) throws IOException {
+        Scan scan = new Scan();
+        scan.setRowPrefixFilter(prefix);
+        scan.addFamily(Hfamily);
+        scan.setCaching(caching);
+        if (batch > 0) {
+            scan.setBatch(batch);
+        }
+        if (options != null) {
+            scan.setMaxVersions(options.getMaxVersions(1));
+            options.applyTo(scan);
+        }
+        return scan;
+    }
+
+    @Override
+    public void process(Object[] args) throws HiveException {
+        Object prefixObject = prefixOI.getPrimitiveJavaObject(args[0]);
+        // an empty prefix would scan the whole table
+        if (prefixObject == null || prefixObject.toString().isEmpty()) {
+            return;
+        }
+
+        if (this.handle == null) {
+            if (this.config == null) {
+                LOG.warn("A Configuration object wasn't passed to us. Building our own HBaseConfiguration object, "
+                        + "but we may have mis-configurations if there are specific overrides passed into the query session");
+                this.config = HBaseConfiguration.create();
+            }
+            this.handle = new HBaseTableHandle(this.config, table_name);
+        }
+
+        String prefix = prefixObject.toString();
+        try (ResultScanner scanner = this.handle.getTable().getScanner(createScan(Bytes.toBytes(prefix)))) {
+            Result result;
+            while ((result = scanner.next()) != null) {
+                CellScanner cells = result.cellScanner();
+                while (cells.advance()) {
+                    Cell cell = cells.current();
+                    row.set(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
+                    qualifier.set(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+                    timestamp.set(cell.getTimestamp());
+                    valueType.decode(cell, value);
+                    forward(forwardObj);
+                }
+            }
+        } catch (IOException e) {
+            throw new HiveException("Failed to scan prefix " + prefix + " of " + table_name, e);
+        }
+    }
+
+    @Override
+    public void close() throws HiveException {
+        if (this.handle != null) {
+            try {
+                this.handle.close();
+            } catch (IOException e) {
+                throw new HiveException(e);
+            } finally {
+                this.handle = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Table of one hbase_* function instance. The connection is shared through
+ * {@link HBaseConnectionRegistry} and the table is opened once, on first use,
+ * instead of on every row. Lookups go through the optional {@link HBaseResultCache}.
+ * With a row filter set, rows the Bloom filter rules out are answered locally as misses
+ * and never reach HBase.
+ *
+ * With propolis.hbase.batch.group.by.region set, the rows of a multi-get are sent ordered by region
+ * server and row key (as located by the client's region cache) instead of in input order, so each
+ * server gets one contiguous, sorted run of rows; results are still returned in input order.
+ * Not thread-safe, like the underlying {@link Table}.
+ */
+class HBaseTableHandle implements Closeable {
+
+    static final String GROUP_BY_REGION_CONF = "propolis.hbase.batch.group.by.region";
+
+    private final Configuration config;
+    private final TableName tableName;
+    private final HBaseResultCache cache;
+    private final boolean groupByRegion;
+
+    private BloomFilter rowFilter;
+    private final Key filterKey = new Key();
+    private long filteredOut = 0;
+
+    private Connection connection;
+    private Table table;
+    private RegionLocator regionLocator;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HBaseTableHandle.class.getName());
+
+    HBaseTableHandle(Configuration config, String tableName) {
+        this.config = config;
+        this.tableName = TableName.valueOf(tableName);
+        this.cache = HBaseResultCache.create(config);
+        this.groupByRegion = config.getBoolean(GROUP_BY_REGION_CONF, false);
+    }
+
+    TableName getTableName() {
+        return tableName;
+    }
+
+    Connection getConnection() throws IOException {
+        if (connection == null) {
+            connection = HBaseConnectionRegistry.get(config);
+        }
+        return connection;
+    }
+
+    Table getTable() throws IOException {
+        if (table == null) {
+            table = getConnection().getTable(tableName);
+        }
+        return table;
+    }
+
+    /**
+     * Sets a Bloom filter of the rows present in the table (keyed by the row bytes).
+     */
+    void setRowFilter(BloomFilter rowFilter) {
+        this.rowFilter = rowFilter;
+    }
+
+    private boolean isFilteredOut(Get get) {
+        if (rowFilter == null) {
+            return false;
+        }
+        filterKey.set(get.getRow(), 1.0);
+        if (rowFilter.membershipTest(filterKey)) {
+            return false;
+        }
+        filteredOut++;
+        return true;
+    }
+
+    private static Result missOf(Get get) {
+        return get.isCheckExistenceOnly()
+                ? Result.create(new Cell[0], Boolean.FALSE, false)
+                : Result.EMPTY_RESULT;
+    }
+
+    Result get(Get get) throws IOException {
+        if (isFilteredOut(get)) {
+            return missOf(get);
+        }
+        if (cache == null) {
+            return getTable().get(get);
+        }
+
+        Result result = cache.get(get.getRow());
+        if (result == null) {
+            result = getTable().get(get);
+            cache.put(get.getRow(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Multi-get; only the rows missing from the cache are sent to HBase.
+     */
+    Result[] get(List<Get> gets) throws IOException {
+        return submit(gets, null).await();
+    }
+
+    /**
+     * Starts a multi-get. Filtered out rows and cache hits are resolved right away and the rows
+     * missing from the cache are fetched on the executor (or in {@link PendingGet#await()} when
+     * the executor is null) through a table of their own, since {@link Table} is not thread-safe.
+     * The cache and the row filter are only touched from the calling thread.
+     */
+    PendingGet submit(List<Get> gets, ExecutorService executor) throws IOException {
+        Result[] results = new Result[gets.size()];
+        final List<Get> missed = new ArrayList<>();
+        List<Integer> missedPositions = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            if (isFilteredOut(gets.get(i))) {
+                results[i] = missOf(gets.get(i));
+                continue;
+            }
+            results[i] = cache == null ? null : cache.get(gets.get(i).getRow());
+            if (results[i] == null) {
+                missed.add(gets.get(i));
+                missedPositions.add(i);
+            }
+        }
+
+        if (groupByRegion && missed.size() > 1) {
+            sortByRegion(missed, missedPositions);
+        }
+
+        Future<Result[]> future = null;
+        if (!missed.isEmpty() && executor != null) {
+            final Connection connection = getConnection();
+            future = executor.submit(new Callable<Result[]>() {
+                @Override
+                public Result[] call() throws IOException {
+                    try (Table batchTable = connection.getTable(tableName)) {
+                        return batchTable.get(missed);
+                    }
+                }
+            });
+        }
+        return new PendingGet(results, missed, missedPositions, future);
+    }
+
+    /**
+     * Reorders the gets (and their positions along) by region server and row.
+     */
+    private void sortByRegion(List<Get> gets, List<Integer> positions) {
+        final String[] servers = new String[gets.size()];
+        try {
+            if (regionLocator == null) {
+                regionLocator = getConnection().getRegionLocator(tableName);
+            }
+            for (int i = 0; i < servers.length; i++) {
+                HRegionLocation location = regionLocator.getRegionLocation(gets.get(i).getRow());
+                servers[i] = location.getServerName() == null ? "" : location.getServerName().getServerName();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to locate the regions of " + tableName.getNameAsString() + ", sending rows as is", e);
+            return;
+        }
+        sortByServer(gets, positions, servers);
+    }
+
+    /**
+     * Reorders the gets and their positions along by the given servers of the gets, then by row.
+     */
+    static void sortByServer(List<Get> gets, List<Integer> positions, final String[] servers) {
+        final List<Get> unsorted = new ArrayList<>(gets);
+        final List<Integer> unsortedPositions = new ArrayList<>(positions);
+        Integer[] order = new Integer[servers.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cmp = servers[a].compareTo(servers[b]);
+                return cmp != 0 ? cmp : Bytes.compareTo(unsorted.get(a).getRow(), unsorted.get(b).getRow());
+            }
+        });
+        for (int i = 0; i < order.length; i++) {
+            gets.set(i, unsorted.get(order[i]));
+            positions.set(i, unsortedPositions.get(order[i]));
+        }
+    }
+
+    final class PendingGet {
+        private final Result[] results;
+        private final List<Get> missed;
+        private final List<Integer> missedPositions;
+        private final Future<Result[]> future;
+
+        private PendingGet(Result[] results, List<Get> missed, List<Integer> missedPositions,
+                           Future<Result[]> future) {
+            this.results = results;
+            this.missed = missed;
+            this.missedPositions = missedPositions;
+            this.future = future;
+        }
+
+        boolean isDone() {
+            return future == null || future.isDone();
+        }
+
+        /**
+         * Waits for the batch and returns the results in the order of the submitted gets.
+         */
+        Result[] await() throws IOException {
+            if (missed.isEmpty()) {
+                return results;
+            }
+
+            Result[] fetched;
+            if (future == null) {
+                fetched = getTable().get(missed);
+            } else {
+                try {
+                    fetched = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for an HBase multi-get");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+
+            for (int i = 0; i < fetched.length; i++) {
+                results[missedPositions.get(i)] = fetched[i];
+                if (cache != null) {
+                    cache.put(missed.get(i).getRow(), fetched[i]);
+                }
+            }
+            return results;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (rowFilter != null) {
+            LOG.info("Bloom filter of " + tableName.getNameAsString() + " answered " + filteredOut + " lookups locally");
+        }
+        if (cache != null) {
+            cache.logStats(tableName.getNameAsString());
+        }
+        try {
+            if (regionLocator != null) {
+                regionLocator.close();
+            }
+            if (table != null) {
+                table.close();
+            }
+        } finally {
+            regionLocator = null;
+            table = null;
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+
+/**
+ * Value types accepted by the optional "value type" argument of the hbase_* functions.
+ * Cell values are expected to be written with the matching {@link Bytes} encoder and are
+ * decoded into reusable Hadoop writables.
+ */
+enum HBaseValueType {
+
+    INT(PrimitiveObjectInspectorFactory.writableIntObjectInspector) {
+        @Override
+        Object newWritable() {
+            return new IntWritable();
+        }
+
+        @Override
+        void decode(byte[] array, int offset, int length, Object into) {
+            ((IntWritable) into).set(Bytes.toInt(array, offset, Math.min(length, Bytes.SIZEOF_INT)));
+        }
+    },
+    LONG(PrimitiveObjectInspectorFactory.writableLongObjectInspector) {
+        @Override
+        Object newWritable() {
+            return new LongWritable();
+        }
+
+        @Override
+        void decode(byte[] array, int offset, int length, Object into) {
+            ((LongWritable) into).set(Bytes.toLong(array, offset, Math.min(length, Bytes.SIZEOF_LONG)));
+        }
+    },
+    DOUBLE(PrimitiveObjectInspectorFactory.writableDoubleObjectInspector) {
+        @Override
+        Object newWritable() {
+            return new DoubleWritable();
+        }
+
+        @Override
+        void decode(byte[] array, int offset, int length, Object into) {
+            ((DoubleWritable) into).set(
+                    Double.longBitsToDouble(Bytes.toLong(array, offset, Math.min(length, Bytes.SIZEOF_LONG))));
+        }
+    },
+    STRING(PrimitiveObjectInspectorFactory.writableStringObjectInspector) {
+        @Override
+        Object newWritable() {
+            return new Text();
+        }
+
+        @Override
+        void decode(byte[] array, int offset, int length, Object into) {
+            ((Text) into).set(array, offset, length);
+        }
+    };
+
+    private final PrimitiveObjectInspector writableOI;
+
+    HBaseValueType(PrimitiveObjectInspector writableOI) {
+        this.writableOI = writableOI;
+    }
+
+    PrimitiveObjectInspector getObjectInspector() {
+        return writableOI;
+    }
+
+    abstract Object newWritable();
+
+    /**
+     * Decodes a value slice of a cell's backing array into a writable made by {@link #newWritable()}.
+     * Numbers are read from the first bytes of the value, as {@link Bytes#toInt(byte[])} does.
+     */
+    abstract void decode(byte[] array, int offset, int length, Object into);
+
+    /**
+     * Decodes the value of the cell without copying it out of the cell's backing array.
+     */
+    void decode(Cell cell, Object into) {
+        decode(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength(), into);
+    }
+
+    static HBaseValueType of(String typeName) throws UDFArgumentException {
+        switch (typeName.toLowerCase()) {
+            case "int":
+                return INT;
+            case "long":
+            case "bigint":
+                return LONG;
+            case "double":
+            case "float":
+                return DOUBLE;
+            case "string":
+                return STRING;
+            default:
+                throw new UDFArgumentException("Unrecognized value type " + typeName);
+        }
+    }
+}
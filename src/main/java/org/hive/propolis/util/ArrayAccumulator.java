@@ -0,0 +1,468 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.IntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Adds arrays element-wise into {@link ArraySums} in two passes: the elements are first read into
+ * primitive scratch arrays (0 for nulls, with a 1 per non-null element for the counts), by an inspector
+ * picked once per array for the common element types, then added to the sums by the kernels below.
+ *
+ * The kernels are plain counted loops over primitive arrays without branches or calls, the shape
+ * HotSpot's C2 compiler turns into SIMD adds (superword vectorization) on any JVM Hive runs on, so the
+ * 256 to 1024 element vectors of embedding aggregations are summed a few elements per instruction.
+ * While the sums are sparse, the non-zero elements are scattered into them instead.
+ *
+ * Maps from positions to values are added as sparse vectors counted for every position.
+ *
+ * The accumulator also writes and merges the partial results, a struct of the number of positions,
+ * the rows counted for every position, and either the sums and the counts by position (dense)
+ * or the positions and the sums of the sparse entries with the positions and the changes of the
+ * counts (sparse, the index fields being null when dense).
+ *
+ * The scratch arrays are reused from array to array; an evaluator holds one accumulator.
+ */
+public class ArrayAccumulator {
+
+    public static final String SIZE_FIELD = "size";
+    public static final String ROWS_FIELD = "rows";
+    public static final String INDEX_FIELD = "index";
+    public static final String SUM_FIELD = "sum";
+    public static final String COUNT_INDEX_FIELD = "count_index";
+    public static final String COUNT_FIELD = "count";
+
+    // the largest position of a map, so that the number of positions fits an int
+    public static final long MAX_POSITION = Integer.MAX_VALUE - 1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean floatingSums;
+    private final boolean counted;
+
+    private double[] doubles = new double[INITIAL_CAPACITY];
+    private long[] longs = new long[INITIAL_CAPACITY];
+    // 1 per non-null element
+    private long[] present = new long[INITIAL_CAPACITY];
+
+    // For the partial results
+    private StructObjectInspector partialOI;
+    private StructField sizeField;
+    private StructField rowsField;
+    private StructField indexField;
+    private StructField sumField;
+    private StructField countIndexField;
+    private StructField countField;
+
+    public ArrayAccumulator(boolean floatingSums, boolean counted) {
+        this.floatingSums = floatingSums;
+        this.counted = counted;
+    }
+
+    public ArraySums newSums() {
+        return new ArraySums(floatingSums, counted);
+    }
+
+    /**
+     * Adds an array element-wise, or a map from positions to values as a sparse vector counted for every
+     * position. Null elements only extend the sums and are not counted; map entries with a null value or a
+     * null key, or a key out of the positions of an array (negative or above {@link #MAX_POSITION}) are skipped.
+     */
+    public void add(ArraySums sums, Object input, ObjectInspector inputOI) {
+        if (inputOI instanceof MapObjectInspector) {
+            addMap(sums, input, (MapObjectInspector) inputOI);
+            return;
+        }
+
+        ListObjectInspector listOI = (ListObjectInspector) inputOI;
+        List<?> elements = listOI.getList(input);
+        int n = elements.size();
+        sums.ensureSize(n);
+        grow(n);
+        PrimitiveObjectInspector elementOI = (PrimitiveObjectInspector) listOI.getListElementObjectInspector();
+        if (floatingSums) {
+            readDoubles(elements, elementOI);
+        } else {
+            readLongs(elements, elementOI);
+        }
+
+        if (sums.isSparse()) {
+            int nonZero = 0;
+            int nulls = 0;
+            for (int i = 0; i < n; i++) {
+                nonZero += floatingSums ? (doubles[i] != 0.0 ? 1 : 0) : (longs[i] != 0L ? 1 : 0);
+                nulls += 1 - (int) present[i];
+            }
+            int entries = nonZero + (counted ? 2 + 2 * nulls : 0);
+            if (!sums.shouldDensify(entries)) {
+                addSparse(sums, n);
+                return;
+            }
+            sums.densify();
+        }
+
+        if (floatingSums) {
+            add(sums.doubleSums(), doubles, n);
+        } else {
+            add(sums.longSums(), longs, n);
+        }
+        if (counted) {
+            add(sums.counts(), present, n);
+        }
+    }
+
+    private void addSparse(ArraySums sums, int n) {
+        for (int i = 0; i < n; i++) {
+            if (floatingSums) {
+                if (doubles[i] != 0.0) {
+                    sums.addSparse(i, doubles[i]);
+                }
+            } else if (longs[i] != 0L) {
+                sums.addSparse(i, longs[i]);
+            }
+        }
+        if (counted) {
+            sums.addCountDelta(0, 1);
+            sums.addCountDelta(n, -1);
+            for (int i = 0; i < n; i++) {
+                if (present[i] == 0) {
+                    sums.addCountDelta(i, -1);
+                    sums.addCountDelta(i + 1, 1);
+                }
+            }
+        }
+    }
+
+    private void addMap(ArraySums sums, Object input, MapObjectInspector mapOI) {
+        PrimitiveObjectInspector keyOI = (PrimitiveObjectInspector) mapOI.getMapKeyObjectInspector();
+        PrimitiveObjectInspector valueOI = (PrimitiveObjectInspector) mapOI.getMapValueObjectInspector();
+        Map<?, ?> map = mapOI.getMap(input);
+        if (map == null) {
+            return;
+        }
+        sums.addRows(1);
+        long n = 0;
+        for (Object key : map.keySet()) {
+            long i = position(key, keyOI);
+            if (i >= 0) {
+                n = Math.max(n, i + 1);
+            }
+        }
+        sums.ensureSize((int) n);
+        if (sums.shouldDensify(map.size())) {
+            sums.densify();
+        }
+        for (Map.Entry<?, ?> e : map.entrySet()) {
+            if (e.getValue() == null) {
+                continue;
+            }
+            int i = (int) position(e.getKey(), keyOI);
+            if (i < 0) {
+                continue;
+            }
+            if (floatingSums) {
+                double v = PrimitiveObjectInspectorUtils.getDouble(e.getValue(), valueOI);
+                if (sums.isSparse()) {
+                    sums.addSparse(i, v);
+                } else {
+                    sums.doubleSums()[i] += v;
+                }
+            } else {
+                long v = PrimitiveObjectInspectorUtils.getLong(e.getValue(), valueOI);
+                if (sums.isSparse()) {
+                    sums.addSparse(i, v);
+                } else {
+                    sums.longSums()[i] += v;
+                }
+            }
+        }
+    }
+
+    // the position of a map key, read as a long so that bigint keys are not truncated; -1 if out of range
+    private static long position(Object key, PrimitiveObjectInspector keyOI) {
+        if (key == null) {
+            return -1;
+        }
+        long i = PrimitiveObjectInspectorUtils.getLong(key, keyOI);
+        return i <= MAX_POSITION ? Math.max(i, -1) : -1;
+    }
+
+    /**
+     * The inspector of the partial results.
+     */
+    public StructObjectInspector partialObjectInspector() {
+        ObjectInspector sumOI = floatingSums
+                ? PrimitiveObjectInspectorFactory.writableDoubleObjectInspector
+                : PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+        ObjectInspector indexOI = ObjectInspectorFactory.getStandardListObjectInspector(
+                PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+
+        List<String> names = new ArrayList<>();
+        List<ObjectInspector> ois = new ArrayList<>();
+        names.add(SIZE_FIELD);
+        ois.add(PrimitiveObjectInspectorFactory.writableIntObjectInspector);
+        names.add(INDEX_FIELD);
+        ois.add(indexOI);
+        names.add(SUM_FIELD);
+        ois.add(ObjectInspectorFactory.getStandardListObjectInspector(sumOI));
+        if (counted) {
+            names.add(ROWS_FIELD);
+            ois.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+            names.add(COUNT_INDEX_FIELD);
+            ois.add(indexOI);
+            names.add(COUNT_FIELD);
+            ois.add(ObjectInspectorFactory.getStandardListObjectInspector(
+                    PrimitiveObjectInspectorFactory.writableLongObjectInspector));
+        }
+        return ObjectInspectorFactory.getStandardStructObjectInspector(names, ois);
+    }
+
+    public Object[] terminatePartial(ArraySums sums) {
+        Object[] partial = new Object[counted ? 6 : 3];
+        partial[0] = new IntWritable(sums.size());
+        if (sums.isSparse()) {
+            SumMap sparseSums = sums.getSparseSums();
+            List<IntWritable> index = new ArrayList<>(sparseSums.size());
+            List<Object> sum = new ArrayList<>(sparseSums.size());
+            for (int entry = 0; entry < sparseSums.size(); entry++) {
+                index.add(new IntWritable((int) sparseSums.getLongKey(entry)));
+                sum.add(floatingSums
+                        ? new DoubleWritable(sparseSums.getDoubleSum(entry))
+                        : new LongWritable(sparseSums.getLongSum(entry)));
+            }
+            partial[1] = index;
+            partial[2] = sum;
+            if (counted) {
+                SumMap countDeltas = sums.getCountDeltas();
+                List<IntWritable> countIndex = new ArrayList<>(countDeltas.size());
+                List<LongWritable> count = new ArrayList<>(countDeltas.size());
+                for (int entry = 0; entry < countDeltas.size(); entry++) {
+                    countIndex.add(new IntWritable((int) countDeltas.getLongKey(entry)));
+                    count.add(new LongWritable(countDeltas.getLongSum(entry)));
+                }
+                partial[4] = countIndex;
+                partial[5] = count;
+            }
+        } else {
+            int n = sums.size();
+            List<Object> sum = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                sum.add(floatingSums
+                        ? new DoubleWritable(sums.getDoubleSum(i))
+                        : new LongWritable(sums.getLongSum(i)));
+            }
+            partial[2] = sum;
+            if (counted) {
+                List<LongWritable> count = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    count.add(new LongWritable(sums.counts()[i]));
+                }
+                partial[5] = count;
+            }
+        }
+        if (counted) {
+            partial[3] = new LongWritable(sums.getRows());
+        }
+        return partial;
+    }
+
+    public void initPartial(StructObjectInspector partialOI) {
+        this.partialOI = partialOI;
+        sizeField = partialOI.getStructFieldRef(SIZE_FIELD);
+        indexField = partialOI.getStructFieldRef(INDEX_FIELD);
+        sumField = partialOI.getStructFieldRef(SUM_FIELD);
+        if (counted) {
+            rowsField = partialOI.getStructFieldRef(ROWS_FIELD);
+            countIndexField = partialOI.getStructFieldRef(COUNT_INDEX_FIELD);
+            countField = partialOI.getStructFieldRef(COUNT_FIELD);
+        }
+    }
+
+    /**
+     * Adds a partial result.
+     */
+    public void merge(ArraySums sums, Object partial) {
+        Object size = partialOI.getStructFieldData(partial, sizeField);
+        sums.ensureSize(PrimitiveObjectInspectorUtils.getInt(size,
+                (PrimitiveObjectInspector) sizeField.getFieldObjectInspector()));
+        if (counted) {
+            Object rows = partialOI.getStructFieldData(partial, rowsField);
+            sums.addRows(PrimitiveObjectInspectorUtils.getLong(rows,
+                    (PrimitiveObjectInspector) rowsField.getFieldObjectInspector()));
+        }
+
+        ListObjectInspector sumOI = (ListObjectInspector) sumField.getFieldObjectInspector();
+        List<?> sum = sumOI.getList(partialOI.getStructFieldData(partial, sumField));
+        PrimitiveObjectInspector sumElementOI = (PrimitiveObjectInspector) sumOI.getListElementObjectInspector();
+        ListObjectInspector countOI = counted ? (ListObjectInspector) countField.getFieldObjectInspector() : null;
+        List<?> count = counted ? countOI.getList(partialOI.getStructFieldData(partial, countField)) : null;
+        PrimitiveObjectInspector countElementOI = counted
+                ? (PrimitiveObjectInspector) countOI.getListElementObjectInspector() : null;
+
+        Object index = partialOI.getStructFieldData(partial, indexField);
+        if (index == null) {
+            // dense
+            sums.densify();
+            int n = sum.size();
+            grow(n);
+            if (floatingSums) {
+                readDoubles(sum, sumElementOI);
+                add(sums.doubleSums(), doubles, n);
+            } else {
+                readLongs(sum, sumElementOI);
+                add(sums.longSums(), longs, n);
+            }
+            if (counted) {
+                int m = Math.min(n, count.size());
+                readLongs(count, countElementOI);
+                add(sums.counts(), longs, m);
+            }
+            return;
+        }
+
+        ListObjectInspector indexOI = (ListObjectInspector) indexField.getFieldObjectInspector();
+        List<?> indices = indexOI.getList(index);
+        PrimitiveObjectInspector indexElementOI = (PrimitiveObjectInspector) indexOI.getListElementObjectInspector();
+        List<?> countIndices = null;
+        PrimitiveObjectInspector countIndexElementOI = null;
+        if (counted) {
+            ListObjectInspector countIndexOI = (ListObjectInspector) countIndexField.getFieldObjectInspector();
+            countIndices = countIndexOI.getList(partialOI.getStructFieldData(partial, countIndexField));
+            countIndexElementOI = (PrimitiveObjectInspector) countIndexOI.getListElementObjectInspector();
+        }
+        if (sums.shouldDensify(indices.size() + (counted ? countIndices.size() : 0))) {
+            sums.densify();
+        }
+
+        for (int j = 0; j < indices.size(); j++) {
+            int i = PrimitiveObjectInspectorUtils.getInt(indices.get(j), indexElementOI);
+            if (floatingSums) {
+                double v = PrimitiveObjectInspectorUtils.getDouble(sum.get(j), sumElementOI);
+                if (sums.isSparse()) {
+                    sums.addSparse(i, v);
+                } else {
+                    sums.doubleSums()[i] += v;
+                }
+            } else {
+                long v = PrimitiveObjectInspectorUtils.getLong(sum.get(j), sumElementOI);
+                if (sums.isSparse()) {
+                    sums.addSparse(i, v);
+                } else {
+                    sums.longSums()[i] += v;
+                }
+            }
+        }
+
+        if (counted) {
+            if (sums.isSparse()) {
+                for (int j = 0; j < countIndices.size(); j++) {
+                    sums.addCountDelta(PrimitiveObjectInspectorUtils.getInt(countIndices.get(j), countIndexElementOI),
+                            PrimitiveObjectInspectorUtils.getLong(count.get(j), countElementOI));
+                }
+            } else {
+                // the counts of the partial are the running sums of its changes
+                int n = sums.size();
+                grow(n + 1);
+                Arrays.fill(longs, 0, n, 0L);
+                for (int j = 0; j < countIndices.size(); j++) {
+                    int i = PrimitiveObjectInspectorUtils.getInt(countIndices.get(j), countIndexElementOI);
+                    if (i < n) {
+                        longs[i] += PrimitiveObjectInspectorUtils.getLong(count.get(j), countElementOI);
+                    }
+                }
+                for (int i = 1; i < n; i++) {
+                    longs[i] += longs[i - 1];
+                }
+                add(sums.counts(), longs, n);
+            }
+        }
+    }
+
+    private void grow(int n) {
+        if (n > doubles.length) {
+            int capacity = Math.max(n, doubles.length * 2);
+            doubles = new double[capacity];
+            longs = new long[capacity];
+            present = new long[capacity];
+        }
+    }
+
+    private void readDoubles(List<?> elements, PrimitiveObjectInspector elementOI) {
+        int n = elements.size();
+        if (elementOI instanceof DoubleObjectInspector) {
+            DoubleObjectInspector oi = (DoubleObjectInspector) elementOI;
+            for (int i = 0; i < n; i++) {
+                Object element = elements.get(i);
+                doubles[i] = element == null ? 0.0 : oi.get(element);
+                present[i] = element == null ? 0 : 1;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                Object element = elements.get(i);
+                doubles[i] = element == null ? 0.0 : PrimitiveObjectInspectorUtils.getDouble(element, elementOI);
+                present[i] = element == null ? 0 : 1;
+            }
+        }
+    }
+
+    private void readLongs(List<?> elements, PrimitiveObjectInspector elementOI) {
+        int n = elements.size();
+        if (elementOI instanceof LongObjectInspector) {
+            LongObjectInspector oi = (LongObjectInspector) elementOI;
+            for (int i = 0; i < n; i++) {
+                Object element = elements.get(i);
+                longs[i] = element == null ? 0L : oi.get(element);
+                present[i] = element == null ? 0 : 1;
+            }
+        } else if (elementOI instanceof IntObjectInspector) {
+            IntObjectInspector oi = (IntObjectInspector) elementOI;
+            for (int i = 0; i < n; i++) {
+                Object element = elements.get(i);
+                longs[i] = element == null ? 0L : oi.get(element);
+                present[i] = element == null ? 0 : 1;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                Object element = elements.get(i);
+                longs[i] = element == null ? 0L : PrimitiveObjectInspectorUtils.getLong(element, elementOI);
+                present[i] = element == null ? 0 : 1;
+            }
+        }
+    }
+
+    /**
+     * sums[i] += values[i] for i < n.
+     */
+    public static void add(double[] sums, double[] values, int n) {
+        for (int i = 0; i < n; i++) {
+            sums[i] += values[i];
+        }
+    }
+
+    /**
+     * sums[i] += values[i] for i < n.
+     */
+    public static void add(long[] sums, long[] values, int n) {
+        for (int i = 0; i < n; i++) {
+            sums[i] += values[i];
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+
+import java.util.Arrays;
+
+
+/**
+ * Element-wise sums of arrays, the aggregation buffer of sum_arrays and avg_arrays.
+ * The sums live in a growable primitive array (long[] for integral, double[] for floating point
+ * values), and for averages the numbers of non-null values per position in a long[], so adding
+ * an array is an in-place add per element, without boxing, writables or a converted copy of the list.
+ * The arrays are added by an {@link ArrayAccumulator}.
+ *
+ * A buffer starts sparse, for arrays that are mostly zeros: only the non-zero sums are kept, in a
+ * {@link SumMap} by position, and the counts as their changes from one position to the next (an array
+ * of length n adds 1 at 0 and -1 at n, a null element -1 at its position and 1 after it), so the count
+ * of a position is the sum of the changes up to it. A buffer turns dense for good once the entries
+ * outnumber a quarter of the positions, where the primitive arrays take less memory.
+ *
+ * Rows counted for every position (maps, sparse vectors of no given length) are kept apart.
+ */
+public class ArraySums {
+
+    private static final int INITIAL_CAPACITY = 16;
+    // a reset buffer shrinks back when it grew beyond this number of positions
+    private static final int RETAINED_CAPACITY = 1 << 12;
+    // a sparse buffer turns dense once it has more entries than this fraction of the positions
+    private static final double DENSE_FILL = 0.25;
+
+    private final boolean floatingSums;
+    private final boolean counted;
+
+    private boolean sparse = true;
+    // while sparse: the non-zero sums and the changes of the counts by position
+    private final SumMap sparseSums;
+    private final SumMap countDeltas;
+    // once dense, and zeros while sparse
+    private long[] longSums;
+    private double[] doubleSums;
+    private long[] counts;
+    private int size = 0;
+    // rows counted for every position
+    private long rows = 0;
+
+    public ArraySums(boolean floatingSums, boolean counted) {
+        this.floatingSums = floatingSums;
+        this.counted = counted;
+        this.sparseSums = new SumMap(true, floatingSums);
+        this.countDeltas = counted ? new SumMap(true, false) : null;
+    }
+
+    private void allocate(int capacity) {
+        if (floatingSums) {
+            doubleSums = new double[capacity];
+        } else {
+            longSums = new long[capacity];
+        }
+        if (counted) {
+            counts = new long[capacity];
+        }
+    }
+
+    private int capacity() {
+        if (floatingSums) {
+            return doubleSums == null ? 0 : doubleSums.length;
+        }
+        return longSums == null ? 0 : longSums.length;
+    }
+
+    public boolean hasFloatingSums() {
+        return floatingSums;
+    }
+
+    public boolean isCounted() {
+        return counted;
+    }
+
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * The number of positions: the length of the longest array added.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Extends the sums with zeros up to the given number of positions.
+     */
+    public void ensureSize(int n) {
+        if (n <= size) {
+            return;
+        }
+        if (!sparse && n > capacity()) {
+            int capacity = Math.max(n, capacity() * 2);
+            if (floatingSums) {
+                doubleSums = Arrays.copyOf(doubleSums, capacity);
+            } else {
+                longSums = Arrays.copyOf(longSums, capacity);
+            }
+            if (counted) {
+                counts = Arrays.copyOf(counts, capacity);
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Whether a sparse buffer should turn dense before taking the given number of entries more.
+     */
+    boolean shouldDensify(int entries) {
+        int sparseEntries = sparseSums.size() + (counted ? countDeltas.size() : 0);
+        return sparse && sparseEntries + entries > size * DENSE_FILL;
+    }
+
+    /**
+     * Turns a sparse buffer dense; the getters of the sums and the counts need a dense buffer.
+     */
+    public void densify() {
+        if (!sparse) {
+            return;
+        }
+        if (capacity() < Math.max(INITIAL_CAPACITY, size)) {
+            allocate(Math.max(INITIAL_CAPACITY, size));
+        }
+        for (int entry = 0; entry < sparseSums.size(); entry++) {
+            int i = (int) sparseSums.getLongKey(entry);
+            if (floatingSums) {
+                doubleSums[i] += sparseSums.getDoubleSum(entry);
+            } else {
+                longSums[i] += sparseSums.getLongSum(entry);
+            }
+        }
+        if (counted) {
+            for (int entry = 0; entry < countDeltas.size(); entry++) {
+                int i = (int) countDeltas.getLongKey(entry);
+                if (i < size) {
+                    counts[i] += countDeltas.getLongSum(entry);
+                }
+            }
+            for (int i = 1; i < size; i++) {
+                counts[i] += counts[i - 1];
+            }
+        }
+        sparseSums.clear();
+        if (counted) {
+            countDeltas.clear();
+        }
+        sparse = false;
+    }
+
+    // sparse updates, at positions below size()
+    void addSparse(int i, long value) {
+        sparseSums.add(sparseSums.entry(i), value);
+    }
+
+    void addSparse(int i, double value) {
+        sparseSums.add(sparseSums.entry(i), value);
+    }
+
+    void addCountDelta(int i, long delta) {
+        countDeltas.add(countDeltas.entry(i), delta);
+    }
+
+    /**
+     * Counts rows for every position.
+     */
+    void addRows(long rows) {
+        this.rows += rows;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getLongSum(int i) {
+        return longSums[i];
+    }
+
+    public double getDoubleSum(int i) {
+        return doubleSums[i];
+    }
+
+    /**
+     * The count of a position, with the rows counted for every position.
+     */
+    public long getCount(int i) {
+        return counts[i] + rows;
+    }
+
+    /**
+     * The sums of a sparse buffer by position.
+     */
+    public SumMap getSparseSums() {
+        return sparseSums;
+    }
+
+    /**
+     * The changes of the counts by position of a sparse buffer.
+     */
+    public SumMap getCountDeltas() {
+        return countDeltas;
+    }
+
+    // the arrays the accumulator adds to, valid up to size() once dense
+    long[] longSums() {
+        return longSums;
+    }
+
+    double[] doubleSums() {
+        return doubleSums;
+    }
+
+    long[] counts() {
+        return counts;
+    }
+
+    /**
+     * Empties the buffer, which starts sparse again.
+     */
+    public void clear() {
+        if (capacity() > RETAINED_CAPACITY) {
+            longSums = null;
+            doubleSums = null;
+            counts = null;
+        } else if (!sparse) {
+            if (floatingSums) {
+                Arrays.fill(doubleSums, 0, size, 0.0);
+            } else {
+                Arrays.fill(longSums, 0, size, 0L);
+            }
+            if (counted) {
+                Arrays.fill(counts, 0, size, 0L);
+            }
+        }
+        sparseSums.clear();
+        if (counted) {
+            countDeltas.clear();
+        }
+        sparse = true;
+        size = 0;
+        rows = 0;
+    }
+
+    /**
+     * Estimated heap size in bytes.
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        int capacity = capacity();
+        int bytes = model.object() + sparseSums.estimate() + (counted ? countDeltas.estimate() : 0);
+        if (capacity > 0) {
+            bytes += model.lengthForLongArrayOfSize(capacity)
+                    + (counted ? model.lengthForLongArrayOfSize(capacity) : 0);
+        }
+        return bytes;
+    }
+}
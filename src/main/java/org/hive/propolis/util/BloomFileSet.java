@@ -0,0 +1,239 @@
+package org.hive.propolis.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Approximate {@link FileSet}: a Bloom filter of the lines of a file, built by {@link BloomFileSetBuilder}.
+ * It takes about 10 bits per entry for a false positive probability of 1% (14 bits for 0.1%) whatever
+ * the length of the values, so lists of hundreds of millions of entries fit into a task. Membership
+ * is approximate in one direction only: every value of the list is found, and a value that is not in
+ * the list is found with the false positive probability the filter was built for.
+ *
+ * Layout (big-endian): the "PBLF" magic, format version, number of hash functions, number of bits,
+ * number of entries, then the bit array, bit i being bit (i mod 8) of byte i / 8. Unlike the filters of
+ * bloom_build ({@link BloomFilters}), the bit array is not limited to 2^31 bits. A plain local file is
+ * memory-mapped, a compressed or remote one is read into the heap.
+ */
+public class BloomFileSet implements FileSet {
+
+    static final byte[] MAGIC = {'P', 'B', 'L', 'F'};
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4 + 8 + 8;
+
+    // the bit array is split into 1GB buffers, read with absolute gets only
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final ByteBuffer[] segments;
+    private final int numHashes;
+    private final long numBits;
+    private final long entries;
+
+    private BloomFileSet(ByteBuffer[] segments, int numHashes, long numBits, long entries) {
+        this.segments = segments;
+        this.numHashes = numHashes;
+        this.numBits = numBits;
+        this.entries = entries;
+    }
+
+    private static long byteSize(long numBits) {
+        return (numBits + 7) >>> 3;
+    }
+
+    private static int segmentCount(long numBits) {
+        return (int) ((byteSize(numBits) + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+    }
+
+    private static int segmentSize(long numBits, int segment) {
+        return (int) Math.min(1L << SEGMENT_SHIFT, byteSize(numBits) - ((long) segment << SEGMENT_SHIFT));
+    }
+
+    /**
+     * Bit of the i-th hash function, by double hashing of the value's hash.
+     */
+    private static long bit(long hash, long hash2, int i, long numBits) {
+        return ((hash + i * hash2) & Long.MAX_VALUE) % numBits;
+    }
+
+    private static long secondHash(long hash) {
+        return Hashing.mix64(hash + 0x9e3779b97f4a7c15L) | 1;
+    }
+
+    private static void checkHeader(byte[] magic, int version) throws IOException {
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a Bloom filter set");
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported Bloom filter set version " + version);
+        }
+    }
+
+    public static BloomFileSet open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_SIZE, channel.size()));
+            if (header.capacity() < HEADER_SIZE) {
+                throw new IOException("Bloom filter set is truncated");
+            }
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            checkHeader(magic, header.getInt(MAGIC.length));
+            int numHashes = header.getInt(MAGIC.length + 4);
+            long numBits = header.getLong(MAGIC.length + 8);
+            long entries = header.getLong(MAGIC.length + 16);
+            if (numHashes <= 0 || numBits <= 0 || HEADER_SIZE + byteSize(numBits) > channel.size()) {
+                throw new IOException("Bloom filter set is truncated");
+            }
+
+            // the mappings stay valid after the channel is closed
+            ByteBuffer[] segments = new ByteBuffer[segmentCount(numBits)];
+            for (int s = 0; s < segments.length; s++) {
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + ((long) s << SEGMENT_SHIFT), segmentSize(numBits, s));
+            }
+            return new BloomFileSet(segments, numHashes, numBits, entries);
+        }
+    }
+
+    /**
+     * Reads a filter from a stream (e.g. of a compressed or remote file) into the heap.
+     */
+    public static BloomFileSet read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            checkHeader(magic, in.readInt());
+            int numHashes = in.readInt();
+            long numBits = in.readLong();
+            long entries = in.readLong();
+            if (numHashes <= 0 || numBits <= 0) {
+                throw new IOException("Bloom filter set is corrupt");
+            }
+
+            ByteBuffer[] segments = new ByteBuffer[segmentCount(numBits)];
+            for (int s = 0; s < segments.length; s++) {
+                byte[] bytes = new byte[segmentSize(numBits, s)];
+                in.readFully(bytes);
+                segments[s] = ByteBuffer.wrap(bytes);
+            }
+            return new BloomFileSet(segments, numHashes, numBits, entries);
+        } catch (EOFException e) {
+            throw new IOException("Bloom filter set is truncated", e);
+        }
+    }
+
+    @Override
+    public boolean contains(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return contains(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public boolean contains(long value) {
+        return contains(Long.toString(value));
+    }
+
+    @Override
+    public boolean contains(byte[] utf8, int offset, int length) {
+        long hash = Hashing.hash64(utf8, offset, length);
+        long hash2 = secondHash(hash);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = bit(hash, hash2, i, numBits);
+            long index = bit >>> 3;
+            byte b = segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+            if ((b & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Approximate number of distinct values: the values added while building that set at least one bit.
+     */
+    @Override
+    public long size() {
+        return entries;
+    }
+
+    /**
+     * Builds a filter in the heap (about numBits / 8 bytes) and writes it out.
+     */
+    public static class Builder {
+
+        private final byte[][] segments;
+        private final int numHashes;
+        private final long numBits;
+        private long entries = 0;
+
+        public Builder(long expectedEntries, double fpp) {
+            this.numBits = BloomFilters.optimalBits(expectedEntries, fpp);
+            this.numHashes = BloomFilters.optimalHashes(expectedEntries, numBits);
+            this.segments = new byte[segmentCount(numBits)][];
+            for (int s = 0; s < segments.length; s++) {
+                segments[s] = new byte[segmentSize(numBits, s)];
+            }
+        }
+
+        /**
+         * Adds a UTF-8 value; returns false if all its bits were set already (a duplicate or a false positive).
+         */
+        public boolean add(byte[] utf8, int offset, int length) {
+            long hash = Hashing.hash64(utf8, offset, length);
+            long hash2 = secondHash(hash);
+            boolean added = false;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = bit(hash, hash2, i, numBits);
+                long index = bit >>> 3;
+                byte[] segment = segments[(int) (index >>> SEGMENT_SHIFT)];
+                int pos = (int) (index & SEGMENT_MASK);
+                int mask = 1 << (bit & 7);
+                if ((segment[pos] & mask) == 0) {
+                    segment[pos] |= mask;
+                    added = true;
+                }
+            }
+            if (added) {
+                entries++;
+            }
+            return added;
+        }
+
+        public long getNumBits() {
+            return numBits;
+        }
+
+        public int getNumHashes() {
+            return numHashes;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(numHashes);
+            data.writeLong(numBits);
+            data.writeLong(entries);
+            for (byte[] segment : segments) {
+                data.write(segment);
+            }
+            data.flush();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * Converts a plain text list (one value per line, UTF-8) into an approximate {@link BloomFileSet}
+ * for intersect_file and subtract_file:
+ *
+ * java -cp propolis.jar org.hive.propolis.util.BloomFileSetBuilder blocklist.txt blocklist.bloom 0.001
+ *
+ * The false positive probability defaults to 0.01. Unless the expected number of entries is given
+ * as the fourth argument, the list is read twice, first to count its lines. The tool needs a heap of
+ * the size of the filter, not of the list.
+ */
+public class BloomFileSetBuilder {
+
+    private static long countLines(Path input) throws IOException {
+        long lines = 0;
+        try (LineReader reader = new LineReader(Files.newInputStream(input), FileSets.BUFFER_SIZE)) {
+            Text line = new Text();
+            while (reader.readLine(line) > 0) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: BloomFileSetBuilder <input text file> <output filter file> "
+                    + "[fpp [expected entries]]");
+            System.exit(1);
+        }
+
+        Path input = Paths.get(args[0]);
+        double fpp = args.length >= 3 ? Double.parseDouble(args[2]) : BloomFilters.DEFAULT_FPP;
+        long expectedEntries = args.length == 4 ? Long.parseLong(args[3]) : Math.max(1, countLines(input));
+
+        BloomFileSet.Builder builder = new BloomFileSet.Builder(expectedEntries, fpp);
+        try (LineReader reader = new LineReader(Files.newInputStream(input), FileSets.BUFFER_SIZE)) {
+            Text line = new Text();
+            while (reader.readLine(line) > 0) {
+                builder.add(line.getBytes(), 0, line.getLength());
+            }
+        }
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1])), 1 << 16)) {
+            builder.write(out);
+        }
+        System.out.println("Wrote a filter of " + builder.getNumBits() + " bits and " + builder.getNumHashes()
+                + " hash functions for about " + builder.getEntries() + " distinct values to " + args[1]);
+    }
+}
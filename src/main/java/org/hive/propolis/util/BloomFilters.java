@@ -0,0 +1,89 @@
+package org.hive.propolis.util;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.hash.Hash;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+
+/**
+ * Helpers for the serialized Bloom filters built by bloom_build ({@link org.hive.propolis.BloomFilterUDAF})
+ * and used as prefilters by the lookup functions.
+ *
+ * A filter is stored in the {@link BloomFilter#write} format; the base64 text which Hive writes for
+ * a binary column into a text table (e.g. by "insert overwrite directory") is accepted as well.
+ * Keys are the UTF-8 bytes of the values' string representation.
+ */
+public final class BloomFilters {
+
+    public static final long DEFAULT_EXPECTED_ENTRIES = 1000000L;
+    public static final double DEFAULT_FPP = 0.01;
+
+    private BloomFilters() {
+    }
+
+    /**
+     * Number of bits of a filter for the expected number of entries and false positive probability.
+     */
+    public static long optimalBits(long expectedEntries, double fpp) {
+        if (expectedEntries <= 0 || fpp <= 0.0 || fpp >= 1.0) {
+            throw new IllegalArgumentException("Bloom filter needs expected entries > 0 and 0 < fpp < 1, but "
+                    + expectedEntries + " and " + fpp + " were given");
+        }
+        return (long) Math.ceil(-expectedEntries * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    }
+
+    /**
+     * Number of hash functions minimizing the false positive probability of a filter of the given size.
+     */
+    public static int optimalHashes(long expectedEntries, long bits) {
+        return Math.max(1, (int) Math.round((double) bits / expectedEntries * Math.log(2)));
+    }
+
+    /**
+     * Creates an empty filter sized for the expected number of entries and false positive probability.
+     */
+    public static BloomFilter create(long expectedEntries, double fpp) {
+        long bits = optimalBits(expectedEntries, fpp);
+        if (bits > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter for " + expectedEntries
+                    + " entries with fpp " + fpp + " does not fit into 2^31 bits");
+        }
+        int vectorSize = (int) bits;
+        return new BloomFilter(vectorSize, optimalHashes(expectedEntries, vectorSize), Hash.MURMUR_HASH);
+    }
+
+    public static byte[] toBytes(BloomFilter filter) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        filter.write(out);
+        return Arrays.copyOf(out.getData(), out.getLength());
+    }
+
+    public static BloomFilter fromBytes(byte[] bytes, int offset, int length) throws IOException {
+        // the serialized form starts with a negative version int (0xFF...), which is never a base64 character
+        if (length > 0 && bytes[offset] != (byte) 0xFF) {
+            bytes = Base64.decodeBase64(new String(bytes, offset, length, "US-ASCII").trim());
+            offset = 0;
+            length = bytes.length;
+        }
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, offset, length);
+        BloomFilter filter = new BloomFilter();
+        filter.readFields(in);
+        return filter;
+    }
+
+    /**
+     * Loads a filter from the distributed cache (looked up by file name in the working directory)
+     * or from a local path.
+     */
+    public static BloomFilter load(String filePath) throws IOException {
+        byte[] bytes = Files.readAllBytes(FileSets.resolve(filePath));
+        return fromBytes(bytes, 0, bytes.length);
+    }
+}
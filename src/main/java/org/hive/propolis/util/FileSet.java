@@ -0,0 +1,26 @@
+package org.hive.propolis.util;
+
+
+/**
+ * Immutable set of the lines of a file, as used by intersect_file and subtract_file.
+ * Implementations are safe to share between threads and function instances.
+ */
+public interface FileSet {
+
+    boolean contains(String value);
+
+    /**
+     * Membership of a UTF-8 encoded string, e.g. of the bytes of a Text.
+     */
+    boolean contains(byte[] utf8, int offset, int length);
+
+    /**
+     * Membership of an integral value, i.e. of its decimal representation.
+     */
+    boolean contains(long value);
+
+    /**
+     * Number of distinct lines in the set.
+     */
+    long size();
+}
@@ -0,0 +1,282 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Loads the {@link FileSet}s of the file based functions. A file is either a plain UTF-8 text list,
+ * read into the heap, a {@link SortedStringTable} or an approximate {@link BloomFileSet}; the binary
+ * formats are memory-mapped when they are plain local files (and read into the heap otherwise).
+ *
+ * A file is looked up in the distributed cache (by file name in the working directory), then as a
+ * local path, then on its Hadoop {@link FileSystem} (HDFS for paths without a scheme), so large
+ * lists can be read straight from HDFS without "add file". Files with a known compression suffix
+ * (.gz, .bz2, .snappy, .zst, ... as configured by io.compression.codecs) are decompressed on the fly.
+ *
+ * Loaded sets are kept in a JVM-wide registry keyed by the file path, modification time and size,
+ * so every function instance of the JVM (several calls in a query, copies of an instance, the
+ * tasks of a reused JVM) shares one immutable set, and a file is parsed once even when many
+ * instances ask for it at the same time. The registry references the sets weakly: a set lives as
+ * long as a function instance holds it.
+ */
+public final class FileSets {
+
+    static final int BUFFER_SIZE = 1 << 20;
+    // the binary formats start with a 4 byte magic
+    private static final int MAGIC_LENGTH = 4;
+
+    private static final Map<Key, WeakReference<FileSet>> sets = new HashMap<>();
+    private static final Map<Key, FutureTask<FileSet>> loading = new HashMap<>();
+
+    private static final class Key {
+        final String path;
+        final long modified;
+        final long size;
+        final boolean integral;
+
+        Key(String path, long modified, long size, boolean integral) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.integral = integral;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return path.equals(that.path) && modified == that.modified && size == that.size
+                    && integral == that.integral;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 31 * path.hashCode() + (int) (modified ^ (modified >>> 32));
+            hash = 31 * hash + (int) (size ^ (size >>> 32));
+            return 31 * hash + (integral ? 1 : 0);
+        }
+    }
+
+    /**
+     * A resolved file: a local path or a path of a Hadoop file system.
+     */
+    private static final class Source {
+        final Path local;
+        final org.apache.hadoop.fs.Path remote;
+        final FileSystem fs;
+        final long modified;
+        final long size;
+
+        Source(Path local, long modified, long size) {
+            this.local = local;
+            this.remote = null;
+            this.fs = null;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        Source(FileSystem fs, FileStatus status) {
+            this.local = null;
+            this.remote = status.getPath();
+            this.fs = fs;
+            this.modified = status.getModificationTime();
+            this.size = status.getLen();
+        }
+
+        org.apache.hadoop.fs.Path getHadoopPath() {
+            return local != null ? new org.apache.hadoop.fs.Path(local.toUri()) : remote;
+        }
+
+        InputStream open() throws IOException {
+            return local != null ? Files.newInputStream(local) : fs.open(remote, BUFFER_SIZE);
+        }
+
+        @Override
+        public String toString() {
+            return getHadoopPath().toString();
+        }
+    }
+
+    private FileSets() {
+    }
+
+    /**
+     * Finds a file of the distributed cache (by file name in the working directory) or a local file.
+     */
+    public static Path resolve(String filePath) throws IOException {
+        Path fullFilePath = FileSystems.getDefault().getPath(filePath);
+        Path fileName = fullFilePath.getFileName();
+        if (Files.exists(fileName)) {
+            return fileName;
+        } else if (Files.exists(fullFilePath)) {
+            return fullFilePath;
+        }
+        throw new FileNotFoundException("Could not find \"" + fileName + "\" or \"" + fullFilePath + "\"");
+    }
+
+    private static Source resolve(String filePath, Configuration conf) throws IOException {
+        org.apache.hadoop.fs.Path hadoopPath = new org.apache.hadoop.fs.Path(filePath);
+        String scheme = hadoopPath.toUri().getScheme();
+        if (scheme == null || "file".equals(scheme)) {
+            try {
+                Path local = resolve(hadoopPath.toUri().getPath()).toAbsolutePath().normalize();
+                BasicFileAttributes attributes = Files.readAttributes(local, BasicFileAttributes.class);
+                return new Source(local, attributes.lastModifiedTime().toMillis(), attributes.size());
+            } catch (FileNotFoundException e) {
+                if (scheme != null) {
+                    throw e;
+                }
+            }
+        }
+
+        FileSystem fs = hadoopPath.getFileSystem(conf);
+        try {
+            return new Source(fs, fs.getFileStatus(hadoopPath));
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException("Could not find \"" + filePath + "\" in the distributed cache, "
+                    + "locally or on " + fs.getUri());
+        }
+    }
+
+    /**
+     * Returns the shared set of the file, loading it if no other instance did.
+     */
+    public static FileSet load(String filePath, Configuration conf) throws IOException {
+        return load(filePath, false, conf);
+    }
+
+    /**
+     * Same as {@link #load(String, Configuration)}; with integral set a text list is loaded as a
+     * set of primitive longs, to be probed with {@link FileSet#contains(long)}.
+     */
+    public static FileSet load(String filePath, final boolean integral, final Configuration conf)
+            throws IOException {
+        final Source source = resolve(filePath, conf);
+        Key key = new Key(source.toString(), source.modified, source.size, integral);
+
+        FutureTask<FileSet> task;
+        boolean loader = false;
+        synchronized (FileSets.class) {
+            WeakReference<FileSet> reference = sets.get(key);
+            FileSet set = reference == null ? null : reference.get();
+            if (set != null) {
+                return set;
+            }
+            task = loading.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<FileSet>() {
+                    @Override
+                    public FileSet call() throws IOException {
+                        return read(source, integral, conf);
+                    }
+                });
+                loading.put(key, task);
+                loader = true;
+            }
+        }
+
+        FileSet set = null;
+        try {
+            if (loader) {
+                task.run();
+            }
+            set = task.get();
+            return set;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + source + " to load");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            if (loader) {
+                synchronized (FileSets.class) {
+                    loading.remove(key);
+                    expungeCleared();
+                    if (set != null) {
+                        sets.put(key, new WeakReference<>(set));
+                    }
+                }
+            }
+        }
+    }
+
+    private static FileSet read(Source source, boolean integral, Configuration conf) throws IOException {
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(source.getHadoopPath());
+        if (codec == null && source.local != null) {
+            byte[] magic = new byte[MAGIC_LENGTH];
+            int read;
+            try (InputStream in = Files.newInputStream(source.local)) {
+                read = readMagic(in, magic);
+            }
+            if (read == MAGIC_LENGTH && Arrays.equals(magic, SortedStringTable.MAGIC)) {
+                return SortedStringTable.open(source.local);
+            } else if (read == MAGIC_LENGTH && Arrays.equals(magic, BloomFileSet.MAGIC)) {
+                return BloomFileSet.open(source.local);
+            }
+        }
+
+        InputStream raw = source.open();
+        try (PushbackInputStream in = new PushbackInputStream(
+                codec == null ? raw : codec.createInputStream(raw), MAGIC_LENGTH)) {
+            byte[] magic = new byte[MAGIC_LENGTH];
+            int read = readMagic(in, magic);
+            in.unread(magic, 0, read);
+
+            if (read == MAGIC_LENGTH && Arrays.equals(magic, SortedStringTable.MAGIC)) {
+                return SortedStringTable.read(in);
+            } else if (read == MAGIC_LENGTH && Arrays.equals(magic, BloomFileSet.MAGIC)) {
+                return BloomFileSet.read(in);
+            }
+            LineReader reader = new LineReader(in, BUFFER_SIZE);
+            return integral ? LongFileSet.load(reader) : HashFileSet.load(reader);
+        } finally {
+            raw.close();
+        }
+    }
+
+    private static int readMagic(InputStream in, byte[] magic) throws IOException {
+        int read = 0;
+        int n;
+        while (read < magic.length && (n = in.read(magic, read, magic.length - read)) > 0) {
+            read += n;
+        }
+        return read;
+    }
+
+    private static void expungeCleared() {
+        Iterator<WeakReference<FileSet>> it = sets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().get() == null) {
+                it.remove();
+            }
+        }
+    }
+}
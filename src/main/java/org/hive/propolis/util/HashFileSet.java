@@ -0,0 +1,54 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * {@link FileSet} of a plain text file with one value per line, loaded into the heap
+ * as a {@link Utf8HashSet}.
+ */
+public class HashFileSet implements FileSet {
+
+    private final Utf8HashSet set;
+
+    private HashFileSet(Utf8HashSet set) {
+        this.set = set;
+    }
+
+    /**
+     * Loads the lines (UTF-8, terminated by LF, CR or CRLF) without decoding them.
+     */
+    public static HashFileSet load(LineReader reader) throws IOException {
+        Utf8HashSet set = new Utf8HashSet();
+        Text line = new Text();
+        while (reader.readLine(line) > 0) {
+            set.add(line.getBytes(), 0, line.getLength());
+        }
+        return new HashFileSet(set);
+    }
+
+    @Override
+    public boolean contains(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return set.contains(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public boolean contains(byte[] utf8, int offset, int length) {
+        return set.contains(utf8, offset, length);
+    }
+
+    @Override
+    public boolean contains(long value) {
+        return contains(Long.toString(value));
+    }
+
+    @Override
+    public long size() {
+        return set.size();
+    }
+}
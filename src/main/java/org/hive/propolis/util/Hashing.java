@@ -0,0 +1,38 @@
+package org.hive.propolis.util;
+
+
+/**
+ * The 64 bit hashes of the stored formats: the Bloom filter files of {@link BloomFileSet} and the
+ * serialized {@link HyperLogLog} sketches are built from them, so a change to either function makes
+ * every file and sketch written before it answer wrong, without an error. Keep them as they are.
+ *
+ * In-memory hash tables (e.g. {@link SumMap}) are free to use hashes of their own.
+ */
+public final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * 64 bit FNV-1a of the bytes with the murmur3 finalizer.
+     */
+    public static long hash64(byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ bytes[i]) * 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    /**
+     * The murmur3 64 bit finalizer.
+     */
+    public static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
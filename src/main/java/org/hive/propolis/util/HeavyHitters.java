@@ -0,0 +1,156 @@
+package org.hive.propolis.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Misra-Gries summary of the heaviest keys by the sums of positive weights, the bounded aggregation
+ * buffer of the TOPK mode of sum_maps and counter.
+ *
+ * The summary holds at most 2k entries: adding a new key to a full summary first subtracts the
+ * (k+1)-th largest sum from all the sums and drops the entries left without a positive sum, so at most
+ * k entries survive. The subtracted amounts add up to the offset: every sum is a lower bound of the
+ * true sum of its key, at most offset below it, and a key missing from the summary has a true sum of
+ * at most offset. The offset never exceeds total weight / (k + 1).
+ *
+ * Summaries are mergeable: adding the entries of another summary and its offset keeps the bound
+ * (Agarwal et al., Mergeable Summaries), so partial aggregations ship at most 2k keys.
+ */
+public class HeavyHitters extends SumMap {
+
+    private final int k;
+    private final int capacity;
+    private double offset = 0;
+
+    public HeavyHitters(int k, boolean integralKeys, boolean floatingSums) {
+        super(integralKeys, floatingSums);
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
+        this.capacity = 2 * k;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * The maximum error of the sums.
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    /**
+     * Adds the error of a merged summary.
+     */
+    public void addOffset(double offset) {
+        this.offset += offset;
+    }
+
+    @Override
+    public int entry(long key) {
+        int i = find(key);
+        if (i >= 0) {
+            return i;
+        }
+        if (size() >= capacity) {
+            purge();
+        }
+        return super.entry(key);
+    }
+
+    @Override
+    public int insert(Object key) {
+        if (size() >= capacity) {
+            purge();
+        }
+        return super.insert(key);
+    }
+
+    private void purge() {
+        if (hasFloatingSums()) {
+            double[] sums = doubleSums();
+            Arrays.sort(sums);
+            double threshold = sums[sums.length - k - 1];
+            decrement(threshold);
+            offset += threshold;
+        } else {
+            long[] sums = longSums();
+            Arrays.sort(sums);
+            long threshold = sums[sums.length - k - 1];
+            decrement(threshold);
+            offset += threshold;
+        }
+    }
+
+    /**
+     * Entries of the k largest sums (all the entries if there are at most k), ties broken by entry order.
+     */
+    public int[] top() {
+        int n = size();
+        if (n <= k) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int[] top = new int[k];
+        int count = 0;
+        if (hasFloatingSums()) {
+            double[] sums = doubleSums();
+            Arrays.sort(sums);
+            double kth = sums[n - k];
+            for (int i = 0; i < n && count < k; i++) {
+                if (getDoubleSum(i) > kth) {
+                    top[count++] = i;
+                }
+            }
+            for (int i = 0; i < n && count < k; i++) {
+                if (getDoubleSum(i) == kth) {
+                    top[count++] = i;
+                }
+            }
+        } else {
+            long[] sums = longSums();
+            Arrays.sort(sums);
+            long kth = sums[n - k];
+            for (int i = 0; i < n && count < k; i++) {
+                if (getLongSum(i) > kth) {
+                    top[count++] = i;
+                }
+            }
+            for (int i = 0; i < n && count < k; i++) {
+                if (getLongSum(i) == kth) {
+                    top[count++] = i;
+                }
+            }
+        }
+        return top;
+    }
+
+    private long[] longSums() {
+        long[] sums = new long[size()];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = getLongSum(i);
+        }
+        return sums;
+    }
+
+    private double[] doubleSums() {
+        double[] sums = new double[size()];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = getDoubleSum(i);
+        }
+        return sums;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        offset = 0;
+    }
+}
@@ -0,0 +1,355 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * KLL quantile sketch of doubles (Karnin, Lang, Liberty, "Optimal Quantile Approximation in Streams",
+ * 2016), the buffer of kll_arrays and multiple_kll.
+ *
+ * Values go to level 0 of a stack of compactors; level h holds values of weight 2^h. When the sketch
+ * holds more values than its capacity, the lowest full level is sorted and every other value (starting
+ * at a random one of the first two) moves up a level with double weight. The top level holds up to k
+ * values and the capacities shrink by 2/3 per level below, so a sketch keeps about 3k values whatever
+ * the number of values added. The rank error is about 1.7 / k (0.85% for the default k = 200) with
+ * high probability. Up to the first compaction the quantiles are exact.
+ *
+ * Sketches merge by appending the levels of one to the other and compacting.
+ *
+ * Serialized as the magic "PKLL", the format version, k and the number of values, then (if any) the
+ * minimum, the maximum, the number of levels and the size and the values of each level.
+ */
+public class KllSketch {
+
+    public static final int DEFAULT_K = 200;
+    public static final int MIN_K = 8;
+    public static final int MAX_K = 1 << 16;
+
+    static final byte[] MAGIC = {'P', 'K', 'L', 'L'};
+    static final int VERSION = 1;
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+    private static final int MIN_LEVEL_CAPACITY = 2;
+
+    private final int k;
+    private long n = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    private double[][] levels = new double[0][];
+    private int[] sizes = new int[0];
+    private int retained = 0;
+    private int capacity = 0;
+    // state of the xorshift generator of the compaction offsets, fixed so results are reproducible
+    private long random = 0x9e3779b97f4a7c15L;
+
+    public KllSketch(int k) {
+        if (k < MIN_K || k > MAX_K) {
+            throw new IllegalArgumentException("k must be between " + MIN_K + " and " + MAX_K + ": " + k);
+        }
+        this.k = k;
+        addLevel();
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * The number of values added.
+     */
+    public long getN() {
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return n == 0;
+    }
+
+    public void update(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (n == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        n++;
+        append(0, value);
+        if (retained > capacity) {
+            compress();
+        }
+    }
+
+    private void append(int level, double value) {
+        double[] items = levels[level];
+        if (sizes[level] == items.length) {
+            items = Arrays.copyOf(items, Math.max(MIN_LEVEL_CAPACITY, items.length * 2));
+            levels[level] = items;
+        }
+        items[sizes[level]++] = value;
+        retained++;
+    }
+
+    private int levelCapacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    private void addLevel() {
+        int level = levels.length;
+        levels = Arrays.copyOf(levels, level + 1);
+        sizes = Arrays.copyOf(sizes, level + 1);
+        levels[level] = new double[0];
+        capacity = 0;
+        for (int i = 0; i <= level; i++) {
+            capacity += levelCapacity(i);
+        }
+    }
+
+    private void compress() {
+        while (retained > capacity) {
+            int level = 0;
+            while (sizes[level] < levelCapacity(level)) {
+                level++;
+            }
+            compact(level);
+        }
+    }
+
+    /**
+     * Moves every other value of a level one level up; the smallest value stays if the size is odd.
+     */
+    private void compact(int level) {
+        if (level == levels.length - 1) {
+            addLevel();
+        }
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+        int kept = size & 1;
+        for (int i = kept + nextBit(); i < size; i += 2) {
+            append(level + 1, items[i]);
+        }
+        sizes[level] = kept;
+        retained -= size - kept;
+        // a level shrinks as levels are added above it, or was grown by a merge
+        int levelCapacity = levelCapacity(level);
+        if (items.length > 2 * levelCapacity) {
+            levels[level] = Arrays.copyOf(items, levelCapacity);
+        }
+    }
+
+    private int nextBit() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return (int) (random >>> 63);
+    }
+
+    public void merge(KllSketch other) {
+        if (other.n == 0) {
+            return;
+        }
+        while (levels.length < other.levels.length) {
+            addLevel();
+        }
+        for (int level = 0; level < other.levels.length; level++) {
+            for (int i = 0; i < other.sizes[level]; i++) {
+                append(level, other.levels[level][i]);
+            }
+        }
+        min = n == 0 ? other.min : Math.min(min, other.min);
+        max = n == 0 ? other.max : Math.max(max, other.max);
+        n += other.n;
+        compress();
+    }
+
+    /**
+     * The value of normalized rank q (between 0 and 1): the smallest value with at least q * n values
+     * not above it, the minimum for 0 and the maximum for 1; NaN if the sketch is empty.
+     */
+    public double quantile(double q) {
+        return quantiles(q)[0];
+    }
+
+    /**
+     * The values of the normalized ranks qs as by {@link #quantile(double)}, all from one sorted view
+     * of the sketch.
+     */
+    public double[] quantiles(double... qs) {
+        for (double q : qs) {
+            if (q < 0 || q > 1 || Double.isNaN(q)) {
+                throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+            }
+        }
+        double[] result = new double[qs.length];
+        if (n == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+        SortedView view = null;
+        for (int i = 0; i < qs.length; i++) {
+            if (qs[i] == 0) {
+                result[i] = min;
+            } else if (qs[i] == 1) {
+                result[i] = max;
+            } else {
+                if (view == null) {
+                    view = new SortedView();
+                }
+                result[i] = view.valueOfRank(qs[i] * n);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The retained values in order, with the total weight up to and including each one.
+     */
+    private final class SortedView {
+        private double[] values = new double[0];
+        private long[] ranks = new long[0];
+
+        SortedView() {
+            // the values with their weights, sorted by merging the sorted levels
+            long[] weights = new long[0];
+            for (int level = 0; level < levels.length; level++) {
+                int size = sizes[level];
+                if (size == 0) {
+                    continue;
+                }
+                double[] items = Arrays.copyOf(levels[level], size);
+                Arrays.sort(items);
+                double[] mergedValues = new double[values.length + size];
+                long[] mergedWeights = new long[values.length + size];
+                int i = 0;
+                int j = 0;
+                for (int o = 0; o < mergedValues.length; o++) {
+                    if (j == size || (i < values.length && values[i] <= items[j])) {
+                        mergedValues[o] = values[i];
+                        mergedWeights[o] = weights[i++];
+                    } else {
+                        mergedValues[o] = items[j++];
+                        mergedWeights[o] = 1L << level;
+                    }
+                }
+                values = mergedValues;
+                weights = mergedWeights;
+            }
+            ranks = new long[weights.length];
+            long weight = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weight += weights[i];
+                ranks[i] = weight;
+            }
+        }
+
+        /**
+         * The first value whose total weight reaches the rank, the maximum if none does.
+         */
+        double valueOfRank(double rank) {
+            int low = 0;
+            int high = ranks.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ranks[mid] >= rank) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low < values.length ? values[low] : max;
+        }
+    }
+
+    /**
+     * Estimated heap size in bytes.
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        long bytes = model.object() + model.lengthForObjectArrayOfSize(levels.length)
+                + model.lengthForIntArrayOfSize(sizes.length);
+        for (double[] items : levels) {
+            bytes += model.lengthForDoubleArrayOfSize(items.length);
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    public byte[] toBytes() {
+        try {
+            DataOutputBuffer out = new DataOutputBuffer();
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            WritableUtils.writeVInt(out, k);
+            WritableUtils.writeVLong(out, n);
+            if (n > 0) {
+                out.writeDouble(min);
+                out.writeDouble(max);
+                WritableUtils.writeVInt(out, levels.length);
+                for (int level = 0; level < levels.length; level++) {
+                    WritableUtils.writeVInt(out, sizes[level]);
+                    for (int i = 0; i < sizes[level]; i++) {
+                        out.writeDouble(levels[level][i]);
+                    }
+                }
+            }
+            return Arrays.copyOf(out.getData(), out.getLength());
+        } catch (IOException e) {
+            // not thrown by an in-memory buffer
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static KllSketch fromBytes(byte[] bytes, int offset, int length) throws IOException {
+        if (length < MAGIC.length + 1
+                || !Arrays.equals(Arrays.copyOfRange(bytes, offset, offset + MAGIC.length), MAGIC)) {
+            throw new IOException("Not a KLL sketch");
+        }
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, offset + MAGIC.length, length - MAGIC.length);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported KLL sketch version " + version);
+        }
+        int k = WritableUtils.readVInt(in);
+        if (k < MIN_K || k > MAX_K) {
+            throw new IOException("Corrupt KLL sketch: k " + k);
+        }
+        KllSketch sketch = new KllSketch(k);
+        sketch.n = WritableUtils.readVLong(in);
+        if (sketch.n > 0) {
+            sketch.min = in.readDouble();
+            sketch.max = in.readDouble();
+            int numLevels = WritableUtils.readVInt(in);
+            if (numLevels < 1 || numLevels > 64) {
+                throw new IOException("Corrupt KLL sketch: " + numLevels + " levels");
+            }
+            while (sketch.levels.length < numLevels) {
+                sketch.addLevel();
+            }
+            for (int level = 0; level < numLevels; level++) {
+                int size = WritableUtils.readVInt(in);
+                if (size < 0 || size > in.getLength() - in.getPosition()) {
+                    throw new IOException("KLL sketch is truncated");
+                }
+                double[] items = new double[size];
+                for (int i = 0; i < size; i++) {
+                    items[i] = in.readDouble();
+                }
+                sketch.levels[level] = items;
+                sketch.sizes[level] = size;
+                sketch.retained += size;
+            }
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,94 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * {@link FileSet} of a text file of integers (one per line) for integral array elements.
+ * Lines which are not integers can never match and are skipped.
+ */
+public class LongFileSet implements FileSet {
+
+    private final LongHashSet set;
+
+    private LongFileSet(LongHashSet set) {
+        this.set = set;
+    }
+
+    public static LongFileSet load(LineReader reader) throws IOException {
+        LongHashSet set = new LongHashSet();
+        Text line = new Text();
+        while (reader.readLine(line) > 0) {
+            byte[] bytes = line.getBytes();
+            int length = line.getLength();
+            if (isLong(bytes, length)) {
+                set.add(parseLong(bytes, length));
+            }
+        }
+        return new LongFileSet(set);
+    }
+
+    /**
+     * Whether the bytes are a decimal long as accepted by {@link Long#parseLong(String)}.
+     */
+    static boolean isLong(byte[] bytes, int length) {
+        int start = length > 0 && (bytes[0] == '-' || bytes[0] == '+') ? 1 : 0;
+        if (start == length) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                return false;
+            }
+        }
+        int digits = length - start;
+        // 19 digits fit unless above Long.MAX_VALUE (or below Long.MIN_VALUE), leave those to the JDK
+        if (digits >= 19) {
+            try {
+                Long.parseLong(new String(bytes, 0, length, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] bytes, int length) {
+        boolean negative = bytes[0] == '-';
+        int start = negative || bytes[0] == '+' ? 1 : 0;
+        // accumulate negatively so that Long.MIN_VALUE does not overflow
+        long result = 0;
+        for (int i = start; i < length; i++) {
+            result = result * 10 - (bytes[i] - '0');
+        }
+        return negative ? result : -result;
+    }
+
+    @Override
+    public boolean contains(String value) {
+        try {
+            return set.contains(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] utf8, int offset, int length) {
+        return contains(new String(utf8, offset, length, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean contains(long value) {
+        return set.contains(value);
+    }
+
+    @Override
+    public long size() {
+        return set.size();
+    }
+}
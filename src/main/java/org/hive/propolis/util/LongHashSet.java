@@ -0,0 +1,97 @@
+package org.hive.propolis.util;
+
+
+/**
+ * Open-addressing hash set of primitive longs (linear probing, load factor at most 1/2),
+ * without the boxing and per-entry objects of a HashSet&lt;Long&gt;.
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = 0L;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    // EMPTY marks free slots, so the value itself is tracked aside
+    private boolean hasEmptyValue;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        table = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long value) {
+        // murmur3 finalizer
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (hasEmptyValue) {
+                return false;
+            }
+            hasEmptyValue = true;
+            size++;
+            return true;
+        }
+
+        int i = hash(value) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return hasEmptyValue;
+        }
+
+        int i = hash(value) & mask;
+        long current;
+        while ((current = table[i]) != EMPTY) {
+            if (current == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = table;
+        table = new long[capacity];
+        mask = capacity - 1;
+        for (long value : old) {
+            if (value != EMPTY) {
+                int i = hash(value) & mask;
+                while (table[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+}
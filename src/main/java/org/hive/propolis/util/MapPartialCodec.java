@@ -0,0 +1,387 @@
+package org.hive.propolis.util;
+
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import org.apache.hadoop.hive.ql.session.SessionState;
+import org.apache.hadoop.hive.serde2.io.ByteWritable;
+import org.apache.hadoop.hive.serde2.io.ShortWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * Compact binary partial results of the map valued aggregations (sum_maps, merge_maps, counter),
+ * enabled by "set propolis.udaf.binary.partials=true". Instead of a map of writables, which is
+ * serialized entry by entry and parsed back into a map before merging, a partial is one binary
+ * blob with the keys and the values in separate columns:
+ *
+ * the format byte, the flags byte (LZ4, integral keys, value type), then, LZ4 compressed with
+ * "set propolis.udaf.binary.partials.lz4=true" (prefixed with the uncompressed length), the payload:
+ * the number of entries n, the byte length of the key column (and for string keys of the key length
+ * column), the key columns and the value column. Integral keys are sorted and stored as variable
+ * length deltas, string keys as variable length lengths followed by the UTF-8 bytes; integral values
+ * are variable length longs, floating point values fixed size IEEE 754 bits.
+ *
+ * The {@link Writer} and {@link Reader} are reused from partial to partial; the reader goes
+ * through the columns in place, so nothing is materialized per entry.
+ */
+public final class MapPartialCodec {
+
+    public static final String BINARY_PARTIALS_CONF = "propolis.udaf.binary.partials";
+    public static final String LZ4_CONF = "propolis.udaf.binary.partials.lz4";
+
+    static final byte FORMAT = 1;
+    private static final int FLAG_LZ4 = 1;
+    private static final int FLAG_INTEGRAL_KEYS = 2;
+    private static final int VALUE_TYPE_SHIFT = 2;
+
+    public enum ValueType {
+        LONG, FLOAT, DOUBLE
+    }
+
+    private MapPartialCodec() {
+    }
+
+    /**
+     * Whether binary partials are enabled in the session compiling the query.
+     * Read when the evaluator is created, as the partial type is part of the plan.
+     */
+    public static boolean isEnabled(String conf) {
+        SessionState session = SessionState.get();
+        return session != null && session.getConf() != null && session.getConf().getBoolean(conf, false);
+    }
+
+    /**
+     * Whether keys of the given type are encoded: integral and string keys are.
+     */
+    public static boolean isSupportedKey(PrimitiveObjectInspector.PrimitiveCategory category) {
+        switch (category) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return true;
+            case STRING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static boolean isIntegral(PrimitiveObjectInspector.PrimitiveCategory category) {
+        return isSupportedKey(category) && category != PrimitiveObjectInspector.PrimitiveCategory.STRING;
+    }
+
+    /**
+     * A new writable of an integral type holding the value.
+     */
+    public static Object integralWritable(PrimitiveObjectInspector.PrimitiveCategory category, long value) {
+        switch (category) {
+            case BYTE:
+                return new ByteWritable((byte) value);
+            case SHORT:
+                return new ShortWritable((short) value);
+            case INT:
+                return new IntWritable((int) value);
+            default:
+                return new LongWritable(value);
+        }
+    }
+
+    public static class Writer {
+
+        private final boolean integralKeys;
+        private final ValueType valueType;
+        private final boolean lz4;
+
+        // integral keys with the value bits, sorted on write
+        private long[] longKeys = new long[16];
+        private long[] valueBits = new long[16];
+        private int size = 0;
+
+        private final DataOutputBuffer lengths = new DataOutputBuffer();
+        private final DataOutputBuffer keys = new DataOutputBuffer();
+        private final DataOutputBuffer values = new DataOutputBuffer();
+        private final DataOutputBuffer payload = new DataOutputBuffer();
+        private final BytesWritable result = new BytesWritable();
+        private byte[] compressed = new byte[0];
+
+        public Writer(boolean integralKeys, ValueType valueType, boolean lz4) {
+            this.integralKeys = integralKeys;
+            this.valueType = valueType;
+            this.lz4 = lz4;
+        }
+
+        public void reset() {
+            size = 0;
+            lengths.reset();
+            keys.reset();
+            values.reset();
+        }
+
+        private void ensureCapacity() {
+            if (size == longKeys.length) {
+                longKeys = Arrays.copyOf(longKeys, size * 2);
+                valueBits = Arrays.copyOf(valueBits, size * 2);
+            }
+        }
+
+        public void put(long key, long value) {
+            ensureCapacity();
+            longKeys[size] = key;
+            valueBits[size++] = value;
+        }
+
+        public void put(long key, double value) {
+            put(key, valueType == ValueType.FLOAT
+                    ? Float.floatToRawIntBits((float) value) : Double.doubleToRawLongBits(value));
+        }
+
+        public void put(byte[] key, int offset, int length, long value) throws IOException {
+            WritableUtils.writeVInt(lengths, length);
+            keys.write(key, offset, length);
+            writeValue(value);
+            size++;
+        }
+
+        public void put(byte[] key, int offset, int length, double value) throws IOException {
+            put(key, offset, length, valueType == ValueType.FLOAT
+                    ? Float.floatToRawIntBits((float) value) : Double.doubleToRawLongBits(value));
+        }
+
+        private void writeValue(long bits) throws IOException {
+            switch (valueType) {
+                case LONG:
+                    WritableUtils.writeVLong(values, bits);
+                    break;
+                case FLOAT:
+                    values.writeInt((int) bits);
+                    break;
+                default:
+                    values.writeLong(bits);
+            }
+        }
+
+        /**
+         * The encoded partial, valid until the next call.
+         */
+        public BytesWritable finish() throws IOException {
+            if (integralKeys) {
+                sort(0, size - 1);
+                long previous = 0;
+                for (int i = 0; i < size; i++) {
+                    // sorted, so the deltas are small and positive (or wrap around on overflow)
+                    WritableUtils.writeVLong(keys, longKeys[i] - previous);
+                    previous = longKeys[i];
+                    writeValue(valueBits[i]);
+                }
+            }
+
+            payload.reset();
+            WritableUtils.writeVInt(payload, size);
+            WritableUtils.writeVInt(payload, keys.getLength());
+            if (!integralKeys) {
+                WritableUtils.writeVInt(payload, lengths.getLength());
+                payload.write(lengths.getData(), 0, lengths.getLength());
+            }
+            payload.write(keys.getData(), 0, keys.getLength());
+            payload.write(values.getData(), 0, values.getLength());
+
+            int flags = (integralKeys ? FLAG_INTEGRAL_KEYS : 0) | (valueType.ordinal() << VALUE_TYPE_SHIFT);
+            if (!lz4) {
+                result.setSize(2 + payload.getLength());
+                byte[] bytes = result.getBytes();
+                bytes[0] = FORMAT;
+                bytes[1] = (byte) flags;
+                System.arraycopy(payload.getData(), 0, bytes, 2, payload.getLength());
+                return result;
+            }
+
+            Lz4Compressor compressor = new Lz4Compressor();
+            int maxLength = compressor.maxCompressedLength(payload.getLength());
+            if (compressed.length < maxLength) {
+                compressed = new byte[maxLength];
+            }
+            int length = compressor.compress(payload.getData(), 0, payload.getLength(), compressed, 0, maxLength);
+            DataOutputBuffer header = new DataOutputBuffer(7);
+            header.writeByte(FORMAT);
+            header.writeByte(flags | FLAG_LZ4);
+            WritableUtils.writeVInt(header, payload.getLength());
+            result.setSize(header.getLength() + length);
+            System.arraycopy(header.getData(), 0, result.getBytes(), 0, header.getLength());
+            System.arraycopy(compressed, 0, result.getBytes(), header.getLength(), length);
+            return result;
+        }
+
+        private void sort(int low, int high) {
+            // quicksort of the keys, moving the values along
+            while (low < high) {
+                long pivot = longKeys[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (longKeys[i] < pivot) {
+                        i++;
+                    }
+                    while (longKeys[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        long key = longKeys[i];
+                        longKeys[i] = longKeys[j];
+                        longKeys[j] = key;
+                        long value = valueBits[i];
+                        valueBits[i] = valueBits[j];
+                        valueBits[j] = value;
+                        i++;
+                        j--;
+                    }
+                }
+                // recurse into the smaller part
+                if (j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+        }
+    }
+
+    public static class Reader {
+
+        private final DataInputBuffer lengths = new DataInputBuffer();
+        private final DataInputBuffer keys = new DataInputBuffer();
+        private final DataInputBuffer values = new DataInputBuffer();
+        private byte[] decompressed = new byte[0];
+
+        private boolean integralKeys;
+        private ValueType valueType;
+        private int size;
+        private int read;
+
+        private byte[] keyBytes;
+        private int keyOffset;
+        private int keyLength;
+        private long longKey;
+        private long valueBits;
+
+        public void reset(byte[] bytes, int offset, int length) throws IOException {
+            if (length < 2 || bytes[offset] != FORMAT) {
+                throw new IOException("Not a binary map partial");
+            }
+            int flags = bytes[offset + 1];
+            integralKeys = (flags & FLAG_INTEGRAL_KEYS) != 0;
+            valueType = ValueType.values()[flags >>> VALUE_TYPE_SHIFT];
+
+            if ((flags & FLAG_LZ4) != 0) {
+                DataInputBuffer header = new DataInputBuffer();
+                header.reset(bytes, offset + 2, length - 2);
+                int uncompressed = WritableUtils.readVInt(header);
+                if (decompressed.length < uncompressed) {
+                    decompressed = new byte[uncompressed];
+                }
+                int start = header.getPosition();
+                try {
+                    new Lz4Decompressor().decompress(bytes, start, offset + length - start,
+                            decompressed, 0, uncompressed);
+                } catch (MalformedInputException e) {
+                    throw new IOException("Corrupt binary map partial", e);
+                }
+                bytes = decompressed;
+                offset = 0;
+                length = uncompressed;
+            } else {
+                offset += 2;
+                length -= 2;
+            }
+
+            DataInputBuffer in = keys;
+            in.reset(bytes, offset, length);
+            size = WritableUtils.readVInt(in);
+            int keysLength = WritableUtils.readVInt(in);
+            int lengthsLength = integralKeys ? 0 : WritableUtils.readVInt(in);
+            int start = in.getPosition();
+            int end = offset + length;
+            if (start + lengthsLength + keysLength > end) {
+                throw new IOException("Binary map partial is truncated");
+            }
+            lengths.reset(bytes, start, lengthsLength);
+            keys.reset(bytes, start + lengthsLength, keysLength);
+            values.reset(bytes, start + lengthsLength + keysLength, end - start - lengthsLength - keysLength);
+            keyBytes = bytes;
+            longKey = 0;
+            read = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Moves to the next entry; false after the last one.
+         */
+        public boolean next() throws IOException {
+            if (read == size) {
+                return false;
+            }
+            read++;
+            if (integralKeys) {
+                longKey += WritableUtils.readVLong(keys);
+            } else {
+                keyLength = WritableUtils.readVInt(lengths);
+                keyOffset = keys.getPosition();
+                keys.skip(keyLength);
+            }
+            switch (valueType) {
+                case LONG:
+                    valueBits = WritableUtils.readVLong(values);
+                    break;
+                case FLOAT:
+                    valueBits = values.readInt();
+                    break;
+                default:
+                    valueBits = values.readLong();
+            }
+            return true;
+        }
+
+        public long getLongKey() {
+            return longKey;
+        }
+
+        public byte[] getKeyBytes() {
+            return keyBytes;
+        }
+
+        public int getKeyOffset() {
+            return keyOffset;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        public long getLongValue() {
+            return valueBits;
+        }
+
+        public float getFloatValue() {
+            return Float.intBitsToFloat((int) valueBits);
+        }
+
+        public double getDoubleValue() {
+            return valueType == ValueType.FLOAT ? getFloatValue() : Double.longBitsToDouble(valueBits);
+        }
+    }
+}
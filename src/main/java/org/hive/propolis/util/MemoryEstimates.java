@@ -0,0 +1,57 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+
+/**
+ * Heap size estimates of aggregation buffers (see GenericUDAFEvaluator.AbstractAggregationBuffer#estimate),
+ * by Hive's {@link JavaDataModel}, which lets map-side hash aggregation flush before it runs out of memory.
+ */
+public final class MemoryEstimates {
+
+    private static final JavaDataModel MODEL = JavaDataModel.get();
+
+    private MemoryEstimates() {
+    }
+
+    /**
+     * Size of a boxed primitive or of a writable holding a primitive.
+     */
+    public static int ofPrimitiveObject() {
+        return MODEL.object() + MODEL.primitive2();
+    }
+
+    /**
+     * Size of a map key or other primitive value: strings and binaries by their length.
+     */
+    public static int of(Object value) {
+        if (value instanceof Text) {
+            return MODEL.object() + MODEL.primitive1() + MODEL.lengthForByteArrayOfSize(((Text) value).getLength());
+        } else if (value instanceof String) {
+            return MODEL.lengthForStringOfLength(((String) value).length());
+        } else if (value instanceof BytesWritable) {
+            return MODEL.object() + MODEL.primitive1()
+                    + MODEL.lengthForByteArrayOfSize(((BytesWritable) value).getLength());
+        } else if (value instanceof HiveDecimalWritable) {
+            return MODEL.object() + MODEL.lengthOfDecimal();
+        }
+        return ofPrimitiveObject();
+    }
+
+    /**
+     * Size of an ArrayList of the given number of elements of the given size.
+     */
+    public static int ofList(int size, int elementSize) {
+        return MODEL.arrayList() + MODEL.lengthForObjectArrayOfSize(size) + size * elementSize;
+    }
+
+    /**
+     * Size of a HashMap of the given number of entries, without the keys and values.
+     */
+    public static int ofHashMap(int size) {
+        return MODEL.hashMap(size);
+    }
+}
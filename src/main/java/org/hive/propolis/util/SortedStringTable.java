@@ -0,0 +1,178 @@
+package org.hive.propolis.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Memory-mapped {@link FileSet} of sorted UTF-8 strings, built by {@link SortedStringTableBuilder}.
+ *
+ * Layout (big-endian): the "PSST" magic, format version, number of strings n, n + 1 offsets of
+ * the strings relative to the data section, then the strings themselves, sorted as unsigned bytes
+ * and without duplicates. Lookups are binary searches over the mapped file, so the table takes
+ * no heap and its pages are shared by every task on the node through the OS page cache.
+ * The whole file has to fit into 2GB.
+ */
+public class SortedStringTable implements FileSet {
+
+    static final byte[] MAGIC = {'P', 'S', 'S', 'T'};
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+
+    // read with absolute gets only, so it can be shared between threads
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int dataStart;
+
+    private SortedStringTable(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE) {
+            throw new IOException("Sorted string table is truncated");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IOException("Not a sorted string table");
+            }
+        }
+        int version = buffer.getInt(MAGIC.length);
+        if (version != VERSION) {
+            throw new IOException("Unsupported sorted string table version " + version);
+        }
+        this.count = buffer.getInt(MAGIC.length + 4);
+        this.dataStart = HEADER_SIZE + (count + 1) * 4;
+        if (count < 0 || dataStart > buffer.capacity() || dataStart + offset(count) > buffer.capacity()) {
+            throw new IOException("Sorted string table is truncated");
+        }
+    }
+
+    public static SortedStringTable open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Sorted string table " + path + " is larger than 2GB");
+            }
+            // the mapping stays valid after the channel is closed
+            return new SortedStringTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a table from a stream (e.g. of a compressed or remote file) into the heap.
+     */
+    public static SortedStringTable read(InputStream in) throws IOException {
+        byte[] bytes = new byte[1 << 16];
+        int size = 0;
+        int n;
+        while ((n = in.read(bytes, size, bytes.length - size)) >= 0) {
+            size += n;
+            if (size == bytes.length) {
+                if (bytes.length == Integer.MAX_VALUE - 8) {
+                    throw new IOException("Sorted string table is larger than 2GB");
+                }
+                bytes = Arrays.copyOf(bytes, (int) Math.min((long) bytes.length * 2, Integer.MAX_VALUE - 8));
+            }
+        }
+        return new SortedStringTable(ByteBuffer.wrap(bytes, 0, size).slice());
+    }
+
+    /**
+     * Writes a table of the given strings, which must be sorted by {@link #compare} and distinct.
+     */
+    public static void write(List<byte[]> sortedKeys, OutputStream out) throws IOException {
+        long dataSize = 0;
+        for (byte[] key : sortedKeys) {
+            dataSize += key.length;
+        }
+        if (HEADER_SIZE + (sortedKeys.size() + 1) * 4L + dataSize > Integer.MAX_VALUE) {
+            throw new IOException("Sorted string table of " + sortedKeys.size() + " strings would exceed 2GB");
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(sortedKeys.size());
+        int offset = 0;
+        data.writeInt(offset);
+        for (byte[] key : sortedKeys) {
+            offset += key.length;
+            data.writeInt(offset);
+        }
+        for (byte[] key : sortedKeys) {
+            data.write(key);
+        }
+        data.flush();
+    }
+
+    /**
+     * Unsigned lexicographic order of byte strings, the order of the table.
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private int offset(int i) {
+        return buffer.getInt(HEADER_SIZE + i * 4);
+    }
+
+    @Override
+    public boolean contains(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return contains(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public boolean contains(long value) {
+        return contains(Long.toString(value));
+    }
+
+    @Override
+    public boolean contains(byte[] key, int keyOffset, int keyLength) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareAt(mid, key, keyOffset, keyLength);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int compareAt(int i, byte[] key, int keyOffset, int keyLength) {
+        int start = dataStart + offset(i);
+        int length = dataStart + offset(i + 1) - start;
+        int n = Math.min(length, keyLength);
+        for (int j = 0; j < n; j++) {
+            int cmp = (buffer.get(start + j) & 0xff) - (key[keyOffset + j] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - keyLength;
+    }
+
+    @Override
+    public long size() {
+        return count;
+    }
+}
@@ -0,0 +1,59 @@
+package org.hive.propolis.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Converts a plain text list (one value per line, UTF-8) into a {@link SortedStringTable}
+ * for intersect_file and subtract_file:
+ *
+ * java -cp propolis.jar org.hive.propolis.util.SortedStringTableBuilder allowlist.txt allowlist.sst
+ *
+ * The list is sorted in memory, so the tool needs a heap of about twice the list size.
+ */
+public class SortedStringTableBuilder {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: SortedStringTableBuilder <input text file> <output table file>");
+            System.exit(1);
+        }
+
+        List<byte[]> keys = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                keys.add(line.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        Collections.sort(keys, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                return SortedStringTable.compare(a, b);
+            }
+        });
+        List<byte[]> distinct = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            if (distinct.isEmpty() || SortedStringTable.compare(distinct.get(distinct.size() - 1), key) != 0) {
+                distinct.add(key);
+            }
+        }
+        keys = null;
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1])), 1 << 16)) {
+            SortedStringTable.write(distinct, out);
+        }
+        System.out.println("Wrote " + distinct.size() + " distinct values to " + args[1]);
+    }
+}
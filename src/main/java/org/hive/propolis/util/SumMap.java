@@ -0,0 +1,317 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.hive.ql.util.JavaDataModel;
+
+import java.util.Arrays;
+
+
+/**
+ * Open-addressing map from keys to numeric sums, the aggregation buffer of sum_maps.
+ * Entries are numbered densely in insertion order and the sums live in a primitive array
+ * (long[] for integral, double[] for floating point values) indexed by entry, so an update
+ * is a lookup plus an in-place add, without boxing or per-entry objects.
+ *
+ * Integral keys are held as primitive longs. Other keys are objects (writables) with the usual
+ * equals and hashCode; the map holds them as given, so they are copied by the caller on
+ * {@link #insert(Object)} only.
+ */
+public class SumMap {
+
+    private static final int INITIAL_CAPACITY = 16;
+    // a reset map shrinks back when it grew beyond this number of slots
+    private static final int RETAINED_CAPACITY = 1 << 12;
+
+    private final boolean integralKeys;
+    private final boolean floatingSums;
+
+    // entry i is longKeys[i] or keys[i] with sum longSums[i] or doubleSums[i]
+    private long[] longKeys;
+    private Object[] keys;
+    private int[] hashes;
+    private long[] longSums;
+    private double[] doubleSums;
+    private int size = 0;
+    // estimated heap size of the key objects
+    private long keyBytes = 0;
+
+    // entry index + 1 per slot, 0 for free slots
+    private int[] table;
+    private int mask;
+
+    public SumMap(boolean integralKeys, boolean floatingSums) {
+        this.integralKeys = integralKeys;
+        this.floatingSums = floatingSums;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        int entries = capacity / 2;
+        if (integralKeys) {
+            longKeys = new long[entries];
+        } else {
+            keys = new Object[entries];
+        }
+        hashes = new int[entries];
+        if (floatingSums) {
+            doubleSums = new double[entries];
+        } else {
+            longSums = new long[entries];
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int mix(long h) {
+        // murmur3 finalizer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    public boolean hasIntegralKeys() {
+        return integralKeys;
+    }
+
+    public boolean hasFloatingSums() {
+        return floatingSums;
+    }
+
+    /**
+     * Entry of an integral key, or -1 if the map does not contain it.
+     */
+    public int find(long key) {
+        int slot = mix(key) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (longKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Entry of an integral key, inserted with a zero sum if it is new.
+     */
+    public int entry(long key) {
+        int h = mix(key);
+        int slot = h & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (longKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int i = append(slot, h);
+        longKeys[i] = key;
+        return i;
+    }
+
+    /**
+     * Entry of an object key, or -1 if the map does not contain it.
+     */
+    public int find(Object key) {
+        int h = mix(key.hashCode());
+        int slot = h & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (hashes[entry - 1] == h && keys[entry - 1].equals(key)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts an object key which is not in the map yet with a zero sum; the map keeps the key object.
+     */
+    public int insert(Object key) {
+        int h = mix(key.hashCode());
+        int slot = h & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        int i = append(slot, h);
+        keys[i] = key;
+        keyBytes += MemoryEstimates.of(key);
+        return i;
+    }
+
+    private int append(int slot, int h) {
+        int i = size++;
+        table[slot] = size;
+        hashes[i] = h;
+        if (floatingSums) {
+            doubleSums[i] = 0.0;
+        } else {
+            longSums[i] = 0L;
+        }
+        if (size * 2 == table.length) {
+            grow();
+        }
+        return i;
+    }
+
+    /**
+     * Subtracts the threshold from all the sums and removes the entries left without a positive sum.
+     * The remaining entries are renumbered, keeping their order.
+     */
+    protected void decrement(long threshold) {
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            long sum = longSums[i] - threshold;
+            if (sum > 0) {
+                longSums[j] = sum;
+                move(i, j++);
+            } else {
+                remove(i);
+            }
+        }
+        truncate(j);
+    }
+
+    protected void decrement(double threshold) {
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            double sum = doubleSums[i] - threshold;
+            if (sum > 0) {
+                doubleSums[j] = sum;
+                move(i, j++);
+            } else {
+                remove(i);
+            }
+        }
+        truncate(j);
+    }
+
+    private void move(int from, int to) {
+        if (integralKeys) {
+            longKeys[to] = longKeys[from];
+        } else {
+            keys[to] = keys[from];
+        }
+        hashes[to] = hashes[from];
+    }
+
+    private void remove(int entry) {
+        if (!integralKeys) {
+            keyBytes -= MemoryEstimates.of(keys[entry]);
+        }
+    }
+
+    private void truncate(int newSize) {
+        if (keys != null) {
+            Arrays.fill(keys, newSize, size, null);
+        }
+        size = newSize;
+        Arrays.fill(table, 0);
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    private void grow() {
+        int capacity = table.length * 2;
+        int entries = capacity / 2;
+        if (integralKeys) {
+            longKeys = Arrays.copyOf(longKeys, entries);
+        } else {
+            keys = Arrays.copyOf(keys, entries);
+        }
+        hashes = Arrays.copyOf(hashes, entries);
+        if (floatingSums) {
+            doubleSums = Arrays.copyOf(doubleSums, entries);
+        } else {
+            longSums = Arrays.copyOf(longSums, entries);
+        }
+
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    public void add(int entry, long value) {
+        longSums[entry] += value;
+    }
+
+    public void add(int entry, double value) {
+        doubleSums[entry] += value;
+    }
+
+    /**
+     * Adds with float arithmetic, so the sum is the one of Float values.
+     */
+    public void add(int entry, float value) {
+        doubleSums[entry] = (float) doubleSums[entry] + value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getLongKey(int entry) {
+        return longKeys[entry];
+    }
+
+    public Object getKey(int entry) {
+        return keys[entry];
+    }
+
+    public long getLongSum(int entry) {
+        return longSums[entry];
+    }
+
+    public double getDoubleSum(int entry) {
+        return doubleSums[entry];
+    }
+
+    /**
+     * Estimated heap size in bytes, by the capacity of the arrays and the size of the key objects.
+     */
+    public int estimate() {
+        JavaDataModel model = JavaDataModel.get();
+        long bytes = model.object()
+                + model.lengthForIntArrayOfSize(table.length)
+                + model.lengthForIntArrayOfSize(hashes.length);
+        if (integralKeys) {
+            bytes += model.lengthForLongArrayOfSize(longKeys.length);
+        } else {
+            bytes += model.lengthForObjectArrayOfSize(keys.length) + keyBytes;
+        }
+        if (floatingSums) {
+            bytes += model.lengthForDoubleArrayOfSize(doubleSums.length);
+        } else {
+            bytes += model.lengthForLongArrayOfSize(longSums.length);
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    public void clear() {
+        if (table.length > RETAINED_CAPACITY) {
+            allocate(INITIAL_CAPACITY);
+        } else {
+            Arrays.fill(table, 0);
+            if (keys != null) {
+                Arrays.fill(keys, 0, size, null);
+            }
+        }
+        size = 0;
+        keyBytes = 0;
+    }
+}
@@ -0,0 +1,123 @@
+package org.hive.propolis.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Open-addressing hash set of UTF-8 byte strings. The strings are packed into one byte arena,
+ * so a set takes a few bytes of overhead per entry instead of the String, char[] and HashMap
+ * entry objects of a HashSet&lt;String&gt;, and it is probed with a slice of a byte array
+ * (e.g. the backing array of a Text) without decoding it.
+ */
+public class Utf8HashSet {
+
+    private byte[] arena = new byte[1024];
+    private int arenaSize = 0;
+
+    // entry i is arena[offsets[i], offsets[i + 1])
+    private int[] offsets = new int[17];
+    private int[] hashes = new int[16];
+    private int size = 0;
+
+    // entry index + 1 per slot, 0 for free slots
+    private int[] table = new int[32];
+    private int mask = table.length - 1;
+
+    static int hash(byte[] bytes, int offset, int length) {
+        // FNV-1a with a murmur3 finalizer to spread the low bits used for the slot
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public boolean add(byte[] bytes, int offset, int length) {
+        int h = hash(bytes, offset, length);
+        int slot = find(bytes, offset, length, h);
+        if (table[slot] != 0) {
+            return false;
+        }
+
+        if (arenaSize + length > arena.length) {
+            long capacity = Math.max((long) arena.length * 2, (long) arenaSize + length);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                capacity = Integer.MAX_VALUE - 8;
+                if (arenaSize + length > capacity) {
+                    throw new IllegalStateException("UTF-8 hash set is limited to 2GB of strings");
+                }
+            }
+            arena = Arrays.copyOf(arena, (int) capacity);
+        }
+        System.arraycopy(bytes, offset, arena, arenaSize, length);
+        arenaSize += length;
+
+        if (size + 1 == hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            offsets = Arrays.copyOf(offsets, hashes.length + 1);
+        }
+        hashes[size] = h;
+        offsets[size + 1] = arenaSize;
+        size++;
+        table[slot] = size;
+
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(byte[] bytes, int offset, int length) {
+        return table[find(bytes, offset, length, hash(bytes, offset, length))] != 0;
+    }
+
+    /**
+     * Slot of the string, or the free slot where it would go.
+     */
+    private int find(byte[] bytes, int offset, int length, int h) {
+        int slot = h & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int i = entry - 1;
+            if (hashes[i] == h && equalsAt(i, bytes, offset, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean equalsAt(int i, byte[] bytes, int offset, int length) {
+        int start = offsets[i];
+        if (offsets[i + 1] - start != length) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            if (arena[start + j] != bytes[offset + j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -138,4 +138,67 @@ public class AvgArraysUDAFTest {
         assertArrayEquals(expected.get(0), result.get(0));
         assertArrayEquals(expected.get(1), result.get(1));
     }
+
+    @Test
+    public void testWideArrays() {
+        shell.execute( "create temporary function "
+                + "avg_list as 'org.hive.propolis.AvgArraysUDAF';"
+        );
+
+        /*
+         * Rows r = 0..9 of 1000 elements r + i, so element i averages to i + 4.5
+         */
+        shell.execute("create table vectors as "
+                + "select r, sort_array(collect_list(cast(i + r as bigint))) as col "
+                + "from (select pos as i from (select posexplode(split(space(999), ' '))) e) n "
+                + "lateral view posexplode(split(space(9), ' ')) rs as r, x "
+                + "group by r"
+        );
+
+        List<Object[]> result = shell.executeStatement("select size(m), m[0], m[500], m[999] "
+                + "from (select avg_list(col) as m from vectors) a"
+        );
+
+        assertEquals(1, result.size());
+        assertArrayEquals(new Object[]{1000, 4.5, 504.5, 1003.5}, result.get(0));
+    }
+
+    @Test
+    public void testSparseArraysAndMaps() {
+        shell.execute( "create temporary function "
+                + "avg_list as 'org.hive.propolis.AvgArraysUDAF';"
+        );
+
+        /*
+         * Every map counts for every position, zero where it has no entry
+         */
+        List<Object[]> maps = shell.executeStatement("with t as ( "
+                + "select map(1, 4, 3, 2) as col "
+                + "union all "
+                + "select map(1, 2) as col "
+                + "union all "
+                + "select map(0, 1) as col "
+                + "union all "
+                + "select if(false, map(0, 0), null) as col "
+                + ") "
+                + "select m[0], m[1], m[2], m[3], size(m) from (select avg_list(col) as m from t) a"
+        );
+
+        /*
+         * Mostly zero arrays of 100 elements with nulls at position 50 in half of them
+         */
+        StringBuilder col = new StringBuilder("array(");
+        for (int i = 0; i < 100; i++) {
+            col.append(i == 0 ? "" : ", ").append(i == 50 ? "if(r % 2 = 0, null, 0)" : i == 7 ? "r % 3" : "0");
+        }
+        List<Object[]> arrays = shell.executeStatement("select m[0], m[7], m[50], size(m) "
+                + "from (select avg_list(" + col + ")) as m "
+                + "from (select pos as r from (select posexplode(split(space(599), ' '))) e) n) a"
+        );
+
+        assertEquals(1, maps.size());
+        assertArrayEquals(new Object[]{1.0 / 3, 2.0, 0.0, 2.0 / 3, 4}, maps.get(0));
+        assertEquals(1, arrays.size());
+        assertArrayEquals(new Object[]{0.0, 1.0, 0.0, 100}, arrays.get(0));
+    }
 }
@@ -0,0 +1,73 @@
+package org.hive.propolis;
+
+import com.klarna.hiverunner.HiveShell;
+import com.klarna.hiverunner.StandaloneHiveRunner;
+import com.klarna.hiverunner.annotations.HiveSQL;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+@RunWith(StandaloneHiveRunner.class)
+public class BloomFilterUDAFTest {
+
+    @Rule
+    public TestName name = new TestName();
+
+    @HiveSQL(files = {})
+    private HiveShell shell;
+
+    @Test
+    public void testFilterSize() {
+        shell.execute( "create temporary function "
+                + "bloom_build as 'org.hive.propolis.BloomFilterUDAF';"
+        );
+
+        /*
+         * 1000 entries with fpp 0.01 take 9586 bits (1199 bytes) plus a 13 bytes header
+         */
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'a' as col "
+                + "union all "
+                + "select 'b' as col "
+                + ") "
+                + "select length(bloom_build(col, 1000, 0.01)) "
+                + "from t"
+        );
+
+        assertEquals(1, result.size());
+        assertEquals(1212, result.get(0)[0]);
+    }
+
+    @Test
+    public void testDuplicatesAndNulls() {
+        shell.execute( "create temporary function "
+                + "bloom_build as 'org.hive.propolis.BloomFilterUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, 'a' as col "
+                + "union all "
+                + "select 'u' as uid, 'b' as col "
+                + "union all "
+                + "select 'v' as uid, 'a' as col "
+                + "union all "
+                + "select 'v' as uid, 'b' as col "
+                + "union all "
+                + "select 'v' as uid, 'b' as col "
+                + "union all "
+                + "select 'v' as uid, null as col "
+                + ") "
+                + "select uid, base64(bloom_build(col, 1000, 0.01)) as f "
+                + "from t group by uid"
+        );
+
+        assertEquals(2, result.size());
+        assertEquals(result.get(0)[1], result.get(1)[1]);
+    }
+}
@@ -3,12 +3,22 @@ package org.hive.propolis;
 import com.klarna.hiverunner.HiveShell;
 import com.klarna.hiverunner.StandaloneHiveRunner;
 import com.klarna.hiverunner.annotations.HiveSQL;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.serde2.io.ShortWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.MapObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -157,4 +167,137 @@ public class CounterUDAFTest {
         assertArrayEquals(expected.get(0), result.get(0));
         assertArrayEquals(expected.get(1), result.get(1));
     }
+
+    @Test
+    public void testBinaryPartialsAggregation() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, MAP('a', 1, 'b', 2) as m "
+                        + "union all "
+                        + "select 'v' as uid, MAP('c', 2) as m"
+        );
+
+        shell.execute( "set propolis.udaf.binary.partials=true;"
+                + "create temporary function "
+                + "counter as 'org.hive.propolis.CounterUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, 'b' as col "
+                + "union all "
+                + "select 'u' as uid, 'a' as col "
+                + "union all "
+                + "select 'u' as uid, 'b' as col "
+                + "union all "
+                + "select 'v' as uid, 'c' as col "
+                + "union all "
+                + "select 'v' as uid, NULL as col "
+                + "union all "
+                + "select 'v' as uid, 'c' as col "
+                + ") "
+                + "select uid, counter(col) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 2);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+        assertArrayEquals(expected.get(1), result.get(1));
+    }
+
+    @Test
+    public void testIntBinaryPartialsAggregation() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, MAP(-5, 1, 7, 2) as m"
+        );
+
+        shell.execute( "set propolis.udaf.binary.partials=true;"
+                + "set propolis.udaf.binary.partials.lz4=true;"
+                + "create temporary function "
+                + "counter as 'org.hive.propolis.CounterUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, 7 as col "
+                + "union all "
+                + "select 'u' as uid, -5 as col "
+                + "union all "
+                + "select 'u' as uid, 7 as col "
+                + ") "
+                + "select uid, counter(col) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 1);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+    }
+
+    @Test
+    public void testTopKAggregation() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, MAP('b', 2) as m "
+                        + "union all "
+                        + "select 'v' as uid, MAP('c', 3, 'd', 2) as m"
+        );
+
+        shell.execute( "create temporary function "
+                + "counter as 'org.hive.propolis.CounterUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, 'b' as col, 'b' as col2 "
+                + "union all "
+                + "select 'u' as uid, 'a' as col, NULL as col2 "
+                + "union all "
+                + "select 'v' as uid, 'c' as col, 'd' as col2 "
+                + "union all "
+                + "select 'v' as uid, 'c' as col, 'e' as col2 "
+                + "union all "
+                + "select 'v' as uid, 'c' as col, 'd' as col2 "
+                + ") "
+                + "select uid, if(uid = 'u', counter(col, col2, 1, 'TOPK'), counter(col, col2, 2, 'TOPK')) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 2);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+        assertArrayEquals(expected.get(1), result.get(1));
+    }
+
+    @Test
+    public void testBinaryPartialsOfJavaObjects() throws Exception {
+        // Hive passes writables, but other callers may hand java objects to the evaluator
+        CounterUDAF.GenericUDAFCounterEvaluator partial1 = new CounterUDAF.GenericUDAFCounterEvaluator();
+        partial1.setBinaryPartials(TypeInfoFactory.shortTypeInfo, false);
+        ObjectInspector partialOI = partial1.init(GenericUDAFEvaluator.Mode.PARTIAL1,
+                new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaShortObjectInspector});
+        GenericUDAFEvaluator.AggregationBuffer agg = partial1.getNewAggregationBuffer();
+        for (short v : new short[]{3, -7, 3, 3}) {
+            partial1.iterate(agg, new Object[]{v});
+        }
+        Object partial = partial1.terminatePartial(agg);
+
+        CounterUDAF.GenericUDAFCounterEvaluator complete = new CounterUDAF.GenericUDAFCounterEvaluator();
+        complete.setBinaryPartials(TypeInfoFactory.shortTypeInfo, false);
+        complete.init(GenericUDAFEvaluator.Mode.COMPLETE,
+                new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaShortObjectInspector});
+        GenericUDAFEvaluator.AggregationBuffer completeAgg = complete.getNewAggregationBuffer();
+        complete.iterate(completeAgg, new Object[]{(short) 3});
+        assertEquals(Collections.singletonMap(new ShortWritable((short) 3), new IntWritable(1)),
+                complete.terminate(completeAgg));
+
+        CounterUDAF.GenericUDAFCounterEvaluator fin = new CounterUDAF.GenericUDAFCounterEvaluator();
+        fin.setBinaryPartials(TypeInfoFactory.shortTypeInfo, false);
+        MapObjectInspector outputOI = (MapObjectInspector) fin.init(GenericUDAFEvaluator.Mode.FINAL,
+                new ObjectInspector[]{partialOI});
+        GenericUDAFEvaluator.AggregationBuffer finalAgg = fin.getNewAggregationBuffer();
+        fin.merge(finalAgg, partial);
+        Map<?, ?> counts = outputOI.getMap(fin.terminate(finalAgg));
+
+        Map<ShortWritable, IntWritable> expected = new HashMap<>();
+        expected.put(new ShortWritable((short) 3), new IntWritable(3));
+        expected.put(new ShortWritable((short) -7), new IntWritable(1));
+        assertEquals(expected, counts);
+    }
 }
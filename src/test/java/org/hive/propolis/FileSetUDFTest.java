@@ -0,0 +1,177 @@
+package org.hive.propolis;
+
+import com.klarna.hiverunner.HiveShell;
+import com.klarna.hiverunner.StandaloneHiveRunner;
+import com.klarna.hiverunner.annotations.HiveSQL;
+import org.hive.propolis.util.BloomFileSet;
+import org.hive.propolis.util.SortedStringTable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+@RunWith(StandaloneHiveRunner.class)
+public class FileSetUDFTest {
+
+    @Rule
+    public TestName name = new TestName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @HiveSQL(files = {})
+    private HiveShell shell;
+
+    private String textFile() throws Exception {
+        return new File(getClass().getResource("/files/intersect.tsv").toURI()).getAbsolutePath();
+    }
+
+    private String tableFile() throws Exception {
+        File file = folder.newFile("intersect.sst");
+        try (OutputStream out = new FileOutputStream(file)) {
+            SortedStringTable.write(Arrays.asList(
+                    "one".getBytes(StandardCharsets.UTF_8),
+                    "three".getBytes(StandardCharsets.UTF_8),
+                    "two".getBytes(StandardCharsets.UTF_8)), out);
+        }
+        return file.getAbsolutePath();
+    }
+
+    /*
+     * Single row queries run as fetch tasks: a map reduce job would ship the file
+     * with the distributed cache, which needs a newer commons-io than the tests have.
+     */
+    private List<Object[]> intersect(String function, String file) {
+        return shell.executeStatement("select "
+                + function + "(array('one', 'two', 'four'), '" + file + "'), "
+                + function + "(array('three'), '" + file + "'), "
+                + function + "(array('five'), '" + file + "')"
+        );
+    }
+
+    @Test
+    public void testIntersectTextFile() throws Exception {
+        List<Object[]> expected = shell.executeStatement("select array('one', 'two'), array('three')");
+
+        shell.execute( "create temporary function "
+                + "intersect_file as 'org.hive.propolis.IntersectFileUDF';"
+        );
+
+        List<Object[]> result = intersect("intersect_file", textFile());
+
+        assertEquals(1, result.size());
+        assertEquals(expected.get(0)[0], result.get(0)[0]);
+        assertEquals(expected.get(0)[1], result.get(0)[1]);
+        assertNull(result.get(0)[2]);
+    }
+
+    @Test
+    public void testIntersectSortedStringTable() throws Exception {
+        List<Object[]> expected = shell.executeStatement("select array('one', 'two'), array('three')");
+
+        shell.execute( "create temporary function "
+                + "intersect_file as 'org.hive.propolis.IntersectFileUDF';"
+        );
+
+        List<Object[]> result = intersect("intersect_file", tableFile());
+
+        assertEquals(1, result.size());
+        assertEquals(expected.get(0)[0], result.get(0)[0]);
+        assertEquals(expected.get(0)[1], result.get(0)[1]);
+        assertNull(result.get(0)[2]);
+    }
+
+    @Test
+    public void testSubtractSortedStringTable() throws Exception {
+        List<Object[]> expected = shell.executeStatement("select array('four'), array('five')");
+
+        shell.execute( "create temporary function "
+                + "subtract_file as 'org.hive.propolis.SubtractFileUDF';"
+        );
+
+        List<Object[]> result = intersect("subtract_file", tableFile());
+
+        assertEquals(1, result.size());
+        assertEquals(expected.get(0)[0], result.get(0)[0]);
+        assertNull(result.get(0)[1]);
+        assertEquals(expected.get(0)[1], result.get(0)[2]);
+    }
+
+    @Test
+    public void testIntersectIntegralArrays() throws Exception {
+        List<Object[]> expected = shell.executeStatement(
+                "select array(cast(1 as bigint), cast(42 as bigint)), array(100)");
+
+        shell.execute( "create temporary function "
+                + "intersect_file as 'org.hive.propolis.IntersectFileUDF';"
+        );
+
+        String file = new File(getClass().getResource("/files/ids.tsv").toURI()).getAbsolutePath();
+        List<Object[]> result = shell.executeStatement("select "
+                + "intersect_file(array(cast(1 as bigint), cast(7 as bigint), cast(42 as bigint)), '" + file + "'), "
+                + "intersect_file(array(100, 0), '" + file + "')"
+        );
+
+        assertEquals(1, result.size());
+        assertEquals(expected.get(0)[0], result.get(0)[0]);
+        assertEquals(expected.get(0)[1], result.get(0)[1]);
+    }
+
+    @Test
+    public void testIntersectGzipFile() throws Exception {
+        List<Object[]> expected = shell.executeStatement("select array('one', 'two'), array('three')");
+
+        shell.execute( "create temporary function "
+                + "intersect_file as 'org.hive.propolis.IntersectFileUDF';"
+        );
+
+        File file = folder.newFile("intersect.tsv.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write("one\r\ntwo\r\nthree".getBytes(StandardCharsets.UTF_8));
+        }
+        List<Object[]> result = intersect("intersect_file", file.getAbsolutePath());
+
+        assertEquals(1, result.size());
+        assertEquals(expected.get(0)[0], result.get(0)[0]);
+        assertEquals(expected.get(0)[1], result.get(0)[1]);
+        assertNull(result.get(0)[2]);
+    }
+
+    @Test
+    public void testSubtractBloomFilter() throws Exception {
+        List<Object[]> expected = shell.executeStatement("select array('four'), array('five')");
+
+        shell.execute( "create temporary function "
+                + "subtract_file as 'org.hive.propolis.SubtractFileUDF';"
+        );
+
+        File file = folder.newFile("intersect.bloom");
+        BloomFileSet.Builder builder = new BloomFileSet.Builder(1000, 0.001);
+        for (String value : Arrays.asList("one", "two", "three")) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            builder.add(bytes, 0, bytes.length);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            builder.write(out);
+        }
+        List<Object[]> result = intersect("subtract_file", file.getAbsolutePath());
+
+        assertEquals(1, result.size());
+        assertEquals(expected.get(0)[0], result.get(0)[0]);
+        assertNull(result.get(0)[1]);
+        assertEquals(expected.get(0)[1], result.get(0)[2]);
+    }
+}
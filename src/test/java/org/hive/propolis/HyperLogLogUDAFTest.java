@@ -0,0 +1,95 @@
+package org.hive.propolis;
+
+import com.klarna.hiverunner.HiveShell;
+import com.klarna.hiverunner.StandaloneHiveRunner;
+import com.klarna.hiverunner.annotations.HiveSQL;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(StandaloneHiveRunner.class)
+public class HyperLogLogUDAFTest {
+
+    @Rule
+    public TestName name = new TestName();
+
+    @HiveSQL(files = {})
+    private HiveShell shell;
+
+    @Before
+    public void createFunctions() {
+        shell.execute( "create temporary function "
+                + "hll_build as 'org.hive.propolis.HyperLogLogUDAF';"
+                + "create temporary function "
+                + "hll_union as 'org.hive.propolis.HyperLogLogUnionUDAF';"
+                + "create temporary function "
+                + "hll_estimate as 'org.hive.propolis.HyperLogLogEstimateUDF';"
+        );
+    }
+
+    @Test
+    public void testSmallExactCounts() {
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, 'a' as col "
+                + "union all "
+                + "select 'u' as uid, 'b' as col "
+                + "union all "
+                + "select 'u' as uid, 'a' as col "
+                + "union all "
+                + "select 'v' as uid, 'c' as col "
+                + "union all "
+                + "select 'v' as uid, null as col "
+                + ") "
+                + "select uid, hll_estimate(hll_build(col)) as n "
+                + "from t group by uid"
+        );
+
+        assertEquals(2, result.size());
+        assertEquals(2L, result.get(0)[1]);
+        assertEquals(1L, result.get(1)[1]);
+    }
+
+    @Test
+    public void testEstimateAndUnion() {
+        /*
+         * 3000 distinct values, 2000 in each of two groups with 1000 in common
+         */
+        shell.execute("create table sketches as "
+                + "select g, hll_build(cast(i + 1000 * g as bigint), 12) as sketch "
+                + "from (select pos as i from (select posexplode(split(space(1999), ' '))) e) n "
+                + "lateral view explode(array(0, 1)) gs as g "
+                + "group by g"
+        );
+
+        List<Object[]> days = shell.executeStatement("select g, hll_estimate(sketch) from sketches order by g");
+        List<Object[]> union = shell.executeStatement("select hll_estimate(hll_union(sketch)) from sketches");
+
+        assertEquals(2, days.size());
+        for (Object[] day : days) {
+            assertTrue(Math.abs((Long) day[1] - 2000) < 100);
+        }
+        assertTrue(Math.abs((Long) union.get(0)[0] - 3000) < 150);
+    }
+
+    @Test
+    public void testUnionOfDifferentPrecisions() {
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select hll_build(col, 10) as sketch from (select 'a' as col union all select 'b' as col) a "
+                + "union all "
+                + "select hll_build(col, 16) as sketch from (select 'b' as col union all select 'c' as col) b "
+                + ") "
+                + "select hll_estimate(hll_union(sketch)) from t"
+        );
+
+        assertEquals(1, result.size());
+        assertEquals(3L, result.get(0)[0]);
+    }
+}
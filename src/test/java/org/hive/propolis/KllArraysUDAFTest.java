@@ -0,0 +1,108 @@
+package org.hive.propolis;
+
+import com.klarna.hiverunner.HiveShell;
+import com.klarna.hiverunner.StandaloneHiveRunner;
+import com.klarna.hiverunner.annotations.HiveSQL;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(StandaloneHiveRunner.class)
+public class KllArraysUDAFTest {
+
+    @Rule
+    public TestName name = new TestName();
+
+    @HiveSQL(files = {})
+    private HiveShell shell;
+
+    @Before
+    public void createFunctions() {
+        shell.execute( "create temporary function "
+                + "kll_arrays as 'org.hive.propolis.KllArraysUDAF';"
+                + "create temporary function "
+                + "multiple_kll as 'org.hive.propolis.MultipleKllUDAF';"
+                + "create temporary function "
+                + "kll_quantile as 'org.hive.propolis.KllQuantileUDF';"
+        );
+    }
+
+    @Test
+    public void testSmallExactQuantiles() {
+        /*
+         * 1..100 in the first element, 101..200 in the second, nothing in the third
+         */
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select array(pos + 1, pos + 101, null) as col "
+                + "from (select posexplode(split(space(99), ' '))) e "
+                + ") "
+                + "select q[0][0], q[0][1], q[0][2], q[0][3], q[1][1], q[2] "
+                + "from (select kll_quantile(kll_arrays(col), array(0.0, 0.5, 0.99, 1.0)) as q from t) a"
+        );
+
+        assertEquals(1, result.size());
+        assertEquals(1.0, result.get(0)[0]);
+        assertEquals(50.0, result.get(0)[1]);
+        assertEquals(99.0, result.get(0)[2]);
+        assertEquals(100.0, result.get(0)[3]);
+        assertEquals(150.0, result.get(0)[4]);
+        assertNull(result.get(0)[5]);
+    }
+
+    @Test
+    public void testMultipleColumns() {
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, 1 as a, double(10.0) as b "
+                + "union all "
+                + "select 'u' as uid, 2 as a, null as b "
+                + "union all "
+                + "select 'u' as uid, 3 as a, double(30.0) as b "
+                + "union all "
+                + "select 'v' as uid, 4 as a, null as b "
+                + ") "
+                + "select uid, q[0], q[1] "
+                + "from (select uid, kll_quantile(multiple_kll(a, b), 0.5) as q from t group by uid) a "
+                + "order by uid"
+        );
+
+        assertEquals(2, result.size());
+        assertEquals(2.0, result.get(0)[1]);
+        assertEquals(10.0, result.get(0)[2]);
+        assertEquals(4.0, result.get(1)[1]);
+        assertNull(result.get(1)[2]);
+    }
+
+    @Test
+    public void testQuantilesOfMergedSketches() {
+        /*
+         * 0..19999 sketched in 4 groups by the remainder, then merged from the table
+         */
+        shell.execute("create table sketches as "
+                + "select g, kll_arrays(array(i)) as sketches "
+                + "from (select pos + 10000 * h as i, (pos + 10000 * h) % 4 as g "
+                + "from (select posexplode(split(space(9999), ' '))) e "
+                + "lateral view explode(array(0, 1)) hs as h) n "
+                + "group by g"
+        );
+
+        List<Object[]> result = shell.executeStatement("select q[0][0], q[0][1], q[0][2] "
+                + "from (select kll_quantile(kll_arrays(sketches), array(0.5, 0.95, 0.99)) as q from sketches) a"
+        );
+
+        assertEquals(1, result.size());
+        double[] expected = {10000, 19000, 19800};
+        for (int i = 0; i < expected.length; i++) {
+            // the rank error of the default sketches is below 1%, 200 values
+            assertTrue(Math.abs((Double) result.get(0)[i] - expected[i]) < 200);
+        }
+    }
+}
@@ -143,4 +143,55 @@ public class MergeMapsUDAFTest {
         assertEquals(expected.size(), result.size());
         assertArrayEquals(expected.get(0), result.get(0));
     }
+
+    @Test
+    public void testBigIntMapBinaryPartials() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, Map('a', cast(3 as bigint), 'b', cast(2 as bigint), 'c', cast(1 as bigint)) as m "
+        );
+
+        shell.execute( "set propolis.udaf.binary.partials=true;"
+                + "set propolis.udaf.binary.partials.lz4=true;"
+                + "create temporary function "
+                + "merge_map as 'org.hive.propolis.MergeMapsUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map('a', cast(1 as bigint), 'b', cast(2 as bigint)) as m "
+                + "union all "
+                + "select 'u' as uid, Map('a', cast(2 as bigint), 'c', cast(1 as bigint)) as m "
+                + ") "
+                + "select uid, merge_map(m) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 1);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+    }
+
+    @Test
+    public void testIntKeyDoubleValueMapBinaryPartials() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, Map(1, double(3.5), 2, double(2.25), 3, double(1.0)) as m "
+        );
+
+        shell.execute( "set propolis.udaf.binary.partials=true;"
+                + "create temporary function "
+                + "merge_map as 'org.hive.propolis.MergeMapsUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map(1, double(1.5), 2, double(2.25)) as m "
+                + "union all "
+                + "select 'u' as uid, Map(1, double(2.0), 3, double(1.0)) as m "
+                + ") "
+                + "select uid, merge_map(m) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 1);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+    }
 }
@@ -175,4 +175,68 @@ public class SumArraysUDAFTest {
         assertArrayEquals(expected.get(0), result.get(0));
         assertArrayEquals(expected.get(1), result.get(1));
     }
+
+    @Test
+    public void testSparseArraysAndMaps() {
+        shell.execute( "create temporary function "
+                + "sum_list as 'org.hive.propolis.SumArraysUDAF';"
+        );
+
+        /*
+         * 1000 arrays of 40 elements, one of them 1 (at position r % 20), 0 or null otherwise
+         */
+        StringBuilder col = new StringBuilder("array(");
+        for (int i = 0; i < 40; i++) {
+            col.append(i == 0 ? "" : ", ").append("if(r % 20 = ").append(i).append(", 1, ")
+                    .append(i == 39 ? "null" : "0").append(")");
+        }
+        shell.execute("create table vectors as "
+                + "select r % 2 as g, " + col + ") as col "
+                + "from (select pos as r from (select posexplode(split(space(999), ' '))) e) n"
+        );
+
+        List<Object[]> result = shell.executeStatement("select g, size(m), m[0], m[1], m[19], m[20], m[39] "
+                + "from (select g, sum_list(col) as m from vectors group by g) a "
+                + "order by g"
+        );
+        List<Object[]> maps = shell.executeStatement("with t as ( "
+                + "select map(2, double(1.5), 7, double(2.0)) as col "
+                + "union all "
+                + "select map(2, double(1.0)) as col "
+                + ") "
+                + "select sum_list(col) from t"
+        );
+
+        assertEquals(2, result.size());
+        assertArrayEquals(new Object[]{0, 40, 50L, 0L, 0L, 0L, 0L}, result.get(0));
+        assertArrayEquals(new Object[]{1, 40, 0L, 50L, 50L, 0L, 0L}, result.get(1));
+        assertEquals(1, maps.size());
+        assertEquals("[0.0,0.0,2.5,0.0,0.0,0.0,0.0,2.0]", maps.get(0)[0]);
+    }
+
+    @Test
+    public void testMapPositionsOutOfRange() {
+        shell.execute( "create temporary function "
+                + "sum_list as 'org.hive.propolis.SumArraysUDAF';"
+        );
+
+        // positions that do not fit an array are skipped, not wrapped around or truncated
+        List<Object[]> intKeys = shell.executeStatement("with t as ( "
+                + "select map(2147483647, 5, 1, 2) as col "
+                + "union all "
+                + "select map(-1, 5, 0, 1) as col "
+                + ") "
+                + "select sum_list(col) from t"
+        );
+        List<Object[]> bigintKeys = shell.executeStatement("with t as ( "
+                + "select map(bigint(4294967296), 7, bigint(2), 1) as col "
+                + "union all "
+                + "select map(bigint(2147483648), 7) as col "
+                + ") "
+                + "select sum_list(col) from t"
+        );
+
+        assertEquals("[1,2]", intKeys.get(0)[0]);
+        assertEquals("[0,0,1]", bigintKeys.get(0)[0]);
+    }
 }
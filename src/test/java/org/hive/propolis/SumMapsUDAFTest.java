@@ -163,6 +163,41 @@ public class SumMapsUDAFTest {
         assertArrayEquals(expected.get(1), result.get(1));
     }
 
+    @Test
+    public void testBigintKeyLongValueMap() {
+        /*
+         * Insert some source data
+         */
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, Map(cast(0 as bigint), cast(5000000000 as bigint), "
+                + "cast(-1 as bigint), cast(1 as bigint)) as m"
+        );
+
+        /*
+         * Execute the query
+         */
+        shell.execute( "create temporary function "
+                + "merge_map as 'org.hive.propolis.SumMapsUDAF';"
+        );
+
+        /*
+         * Verify the result
+         */
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map(cast(0 as bigint), cast(3000000000 as bigint)) as m "
+                + "union all "
+                + "select 'u' as uid, Map(cast(0 as bigint), cast(2000000000 as bigint), "
+                + "cast(-1 as bigint), cast(1 as bigint)) as m "
+                + ") "
+                + "select uid, merge_map(m) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 1);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+    }
+
     @Test
     public void testConstrainedMapStrict() {
         /*
@@ -262,4 +297,110 @@ public class SumMapsUDAFTest {
         assertArrayEquals(expected.get(0), result.get(0));
     }
 
+    @Test
+    public void testIntKeyMapBinaryPartials() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, Map(-1, 3, 2, 2, 300000, 1) as m "
+                + "union all "
+                + "select 'v' as uid, Map(1,2, 2,2) as m"
+        );
+
+        shell.execute( "set propolis.udaf.binary.partials=true;"
+                + "create temporary function "
+                + "merge_map as 'org.hive.propolis.SumMapsUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map(-1, 1, 2, 2) as m "
+                + "union all "
+                + "select 'u' as uid, Map(-1, 2, 300000, 1) as m "
+                + "union all "
+                + "select 'v' as uid, Map(1, 2) as m "
+                + "union all "
+                + "select 'v' as uid, Map(2, 2) as m "
+                + ") "
+                + "select uid, merge_map(m) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 2);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+        assertArrayEquals(expected.get(1), result.get(1));
+    }
+
+    @Test
+    public void testDoubleValueMapLz4BinaryPartials() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, Map('a', double(3.5), 'b', double(2.25), 'c', double(1.0)) as m"
+        );
+
+        shell.execute( "set propolis.udaf.binary.partials=true;"
+                + "set propolis.udaf.binary.partials.lz4=true;"
+                + "create temporary function "
+                + "merge_map as 'org.hive.propolis.SumMapsUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map('a', double(1.5), 'b', double(2.25)) as m "
+                + "union all "
+                + "select 'u' as uid, Map('a', double(2.0), 'c', double(1.0)) as m "
+                + ") "
+                + "select uid, merge_map(m) as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 1);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+    }
+
+    @Test
+    public void testTopKMode() {
+        shell.execute( "create temporary function "
+                + "merge_map as 'org.hive.propolis.SumMapsUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map('a', 60, 'c', 1) as m "
+                + "union all "
+                + "select 'u' as uid, Map('d', 1, 'e', 1) as m "
+                + "union all "
+                + "select 'u' as uid, Map('b', 50, 'f', 1) as m "
+                + "union all "
+                + "select 'u' as uid, Map('a', 40, 'g', 1) as m "
+                + ") "
+                + "select uid, sort_array(map_keys(merge_map(m, 2, 'TOPK'))) as k "
+                + "from t group by uid"
+        );
+
+        assertEquals(1, result.size());
+        assertArrayEquals(new Object[] {"u", "[\"a\",\"b\"]"}, result.get(0));
+    }
+
+    @Test
+    public void testTopKModeExactSums() {
+        List<Object[]> expected = shell.executeStatement(
+                "select 'u' as uid, Map(cast(1 as bigint), double(3.5), cast(2 as bigint), double(2.25), "
+                + "cast(3 as bigint), double(2.0)) as m"
+        );
+
+        shell.execute( "create temporary function "
+                + "merge_map as 'org.hive.propolis.SumMapsUDAF';"
+        );
+
+        List<Object[]> result = shell.executeStatement("with t as ( "
+                + "select 'u' as uid, Map(cast(1 as bigint), double(1.5), cast(2 as bigint), double(2.25)) as m "
+                + "union all "
+                + "select 'u' as uid, Map(cast(1 as bigint), double(2.0), cast(3 as bigint), double(2.0), "
+                + "cast(4 as bigint), double(1.0), cast(5 as bigint), double(-7.0)) as m "
+                + ") "
+                + "select uid, merge_map(m, 3, 'TOPK') as m "
+                + "from t group by uid"
+        );
+
+        assert(expected.size() == 1);
+        assertEquals(expected.size(), result.size());
+        assertArrayEquals(expected.get(0), result.get(0));
+    }
 }
@@ -0,0 +1,204 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/*
+ * Drives hbase_batch_get_value over the in-memory StubHBase, with an executor whose
+ * batches only run when the test says so.
+ */
+public class HBaseBatchLookupUDTFTest {
+
+    /**
+     * Queues the submitted batches instead of running them, until told to run them right away.
+     */
+    private static class ManualExecutor extends AbstractExecutorService {
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        volatile boolean runImmediately = false;
+
+        void run(int task) {
+            tasks.get(task).run();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+            if (runImmediately) {
+                command.run();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    private final StubHBase hbase = new StubHBase();
+    private final ManualExecutor executor = new ManualExecutor();
+    private final List<String> output = Collections.synchronizedList(new ArrayList<String>());
+
+    private HBaseBatchGetValueUDTF udtf(int batchSize, int pipelineDepth) throws Exception {
+        HBaseBatchGetValueUDTF udtf = new HBaseBatchGetValueUDTF() {
+            private HBaseTableHandle handle;
+
+            @Override
+            HBaseTableHandle getHandle() {
+                if (handle == null) {
+                    handle = hbase.handle(new Configuration(false), table_name);
+                }
+                return handle;
+            }
+
+            @Override
+            AbstractExecutorService getExecutor() {
+                return executor;
+            }
+        };
+
+        JobConf conf = new JobConf(false);
+        conf.setInt(HBaseBatchLookupUDTF.BATCH_SIZE_CONF, batchSize);
+        conf.setInt(HBaseBatchLookupUDTF.PIPELINE_DEPTH_CONF, pipelineDepth);
+        udtf.configure(MapredContext.init(true, conf));
+
+        List<ObjectInspector> arguments = new ArrayList<>();
+        arguments.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        for (String constant : new String[]{"t", "f", "c"}) {
+            arguments.add(PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(
+                    TypeInfoFactory.stringTypeInfo, new Text(constant)));
+        }
+        udtf.initialize(ObjectInspectorFactory.getStandardStructObjectInspector(
+                Arrays.asList("key", "tbl", "family", "column"), arguments));
+        udtf.setCollector(new Collector() {
+            @Override
+            public void collect(Object row) {
+                Object[] fields = (Object[]) row;
+                output.add(fields[0] + "=" + fields[1]);
+            }
+        });
+        return udtf;
+    }
+
+    private static List<String> expected(String... keys) {
+        List<String> rows = new ArrayList<>();
+        for (String key : keys) {
+            rows.add(key + "=value_" + key);
+        }
+        return rows;
+    }
+
+    @After
+    public void tearDown() {
+        MapredContext.close();
+    }
+
+    @Test
+    public void testPipelineWindow() throws Exception {
+        final HBaseBatchGetValueUDTF udtf = udtf(2, 2);
+
+        // the first batch is submitted and left in flight
+        udtf.process(new Object[]{"a1"});
+        udtf.process(new Object[]{"a2"});
+        assertEquals(1, executor.tasks.size());
+        assertTrue(output.isEmpty());
+
+        // the second batch fills the window, so the process call waits for the first one
+        final List<Throwable> failures = new ArrayList<>();
+        Thread processing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    udtf.process(new Object[]{"b1"});
+                    udtf.process(new Object[]{"b2"});
+                } catch (HiveException e) {
+                    failures.add(e);
+                }
+            }
+        });
+        processing.start();
+        while (executor.tasks.size() < 2 || processing.getState() != Thread.State.WAITING) {
+            assertTrue(processing.isAlive());
+            Thread.sleep(10);
+        }
+
+        // a later batch finishing first does not release the window, nor reorder the output
+        executor.run(1);
+        Thread.sleep(100);
+        assertEquals(Thread.State.WAITING, processing.getState());
+        assertTrue(output.isEmpty());
+
+        // once the first batch is in, the already finished second one follows it
+        executor.run(0);
+        processing.join(10000);
+        assertTrue(failures.isEmpty());
+        assertEquals(expected("a1", "a2", "b1", "b2"), output);
+
+        // below the window a batch in flight does not block
+        udtf.process(new Object[]{"c1"});
+        udtf.process(new Object[]{"c2"});
+        assertEquals(3, executor.tasks.size());
+        assertEquals(expected("a1", "a2", "b1", "b2"), output);
+
+        executor.run(2);
+        udtf.process(new Object[]{"d1"});
+        // close submits the last, partial batch and waits for all of them
+        executor.runImmediately = true;
+        udtf.close();
+        assertEquals(4, executor.tasks.size());
+        assertEquals(expected("a1", "a2", "b1", "b2", "c1", "c2", "d1"), output);
+    }
+
+    @Test
+    public void testWithoutPipeline() throws Exception {
+        HBaseBatchGetValueUDTF udtf = udtf(2, 1);
+        for (String key : new String[]{"c", "a", null, "b"}) {
+            udtf.process(new Object[]{key});
+        }
+        // the first batch is fetched right away in the calling thread
+        assertEquals(expected("c", "a"), output);
+        udtf.close();
+        assertEquals(expected("c", "a", "b"), output);
+        assertTrue(executor.tasks.isEmpty());
+        assertEquals(2, hbase.multiGets.size());
+    }
+}
@@ -0,0 +1,114 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.filter.ColumnPaginationFilter;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.QualifierFilter;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/*
+ * The options only build the filters of a Get, no HBase cluster is needed.
+ */
+public class HBaseGetOptionsTest {
+
+    private static Get get(String options) throws Exception {
+        Get get = new Get(Bytes.toBytes("row"));
+        HBaseGetOptions.parse(options).applyTo(get);
+        return get;
+    }
+
+    private static void assertRejected(String options) {
+        try {
+            HBaseGetOptions.parse(options);
+            fail("options \"" + options + "\" were accepted");
+        } catch (UDFArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmptyOptions() throws Exception {
+        Get get = get(" ; ;");
+        assertNull(get.getFilter());
+        assertTrue(get.getTimeRange().isAllTime());
+        assertEquals(7, HBaseGetOptions.parse("").getMaxVersions(7));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        Get get = get(" Prefix = geo_ ; regex=^geo_(city|country)$;limit=10;offset=20");
+        List<Filter> filters = ((FilterList) get.getFilter()).getFilters();
+        assertEquals(3, filters.size());
+        assertArrayEquals(Bytes.toBytes("geo_"), ((ColumnPrefixFilter) filters.get(0)).getPrefix());
+        assertTrue(filters.get(1) instanceof QualifierFilter);
+        // the pagination goes last, counting the columns left by the other filters
+        ColumnPaginationFilter pagination = (ColumnPaginationFilter) filters.get(2);
+        assertEquals(10, pagination.getLimit());
+        assertEquals(20, pagination.getOffset());
+    }
+
+    @Test
+    public void testVersions() throws Exception {
+        assertEquals(3, HBaseGetOptions.parse("versions=3").getMaxVersions(1));
+        assertRejected("versions=0");
+        assertRejected("versions=-1");
+    }
+
+    @Test
+    public void testTimeRange() throws Exception {
+        TimeRange range = get("timerange=1000, 2000").getTimeRange();
+        assertEquals(1000, range.getMin());
+        assertEquals(2000, range.getMax());
+
+        range = get("timerange=5,5").getTimeRange();
+        assertEquals(5, range.getMin());
+        assertEquals(5, range.getMax());
+
+        assertRejected("timerange=2000,1000");
+        assertRejected("timerange=-1,1000");
+        assertRejected("timerange=1000");
+        assertRejected("timerange=1,2,3");
+        assertRejected("timerange=a,b");
+    }
+
+    @Test
+    public void testBadOptions() {
+        assertRejected("prefix");
+        assertRejected("columns=10");
+        assertRejected("regex=geo_(");
+        assertRejected("limit=0");
+        assertRejected("limit=ten");
+        assertRejected("offset=-1");
+    }
+
+    @Test
+    public void testOffsetRequiresLimit() throws Exception {
+        assertRejected("offset=10");
+        assertNull(get("offset=0").getFilter());
+    }
+
+    @Test
+    public void testPagingRejectedWithVersions() throws Exception {
+        HBaseGetOptions.parse("versions=3;prefix=a").rejectPaging("hbase_get_versions");
+        try {
+            HBaseGetOptions.parse("versions=3;limit=10").rejectPaging("hbase_get_versions");
+            fail("limit was accepted by hbase_get_versions");
+        } catch (UDFArgumentException e) {
+            assertTrue(e.getMessage().contains("hbase_get_versions"));
+        }
+    }
+}
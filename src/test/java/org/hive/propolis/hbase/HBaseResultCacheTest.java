@@ -0,0 +1,133 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+/*
+ * The cache is plain in-memory logic over Result objects, no HBase cluster is needed.
+ */
+public class HBaseResultCacheTest {
+
+    private static byte[] row(int i) {
+        return Bytes.toBytes("row" + i);
+    }
+
+    private static Result result(int i) {
+        return Result.create(new Cell[]{
+                new KeyValue(row(i), Bytes.toBytes("f"), Bytes.toBytes("c"), 1L, Bytes.toBytes("value" + i))});
+    }
+
+    private static Result miss() {
+        return Result.EMPTY_RESULT;
+    }
+
+    private static Result exists(boolean exists) {
+        return Result.create(new Cell[0], exists, false);
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Configuration config = new Configuration(false);
+        assertNull(HBaseResultCache.create(config));
+        config.setInt(HBaseResultCache.MAX_ENTRIES_CONF, 10);
+        assertNotNull(HBaseResultCache.create(config));
+    }
+
+    @Test
+    public void testEvictionByEntries() {
+        HBaseResultCache cache = new HBaseResultCache(2, HBaseResultCache.DEFAULT_MAX_BYTES, 0, true);
+        Result first = result(1);
+        cache.put(row(1), first);
+        cache.put(row(2), result(2));
+        // reading row1 makes row2 the least recently used entry
+        assertSame(first, cache.get(row(1)));
+        cache.put(row(3), result(3));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(row(2)));
+        assertNotNull(cache.get(row(1)));
+        assertNotNull(cache.get(row(3)));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictionByBytes() {
+        HBaseResultCache probe = new HBaseResultCache(100, HBaseResultCache.DEFAULT_MAX_BYTES, 0, true);
+        probe.put(row(1), result(1));
+        long entryBytes = probe.getBytes();
+
+        // room for two entries of the same size, the entry limit is far away
+        HBaseResultCache cache = new HBaseResultCache(100, 2 * entryBytes + entryBytes / 2, 0, true);
+        for (int i = 1; i <= 3; i++) {
+            cache.put(row(i), result(i));
+        }
+        assertEquals(2, cache.size());
+        assertEquals(2 * entryBytes, cache.getBytes());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(row(1)));
+        assertNotNull(cache.get(row(2)));
+
+        // replacing an entry does not count it twice
+        cache.put(row(2), result(2));
+        assertEquals(2 * entryBytes, cache.getBytes());
+
+        // an entry larger than the whole budget is not cached and evicts nothing
+        HBaseResultCache small = new HBaseResultCache(100, entryBytes - 1, 0, true);
+        small.put(row(1), result(1));
+        assertEquals(0, small.size());
+        assertEquals(0, small.getBytes());
+        assertEquals(0, small.getEvictions());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        HBaseResultCache cache = new HBaseResultCache(10, HBaseResultCache.DEFAULT_MAX_BYTES, 500, true);
+        cache.put(row(1), result(1));
+        assertNotNull(cache.get(row(1)));
+
+        Thread.sleep(600);
+        assertNull(cache.get(row(1)));
+        assertEquals(1, cache.getExpirations());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        HBaseResultCache cache = new HBaseResultCache(10, HBaseResultCache.DEFAULT_MAX_BYTES, 0, true);
+        cache.put(row(1), miss());
+        cache.put(row(2), exists(false));
+        assertNotNull(cache.get(row(1)));
+        assertNotNull(cache.get(row(2)));
+
+        Configuration config = new Configuration(false);
+        config.setInt(HBaseResultCache.MAX_ENTRIES_CONF, 10);
+        config.setBoolean(HBaseResultCache.NEGATIVE_CONF, false);
+        cache = HBaseResultCache.create(config);
+        cache.put(row(1), miss());
+        cache.put(row(2), exists(false));
+        cache.put(row(3), exists(true));
+        cache.put(row(4), result(4));
+        assertNull(cache.get(row(1)));
+        assertNull(cache.get(row(2)));
+        assertNotNull(cache.get(row(3)));
+        assertNotNull(cache.get(row(4)));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+}
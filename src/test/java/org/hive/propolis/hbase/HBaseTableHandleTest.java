@@ -0,0 +1,120 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+
+/*
+ * Runs against the in-memory StubHBase, no HBase cluster is needed.
+ */
+public class HBaseTableHandleTest {
+
+    private static List<Get> gets(String... rows) {
+        List<Get> gets = new ArrayList<>();
+        for (String row : rows) {
+            gets.add(new Get(Bytes.toBytes(row)));
+        }
+        return gets;
+    }
+
+    private static List<String> rows(List<Get> gets) {
+        List<String> rows = new ArrayList<>();
+        for (Get get : gets) {
+            rows.add(Bytes.toString(get.getRow()));
+        }
+        return rows;
+    }
+
+    @Test
+    public void testSortByServer() {
+        List<Get> gets = gets("b2", "a9", "b1", "c5", "a1", "b3");
+        List<Integer> positions = new ArrayList<>(Arrays.asList(10, 11, 12, 13, 14, 15));
+        String[] servers = {"s2", "s1", "s2", "s0", "s1", "s2"};
+
+        HBaseTableHandle.sortByServer(gets, positions, servers);
+
+        // by server, then by row
+        assertEquals(Arrays.asList("c5", "a1", "a9", "b1", "b2", "b3"), rows(gets));
+        // every position moves along with its get
+        assertEquals(Arrays.asList(13, 14, 11, 12, 10, 15), positions);
+    }
+
+    private static void assertResultsInInputOrder(List<Get> gets, Result[] results) {
+        assertEquals(gets.size(), results.length);
+        for (int i = 0; i < results.length; i++) {
+            assertEquals("value_" + Bytes.toString(gets.get(i).getRow()), StubHBase.value(results[i]));
+        }
+    }
+
+    @Test
+    public void testGroupByRegion() throws Exception {
+        Configuration config = new Configuration(false);
+        config.setBoolean(HBaseTableHandle.GROUP_BY_REGION_CONF, true);
+        // cache hits in between the fetched rows leave gaps in the positions
+        config.setInt(HBaseResultCache.MAX_ENTRIES_CONF, 100);
+
+        List<String> rows = new ArrayList<>();
+        for (char server = 'a'; server <= 'e'; server++) {
+            for (int i = 0; i < 20; i++) {
+                rows.add(server + "_" + i);
+            }
+        }
+        Collections.shuffle(rows, new Random(42));
+
+        StubHBase hbase = new StubHBase();
+        List<Get> all = gets(rows.toArray(new String[0]));
+        try (HBaseTableHandle handle = hbase.handle(config, "t")) {
+            List<Get> cached = gets(rows.subList(0, 30).toArray(new String[0]));
+            assertResultsInInputOrder(cached, handle.get(cached));
+            assertResultsInInputOrder(all, handle.get(all));
+        }
+
+        // the rows missing from the cache are sent grouped by server and sorted
+        assertEquals(2, hbase.multiGets.size());
+        assertSorted(hbase.multiGets.get(0), 30);
+        assertSorted(hbase.multiGets.get(1), 70);
+
+        // same on a thread of the pipeline, without a cache
+        config.setInt(HBaseResultCache.MAX_ENTRIES_CONF, 0);
+        hbase = new StubHBase();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (HBaseTableHandle handle = hbase.handle(config, "t")) {
+            assertResultsInInputOrder(all, handle.submit(all, executor).await());
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, hbase.multiGets.size());
+        assertSorted(hbase.multiGets.get(0), 100);
+    }
+
+    // the stub puts every row on the server of its first character, so sorted rows are grouped by server
+    private static void assertSorted(List<String> sent, int size) {
+        assertEquals(size, sent.size());
+        List<String> sorted = new ArrayList<>(sent);
+        Collections.sort(sorted);
+        assertEquals(sorted, sent);
+    }
+
+    @Test
+    public void testInputOrderWithoutGrouping() throws Exception {
+        StubHBase hbase = new StubHBase();
+        List<Get> gets = gets("c1", "a1", "b1", "a2");
+        try (HBaseTableHandle handle = hbase.handle(new Configuration(false), "t")) {
+            assertResultsInInputOrder(gets, handle.get(gets));
+        }
+        assertEquals(Collections.singletonList(Arrays.asList("c1", "a1", "b1", "a2")), hbase.multiGets);
+    }
+}
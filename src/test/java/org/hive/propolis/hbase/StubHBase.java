@@ -0,0 +1,122 @@
+package org.hive.propolis.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.ServerName;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/*
+ * An in-memory stand-in for an HBase connection: every row has the value "value_<row>" in f:c,
+ * and lives on the server named by the first character of the row.
+ * The rows of every multi-get are recorded in the order they were sent.
+ */
+class StubHBase {
+
+    static final byte[] FAMILY = Bytes.toBytes("f");
+    static final byte[] COLUMN = Bytes.toBytes("c");
+
+    final List<List<String>> multiGets = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    static String server(byte[] row) {
+        return "server-" + (char) row[0];
+    }
+
+    static Result result(byte[] row) {
+        return Result.create(new Cell[]{
+                new KeyValue(row, FAMILY, COLUMN, 1L, Bytes.toBytes("value_" + Bytes.toString(row)))});
+    }
+
+    static String value(Result result) {
+        return Bytes.toString(result.getValue(FAMILY, COLUMN));
+    }
+
+    Connection connection() {
+        return proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getTable":
+                        return table();
+                    case "getRegionLocator":
+                        return regionLocator((TableName) args[0]);
+                    case "isClosed":
+                    case "isAborted":
+                        return false;
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    private Table table() {
+        return proxy(Table.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("get") && args[0] instanceof List) {
+                    List<?> gets = (List<?>) args[0];
+                    List<String> rows = new ArrayList<>();
+                    Result[] results = new Result[gets.size()];
+                    for (int i = 0; i < results.length; i++) {
+                        byte[] row = ((Get) gets.get(i)).getRow();
+                        rows.add(Bytes.toString(row));
+                        results[i] = result(row);
+                    }
+                    multiGets.add(rows);
+                    return results;
+                }
+                if (method.getName().equals("get")) {
+                    return result(((Get) args[0]).getRow());
+                }
+                return null;
+            }
+        });
+    }
+
+    private RegionLocator regionLocator(final TableName tableName) {
+        return proxy(RegionLocator.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getRegionLocation")) {
+                    return new HRegionLocation(new HRegionInfo(tableName),
+                            ServerName.valueOf(server((byte[]) args[0]), 16020, 1L));
+                }
+                return null;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StubHBase.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * A table handle on the stub connection.
+     */
+    HBaseTableHandle handle(Configuration config, String tableName) {
+        final Connection connection = connection();
+        return new HBaseTableHandle(config, tableName) {
+            @Override
+            Connection getConnection() {
+                return connection;
+            }
+        };
+    }
+}
@@ -0,0 +1,134 @@
+package org.hive.propolis.util;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class FileSetsTest {
+
+    /**
+     * The local file system under the "gated" scheme: counts the files it opens and holds every
+     * open until the gate is released, so the test controls when a load finishes.
+     */
+    public static class GatedFileSystem extends RawLocalFileSystem {
+        static final AtomicInteger opens = new AtomicInteger();
+        static volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        public URI getUri() {
+            return URI.create("gated:///");
+        }
+
+        @Override
+        public FSDataInputStream open(org.apache.hadoop.fs.Path f, int bufferSize) throws IOException {
+            opens.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return super.open(f, bufferSize);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Configuration conf() {
+        Configuration conf = new Configuration(false);
+        conf.set("fs.gated.impl", GatedFileSystem.class.getName());
+        conf.setBoolean("fs.gated.impl.disable.cache", true);
+        return conf;
+    }
+
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(thread.isAlive());
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testSingleFlightAndReload() throws Exception {
+        final File file = folder.newFile("list.txt");
+        Files.write(file.toPath(), Arrays.asList("a", "b"), StandardCharsets.UTF_8);
+        final String path = "gated://" + file.getAbsolutePath();
+        final Configuration conf = conf();
+
+        GatedFileSystem.opens.set(0);
+        GatedFileSystem.gate = new CountDownLatch(1);
+
+        final AtomicReference<FileSet> first = new AtomicReference<>();
+        final AtomicReference<FileSet> second = new AtomicReference<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final AtomicReference<FileSet> result = i == 0 ? first : second;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result.set(FileSets.load(path, conf));
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        // one thread reads the file and is held at the gate, the other one waits for its load
+        while (GatedFileSystem.opens.get() < 1) {
+            Thread.sleep(10);
+        }
+        waitUntilWaiting(threads[0]);
+        waitUntilWaiting(threads[1]);
+        assertEquals(1, GatedFileSystem.opens.get());
+
+        GatedFileSystem.gate.countDown();
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertNull(failure.get());
+        assertEquals(1, GatedFileSystem.opens.get());
+        assertSame(first.get(), second.get());
+        assertTrue(first.get().contains("a"));
+
+        // an unchanged file is not read again
+        assertSame(first.get(), FileSets.load(path, conf));
+        assertEquals(1, GatedFileSystem.opens.get());
+
+        // a new modification time reloads the file
+        Files.write(file.toPath(), Arrays.asList("a", "c"), StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(file.toPath(),
+                FileTime.fromMillis(file.lastModified() + 10000));
+        FileSet reloaded = FileSets.load(path, conf);
+        assertEquals(2, GatedFileSystem.opens.get());
+        assertNotSame(first.get(), reloaded);
+        assertTrue(reloaded.contains("c"));
+        assertFalse(reloaded.contains("b"));
+    }
+}
@@ -0,0 +1,65 @@
+package org.hive.propolis.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class HyperLogLogTest {
+
+    // header: magic, version, precision and encoding
+    private static final int HEADER = HyperLogLog.MAGIC.length + 3;
+
+    @Test
+    public void testStoredHashes() {
+        // the stored sketches and Bloom filter files depend on these values
+        assertEquals(-1166397803181037274L, Hashing.hash64(new byte[0], 0, 0));
+        byte[] utf8 = "xh\u00e9llo".getBytes(StandardCharsets.UTF_8);
+        assertEquals(-2561281688830968288L, Hashing.hash64(utf8, 1, utf8.length - 1));
+        assertEquals(-9148929187392628276L, Hashing.mix64(42));
+    }
+
+    private static void assertCorrupt(byte[] bytes) {
+        try {
+            HyperLogLog.fromBytes(bytes, 0, bytes.length);
+            fail("corrupt sketch was read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt HyperLogLog sketch: register value"));
+        }
+    }
+
+    @Test
+    public void testSparseRegisterValueOutOfRange() throws IOException {
+        HyperLogLog sketch = new HyperLogLog(HyperLogLog.MIN_PRECISION);
+        // register 0 with the largest value, 64 - precision + 1
+        sketch.addHash(0L);
+        byte[] bytes = sketch.toBytes();
+        assertTrue(HyperLogLog.fromBytes(bytes, 0, bytes.length).isSparse());
+
+        // one sparse pair, written as a single byte vint
+        assertEquals(HEADER + 2, bytes.length);
+        assertEquals(61, bytes[HEADER + 1]);
+        bytes[HEADER + 1] = 62;
+        assertCorrupt(bytes);
+    }
+
+    @Test
+    public void testDenseRegisterValueOutOfRange() throws IOException {
+        HyperLogLog sketch = new HyperLogLog(HyperLogLog.MIN_PRECISION);
+        for (long i = 0; i < 1000; i++) {
+            sketch.addLong(i);
+        }
+        byte[] bytes = sketch.toBytes();
+        assertFalse(HyperLogLog.fromBytes(bytes, 0, bytes.length).isSparse());
+
+        // the first register is in the high 6 bits of the first byte
+        bytes[HEADER] = (byte) 0xff;
+        assertCorrupt(bytes);
+    }
+}
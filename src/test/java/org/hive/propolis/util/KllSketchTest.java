@@ -0,0 +1,54 @@
+package org.hive.propolis.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class KllSketchTest {
+
+    @Test
+    public void testQuantilesMatchQuantile() {
+        KllSketch sketch = new KllSketch(KllSketch.MIN_K);
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            sketch.update(random.nextGaussian());
+        }
+
+        // in any order, with repeats and the bounds
+        double[] qs = {0.99, 0, 0.5, 0.01, 1, 0.5, 0.25};
+        double[] values = sketch.quantiles(qs);
+        assertEquals(qs.length, values.length);
+        for (int i = 0; i < qs.length; i++) {
+            assertEquals(sketch.quantile(qs[i]), values[i], 0);
+        }
+        assertTrue(values[3] < values[2] && values[2] < values[0]);
+    }
+
+    @Test
+    public void testExactBelowK() {
+        // fewer values than k are all kept, so the quantiles are exact
+        KllSketch sketch = new KllSketch(KllSketch.DEFAULT_K);
+        for (int i = 100; i >= 1; i--) {
+            sketch.update(i);
+        }
+        assertArrayEquals(new double[]{1, 1, 50, 51, 99, 100},
+                sketch.quantiles(0, 0.001, 0.5, 0.505, 0.99, 1), 0);
+    }
+
+    @Test
+    public void testEmptySketch() {
+        KllSketch sketch = new KllSketch(KllSketch.DEFAULT_K);
+        assertArrayEquals(new double[]{Double.NaN, Double.NaN}, sketch.quantiles(0, 0.5), 0);
+        assertEquals(0, sketch.quantiles().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testQuantileOutOfRange() {
+        new KllSketch(KllSketch.DEFAULT_K).quantiles(0.5, 1.5);
+    }
+}